@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package org.theseed.bin.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.BaseProcessor;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.qza.PackedKmerizer;
+import org.theseed.qza.RepSsuDatabase;
+import org.theseed.qza.RepSsuTable;
+import org.theseed.sequence.DnaKmers;
+import org.theseed.sequence.GenomeDescriptorSet;
+
+/**
+ * This command compiles a four-column RepGen table into a binary SSU kmer database.  The database contains the
+ * packed SSU kmers and the kmer index for the representative genomes, and can be used in place of the four-column
+ * table by the "qzaReport" command.  The compiled database is memory-mapped, so it loads instantly and is shared
+ * by all the processes on a host that use it.
+ *
+ * The positional parameters are the name of the four-column table and the name of the output database file.  The
+ * command-line options are as follows:
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --K			DNA kmer size (must be no greater than 31)
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class QzaCompileProcessor extends BaseProcessor {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(QzaCompileProcessor.class);
+
+    // COMMAND-LINE OPTIONS
+
+    /** DNA kmer size */
+    @Option(name = "--K", metaVar = "22", usage = "DNA kmer size")
+    private int kmerSize;
+
+    /** input repgen file (four-column table format) */
+    @Argument(index = 0, metaVar = "rep.seqs.tbl", usage = "input four-column repgen table", required = true)
+    private File repGenFile;
+
+    /** output database file */
+    @Argument(index = 1, metaVar = "rep.seqs.db", usage = "output compiled database file", required = true)
+    private File outFile;
+
+    @Override
+    protected void setDefaults() {
+        this.kmerSize = DnaKmers.kmerSize();
+    }
+
+    @Override
+    protected boolean validateParms() throws IOException, ParseFailureException {
+        if (this.kmerSize <= 1 || this.kmerSize > PackedKmerizer.MAX_K)
+            throw new ParseFailureException("Invalid kmer size.  Must be between 2 and " + PackedKmerizer.MAX_K + ".");
+        if (! this.repGenFile.canRead())
+            throw new FileNotFoundException("Input repgen file " + this.repGenFile + " is not found or invalid.");
+        DnaKmers.setKmerSize(this.kmerSize);
+        return true;
+    }
+
+    @Override
+    protected void runCommand() throws Exception {
+        log.info("Reading SSU rRNA sequences from {}.", this.repGenFile);
+        GenomeDescriptorSet repgens = new GenomeDescriptorSet(this.repGenFile);
+        log.info("{} representative genomes found.", repgens.size());
+        RepSsuTable repTable = new RepSsuTable(repgens);
+        repTable.pack(this.kmerSize);
+        RepSsuDatabase.save(repTable, this.outFile);
+    }
+
+}
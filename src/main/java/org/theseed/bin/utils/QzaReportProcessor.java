@@ -3,15 +3,34 @@
  */
 package org.theseed.bin.utils;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -19,25 +38,36 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.BaseProcessor;
 import org.theseed.basic.ParseFailureException;
-import org.theseed.counters.CountMap;
 import org.theseed.io.TabbedLineReader;
+import org.theseed.qza.AmpliconRead;
+import org.theseed.qza.AmpliconReadStream;
+import org.theseed.qza.AmpliconSampleSource;
+import org.theseed.qza.PackedKmerizer;
+import org.theseed.qza.ReadHitCache;
+import org.theseed.qza.ReadPipeline;
+import org.theseed.qza.RepHitCounter;
+import org.theseed.qza.RepSsuDatabase;
+import org.theseed.qza.RepSsuTable;
+import org.theseed.qza.QzaStreamSource;
+import org.theseed.qza.SampleCheckpoint;
+import org.theseed.qza.SampleMetrics;
+import org.theseed.qza.SampleGroupSource;
+import org.theseed.qza.SsuClassifier;
 import org.theseed.sequence.DnaKmers;
-import org.theseed.sequence.GenomeDescriptor;
 import org.theseed.sequence.GenomeDescriptorSet;
-import org.theseed.sequence.SequenceKmers;
 import org.theseed.sequence.fastq.FastqSampleGroup;
-import org.theseed.sequence.fastq.ReadStream;
 import org.theseed.sequence.fastq.SeqRead;
 
 /**
  * This command processes a directory of Amplicon SSU rRNA samples to produce a report that can be used to build
  * an Xmatrix.  The positional parameters are the name of the input directory containing the samples, the name of
- * the four-column table for the appropriate RepGen set, and the name of the output file.  The following
- * command-line options are supported.
+ * the four-column table for the appropriate RepGen set, and the name of the output file.  In place of the
+ * four-column table, a database compiled by the "qzaCompile" command can be specified.  A compiled database is
+ * memory-mapped and only supports the packed-kmer engines.  The following command-line options are supported.
  *
  * -h	display command-line usage
  * -v	display more frequent log messages
- * -b	batch size for parallel processing
+ * -b	number of reads in each chunk passed to the classification workers
  *
  * --source		type of input directory-- QZA, FASTQ, or FASTA
  * --phred		phred offset for quality strings in the FASTQ files (default 33)
@@ -48,6 +78,26 @@ import org.theseed.sequence.fastq.SeqRead;
  * --minLen		minimum length for a read to be acceptable
  * --resume		name of a progress file used to make the program restartable; the default is
  * 				qzaReport.progress.txt
+ * --engine		classification engine for finding the best representative-- SCAN, INDEX, PACKED, PINDEX, PRUNE,
+ * 				or TREE (default SCAN); SCAN and INDEX always give the same results; the other engines use
+ * 				packed canonical kmers, which can give slightly different similarities, and require a kmer size
+ * 				no greater than 31
+ * --index		use the inverted-index classification engine (same as "--engine INDEX"); this gives the same
+ * 				results as SCAN
+ * --workers	number of classification worker threads (default is the number of processors)
+ * --sampleThreads	number of samples to process at the same time (default 1)
+ * --cache		if nonzero, the maximum number of distinct read sequences whose classifications are cached; reads
+ * 				are identified by a 64-bit hash of their sequences (default 0, meaning off)
+ * --stable		if nonzero, the tolerance for early stopping; once the representative hit proportions for a
+ * 				sample are stable within this tolerance, the remaining reads are counted but not classified,
+ * 				and the hit counts are scaled up to the full number of good reads (default 0, meaning off)
+ * --checkEvery	number of good reads between stability checks when "--stable" is specified (default 20000)
+ * --checkpoint	if nonzero, the number of reads between checkpoints of the sample in progress; a restarted run
+ * 				continues a checkpointed sample from the last checkpoint (default 0, meaning off)
+ * --metrics	if specified, per-sample read counts and stage timings will be written to a tab-delimited file
+ * 				with the same name as the output file plus a suffix of ".metrics.tbl"
+ * --stream		if specified, QZA samples will be decompressed and parsed directly from the archive instead of
+ * 				being read through the sample group
  *
  * @author Bruce Parrello
  *
@@ -57,20 +107,20 @@ public class QzaReportProcessor extends BaseProcessor {
     // FIELDS
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(QzaReportProcessor.class);
-    /** input sample group */
-    private FastqSampleGroup inputGroup;
-    /** set of sample IDs */
-    private Set<String> samples;
-    /** map of hit counts for each representative */
-    private CountMap<String> hitCounts;
-    /** number of good reads found in current sample */
-    private int goodCount;
-    /** start time for processing of current sample */
-    private long start;
-    /** number of reads processed in the current sample */
-    private int readCount;
-    /** genome descriptor set for repgens */
-    private GenomeDescriptorSet repgens;
+    /** writer for the main output file */
+    private PrintWriter outStream;
+    /** map of completed samples waiting for output, keyed by sequence number */
+    private SortedMap<Integer, SampleRun> pending;
+    /** sequence number of the next sample to output */
+    private int nextSeq;
+    /** number of samples output */
+    private int sampleCount;
+    /** table of repgen SSU kmers, by ordinal */
+    private RepSsuTable repTable;
+    /** classification engine for finding the best repgen */
+    private SsuClassifier classifier;
+    /** cache of classification results for duplicate reads, or NULL if caching is turned off */
+    private ReadHitCache hitCache;
     /** array of input files to parse */
     private File[] inFiles;
     /** set of samples already processed */
@@ -81,8 +131,97 @@ public class QzaReportProcessor extends BaseProcessor {
     private int badSampleCount;
     /** writer for the progress file */
     private PrintWriter progressStream;
+    /** TRUE if the progress file has the "examined" column (files from older versions do not) */
+    private boolean progressExamined;
+    /** writer for the metrics file, or NULL if metrics are not being recorded */
+    private PrintWriter metricsStream;
     /** expected number of samples */
     private static final int EXPECTED_SAMPLES = 1000;
+    /** number of seconds to wait for interrupted sample threads to finish */
+    private static final long SHUTDOWN_WAIT = 60;
+    /** number of queued chunks allowed per worker thread */
+    private static final int CHUNKS_PER_WORKER = 4;
+    /** number of milliseconds between progress messages */
+    private static final long LOG_INTERVAL = 10000;
+    /** number of consecutive stable checks required to stop a sample early */
+    private static final int STABLE_CHECKS = 2;
+    /** z-score for the confidence interval of a hit proportion in the stability test */
+    private static final double STABLE_Z = 1.96;
+
+    /**
+     * This object tracks the processing of a single sample.
+     */
+    private static class SampleRun {
+
+        /** ID of the sample */
+        private String sampleId;
+        /** position of the sample in the output order */
+        private int seq;
+        /** sample source containing the sample */
+        private AmpliconSampleSource group;
+        /** start time for processing of the sample */
+        private long start;
+        /** time of the last progress message */
+        private long lastLog;
+        /** number of reads consumed from the read stream */
+        private long consumed;
+        /** read-stream position at which the next checkpoint should be written */
+        private long nextCheckpoint;
+        /** number of good reads found */
+        private int readCount;
+        /** number of good reads queued for classification */
+        private int examined;
+        /** TRUE if the hit proportions have stabilized and classification has stopped */
+        private boolean stopped;
+        /** read count at which the next stability check should be made */
+        private int nextCheck;
+        /** hit proportions at the last stability check, or NULL if there was none */
+        private double[] lastProps;
+        /** number of consecutive stable checks */
+        private int stableCount;
+        /** number of low-quality reads */
+        private int badCount;
+        /** number of short reads */
+        private int shortCount;
+        /** number of repgens found */
+        private int foundCount;
+        /** number of repgens kept */
+        private int keptCount;
+        /** formatted output lines for the kept repgens */
+        private String output;
+        /** total number of good hits */
+        private int hitCount;
+        /** elapsed time for the sample, in milliseconds */
+        private long elapsed;
+        /** stage timings for the sample, or NULL if metrics are not being recorded */
+        private SampleMetrics metrics;
+        /** number of reads searched by an engine that tracks exact comparisons */
+        private LongAdder searches;
+        /** number of exact comparisons made by the engine */
+        private LongAdder comparisons;
+
+        /**
+         * Create a run descriptor for a sample.
+         *
+         * @param sampleId		ID of the sample
+         * @param seq			position of the sample in the output order
+         * @param group			sample source containing the sample
+         * @param metrics		stage-timing object, or NULL if metrics are not being recorded
+         */
+        protected SampleRun(String sampleId, int seq, AmpliconSampleSource group, SampleMetrics metrics) {
+            this.sampleId = sampleId;
+            this.seq = seq;
+            this.group = group;
+            this.metrics = metrics;
+            this.searches = new LongAdder();
+            this.comparisons = new LongAdder();
+            this.output = "";
+            this.stopped = false;
+            this.lastProps = null;
+            this.stableCount = 0;
+        }
+
+    }
 
     // COMMAND-LINE OPTIONS
 
@@ -115,19 +254,59 @@ public class QzaReportProcessor extends BaseProcessor {
     private int kmerSize;
 
     /** batch size */
-    @Option(name = "--batch", aliases = { "-b" }, metaVar = "10", usage = "batch size for parallelization")
+    @Option(name = "--batch", aliases = { "-b" }, metaVar = "10", usage = "number of reads per chunk queued for classification")
     private int batchSize;
 
+    /** number of classification worker threads */
+    @Option(name = "--workers", metaVar = "16", usage = "number of classification worker threads")
+    private int workerCount;
+
+    /** number of samples to process concurrently */
+    @Option(name = "--sampleThreads", metaVar = "4", usage = "number of samples to process at the same time")
+    private int sampleThreads;
+
+    /** maximum number of cached read classifications */
+    @Option(name = "--cache", metaVar = "500000", usage = "if nonzero, maximum number of duplicate-read classifications to cache")
+    private int cacheSize;
+
+    /** tolerance for early stopping, or 0 to process all reads */
+    @Option(name = "--stable", metaVar = "0.001", usage = "if nonzero, stop classifying a sample when the hit proportions are stable within this tolerance")
+    private double stableTol;
+
+    /** number of good reads between stability checks */
+    @Option(name = "--checkEvery", metaVar = "50000", usage = "number of good reads between early-stop stability checks")
+    private int checkInterval;
+
+    /** number of reads between checkpoints, or 0 for no checkpoints */
+    @Option(name = "--checkpoint", metaVar = "500000", usage = "if nonzero, number of reads between checkpoints of a sample in progress")
+    private int checkpointInterval;
+
+    /** if specified, per-sample metrics will be written */
+    @Option(name = "--metrics", usage = "if specified, per-sample stage timings will be written to a metrics file")
+    private boolean metricsFlag;
+
+    /** if specified, QZA samples will be streamed directly from the archive */
+    @Option(name = "--stream", usage = "if specified, QZA samples will be parsed directly from the archive")
+    private boolean streamFlag;
+
     /** resume-processing flag */
     @Option(name = "--resume", usage = "file used to track progress for restarts")
     private File progressFile;
 
+    /** classification engine type */
+    @Option(name = "--engine", usage = "classification engine for finding the best representative")
+    private SsuClassifier.Type engineType;
+
+    /** if specified, the inverted-index engine will be used */
+    @Option(name = "--index", usage = "if specified, the inverted-index classification engine (same results as SCAN) will be used")
+    private boolean indexFlag;
+
     /** input directory name */
     @Argument(index = 0, metaVar = "inDir", usage = "input file/directory name", required = true)
     private File inDir;
 
-    /** input repgen file (four-column table format */
-    @Argument(index = 1, metaVar = "rep.seqs.tbl", usage = "input four-column repgen table.", required = true)
+    /** input repgen file (four-column table format or compiled database) */
+    @Argument(index = 1, metaVar = "rep.seqs.tbl", usage = "input four-column repgen table or compiled repgen database", required = true)
     private File repGenFile;
 
     /** output file */
@@ -144,7 +323,17 @@ public class QzaReportProcessor extends BaseProcessor {
         this.minHitCount = 180;
         this.minReadLen = 50;
         this.batchSize = 200;
+        this.workerCount = Runtime.getRuntime().availableProcessors();
+        this.sampleThreads = 1;
+        this.cacheSize = 0;
+        this.stableTol = 0.0;
+        this.checkInterval = 20000;
+        this.checkpointInterval = 0;
+        this.metricsFlag = false;
+        this.streamFlag = false;
         this.progressFile = new File(System.getProperty("user.dir"), "qzaReport.progress.txt");
+        this.engineType = SsuClassifier.Type.SCAN;
+        this.indexFlag = false;
     }
 
     @Override
@@ -171,6 +360,21 @@ public class QzaReportProcessor extends BaseProcessor {
             throw new ParseFailureException("Invalid minimum read length.  Must be greater than 0.");
         if (this.batchSize < 1)
             throw new ParseFailureException("Invalid batch size.  Must be at least 1.");
+        if (this.workerCount < 1)
+            throw new ParseFailureException("Invalid worker count.  Must be at least 1.");
+        if (this.sampleThreads < 1)
+            throw new ParseFailureException("Invalid sample thread count.  Must be at least 1.");
+        if (this.cacheSize < 0)
+            throw new ParseFailureException("Invalid cache size.  Cannot be negative.");
+        if (this.stableTol < 0.0 || this.stableTol >= 1.0)
+            throw new ParseFailureException("Invalid stability tolerance.  Must be at least 0 and less than 1.");
+        if (this.checkInterval < 1)
+            throw new ParseFailureException("Invalid stability check interval.  Must be at least 1.");
+        if (this.checkpointInterval < 0)
+            throw new ParseFailureException("Invalid checkpoint interval.  Cannot be negative.");
+        if (this.stableTol > 0.0)
+            log.info("Early stopping enabled with tolerance {}, checked every {} good reads.", this.stableTol,
+                    this.checkInterval);
         // Find out if we are resuming.
         this.resumeFlag = this.progressFile.exists();
         this.progressStream = null;
@@ -181,103 +385,467 @@ public class QzaReportProcessor extends BaseProcessor {
         // Process the repgen file.
         if (! this.repGenFile.canRead())
             throw new FileNotFoundException("Input repgen file " + this.repGenFile + " is not found or invalid.");
-        log.info("Reading SSU rRNA sequences from {}.", this.repGenFile);
-        this.repgens = new GenomeDescriptorSet(this.repGenFile);
-        log.info("{} representative genomes found.", this.repgens.size());
+        if (this.indexFlag)
+            this.engineType = SsuClassifier.Type.INDEX;
+        if (this.streamFlag) {
+            if (this.sourceType != FastqSampleGroup.Type.QZA)
+                throw new ParseFailureException("Streaming is only supported for QZA sources.");
+        }
+        if (RepSsuDatabase.isCompiled(this.repGenFile)) {
+            // Here we have a compiled database.  The kmer size is fixed by the database, and only the packed
+            // engines can use it.
+            this.repTable = RepSsuDatabase.load(this.repGenFile);
+            if (this.repTable.getPackedK() != this.kmerSize)
+                throw new ParseFailureException("Compiled database " + this.repGenFile + " has kmer size "
+                        + this.repTable.getPackedK() + ", but the kmer size is " + this.kmerSize + ".");
+            if (! this.engineType.isPacked())
+                throw new ParseFailureException("Engine " + this.engineType + " cannot use compiled database "
+                        + this.repGenFile + ".  Use a packed-kmer engine such as PINDEX.");
+        } else {
+            log.info("Reading SSU rRNA sequences from {}.", this.repGenFile);
+            GenomeDescriptorSet repgens = new GenomeDescriptorSet(this.repGenFile);
+            log.info("{} representative genomes found.", repgens.size());
+            this.repTable = new RepSsuTable(repgens);
+        }
+        // Create the classification engine.
+        if (this.engineType.isPacked() && this.kmerSize > PackedKmerizer.MAX_K)
+            throw new ParseFailureException("Kmer size for engine " + this.engineType + " cannot be greater than "
+                    + PackedKmerizer.MAX_K + ".");
+        log.info("Using {} classification engine.", this.engineType);
+        this.classifier = this.engineType.create(this.repTable, this.minSimFraction);
+        // Create the duplicate-read cache.  It is shared by all the samples in the run.
+        if (this.cacheSize == 0)
+            this.hitCache = null;
+        else {
+            log.info("Caching classifications for up to {} distinct reads.", this.cacheSize);
+            this.hitCache = new ReadHitCache(this.cacheSize);
+        }
         return true;
     }
 
     @Override
     protected void runCommand() throws Exception {
+        // This will hold the sample sources, so we can close them at the end.
+        List<AmpliconSampleSource> groups = new ArrayList<AmpliconSampleSource>(this.inFiles.length);
+        // Only create a sample executor if we are processing multiple samples at once.  Its threads are daemons,
+        // like the pipeline workers, so a thread stuck in I/O cannot keep the program alive after a failure.
+        ExecutorService sampleExecutor = null;
+        if (this.sampleThreads > 1) {
+            sampleExecutor = Executors.newFixedThreadPool(this.sampleThreads, r -> {
+                Thread retVal = new Thread(r);
+                retVal.setDaemon(true);
+                return retVal;
+            });
+        }
+        // This will track the sample tasks in the multi-sample case.
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
         // Handle the resume processing.
-        try (PrintWriter writer = this.prepareOutput()) {
-            // Each batch of reads is stored in this list.
-            List<SeqRead> batch = new ArrayList<SeqRead>(this.batchSize);
-            // We will store the counters in here.  Counters are per-sample, so it will be cleared between samples.
-            this.hitCounts = new CountMap<String>();
-            // Loop through the sample files.
-            int sampleCount = 0;
-            for (File inFile : this.inFiles) {
-                // Get the samples in this file.
-                this.inputGroup = this.sourceType.create(inFile);
-                this.samples = this.inputGroup.getSampleIDs();
-                log.info("{} samples of type {} found in source {}.", this.samples.size(), this.sourceType.toString(), inFile);
-                // Remove the ones already processed.
-                this.samples.removeAll(this.processed);
-                // Loop through the remaining samples.
-                log.info("Processing samples.");
-                for (String sampleID : this.samples) {
-                    try (ReadStream sampleIter = this.inputGroup.sampleIter(sampleID)) {
-                        log.info("Reading sample {}", sampleID);
-                        this.start = System.currentTimeMillis();
-                        this.readCount = 0;
-                        int badCount = 0;
-                        int shortCount = 0;
-                        this.goodCount = 0;
-                        // Now loop through the reads in the sample.
-                        while (sampleIter.hasNext()) {
-                            SeqRead read = sampleIter.next();
-                            // First we filter the read.
-                            if (read.getQual() < this.minReadQual)
-                                badCount++;
-                            else if (read.maxlength() < this.minReadLen)
-                                shortCount++;
-                            else {
-                                // This is a reasonable read, so we must queue it for processing.
-                                // Insure there is room in the batch.
-                                if (batch.size() >= this.batchSize)
-                                    this.processBatch(batch);
-                                // Add it to the batch.
-                                batch.add(read);
-                                this.readCount++;
-                            }
-                        }
-                        // Process the residual batch.  This also clears the batch for the next sample.
-                        this.processBatch(batch);
-                        log.info("{} repgen instances found in {} good reads.  {} reads were short, {} were bad.", goodCount, readCount, shortCount, badCount);
-                    }
-                    // Now process the counts.  We only keep the ones that are high enough.
-                    int keptCount = 0;
-                    int foundCount = 0;
-                    for (CountMap<String>.Count counter : this.hitCounts.counts()) {
-                        int hitsCounted = counter.getCount();
-                        if (hitsCounted > 0) {
-                            // Here we have a repgen that was found in the sample.
-                            foundCount++;
-                            // Does it have enough coverage to count?
-                            if (hitsCounted >= this.minHitCount) {
-                                keptCount++;
-                                String repId = counter.getKey();
-                                String name = this.repgens.getName(repId);
-                                writer.format("%s\t%s\t%s\t%d%n", sampleID, repId, name, hitsCounted);
-                            }
-                        }
-                    }
-                    // If there were representatives kept for this sample, flush the output.  Also, record
-                    // the sample in the progress file.
-                    this.progressStream.format("%s\t%d%n", sampleID, keptCount);
-                    if (keptCount > 0)
-                        writer.flush();
-                    else
-                        this.badSampleCount++;
-                    // Always flush the progress stream.
-                    this.progressStream.flush();
-                    log.info("{} representatives kept out of {} found in sample {}.", keptCount, foundCount, sampleID);
-                    // Clear the counters for next time.
-                    hitCounts.clear();
-                    sampleCount++;
-                    log.info("PROGRESS:  {} samples processed, {} were bad.", sampleCount, this.badSampleCount);
-                }
+        try (PrintWriter writer = this.prepareOutput();
+                PrintWriter metricsWriter = this.prepareMetrics();
+                ReadPipeline<AmpliconRead> pipeline = new ReadPipeline<AmpliconRead>(this.workerCount,
+                        this.workerCount * CHUNKS_PER_WORKER)) {
+            this.outStream = writer;
+            this.metricsStream = metricsWriter;
+            this.pending = new TreeMap<Integer, SampleRun>();
+            this.nextSeq = 0;
+            this.sampleCount = 0;
+            try {
+                this.processFiles(pipeline, sampleExecutor, tasks, groups);
+            } finally {
+                // The sample threads must be stopped before the pipeline is closed.  If a sample failed, the
+                // others may be waiting on the pipeline, and they would wait forever once its workers are gone.
+                if (sampleExecutor != null)
+                    this.stopSamples(sampleExecutor, tasks);
             }
-            log.info("All done. {} samples processed in {} files, {} were bad.", sampleCount, this.inFiles.length,
+            log.info("All done. {} samples processed in {} files, {} were bad.", this.sampleCount, this.inFiles.length,
                     this.badSampleCount);
         } finally {
+            for (AmpliconSampleSource group : groups)
+                group.close();
             // Insure we close the progress output file.
             if (this.progressStream != null)
                 this.progressStream.close();
         }
     }
 
+    /**
+     * Process the samples in all the input files.  In the multi-sample case, the samples are submitted to the
+     * sample executor, and this method waits for them to finish.
+     *
+     * @param pipeline			classification pipeline
+     * @param sampleExecutor	executor for processing samples in parallel, or NULL to process them in this thread
+     * @param tasks				list to receive the sample tasks
+     * @param groups			list to receive the sample sources, so they can be closed at the end
+     *
+     * @throws Exception
+     */
+    private void processFiles(ReadPipeline<AmpliconRead> pipeline, ExecutorService sampleExecutor,
+            List<Future<?>> tasks, List<AmpliconSampleSource> groups) throws Exception {
+        // We will store the counters in here.  Counters are per-sample, so each concurrent sample gets its
+        // own counter.  A counter is cleared by the merge at the end of its sample and then reused.
+        BlockingQueue<RepHitCounter> counterPool = new ArrayBlockingQueue<RepHitCounter>(this.sampleThreads);
+        for (int i = 0; i < this.sampleThreads; i++)
+            counterPool.add(new RepHitCounter(this.repTable.size()));
+        // Loop through the sample files.
+        int seq = 0;
+        for (File inFile : this.inFiles) {
+            // Get the samples in this file.
+            AmpliconSampleSource inputGroup = this.openSource(inFile);
+            groups.add(inputGroup);
+            Set<String> samples = inputGroup.getSampleIDs();
+            log.info("{} samples of type {} found in source {}.", samples.size(), this.sourceType.toString(), inFile);
+            // Remove the ones already processed.
+            samples.removeAll(this.processed);
+            // Loop through the remaining samples.
+            log.info("Processing samples.");
+            for (String sampleID : samples) {
+                SampleRun run = new SampleRun(sampleID, seq, inputGroup,
+                        (this.metricsFlag ? new SampleMetrics() : null));
+                seq++;
+                if (sampleExecutor == null) {
+                    // Here we process the sample in the main thread.
+                    RepHitCounter counter = counterPool.take();
+                    this.processSample(run, pipeline, counter);
+                    counterPool.put(counter);
+                    this.commitSample(run);
+                } else {
+                    tasks.add(sampleExecutor.submit(() -> {
+                        RepHitCounter counter = counterPool.take();
+                        try {
+                            this.processSample(run, pipeline, counter);
+                        } finally {
+                            counterPool.put(counter);
+                        }
+                        this.commitSample(run);
+                        return null;
+                    }));
+                }
+            }
+        }
+        // Wait for the sample tasks (if any).  This will throw an exception if a sample failed.
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception)
+                    throw (Exception) cause;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stop the sample threads.  On a normal exit, the tasks are all finished and this does nothing.  After a
+     * failure, the unfinished tasks are cancelled and their threads interrupted, and we wait for them to exit.
+     *
+     * @param sampleExecutor	executor running the sample tasks
+     * @param tasks				list of sample tasks
+     *
+     * @throws InterruptedException
+     */
+    private void stopSamples(ExecutorService sampleExecutor, List<Future<?>> tasks) throws InterruptedException {
+        for (Future<?> task : tasks)
+            task.cancel(true);
+        sampleExecutor.shutdownNow();
+        if (! sampleExecutor.awaitTermination(SHUTDOWN_WAIT, TimeUnit.SECONDS))
+            log.warn("Sample threads did not stop after {} seconds.", SHUTDOWN_WAIT);
+    }
+
+    /**
+     * Open the samples in an input file.
+     *
+     * @param inFile	input file containing the samples
+     *
+     * @return a sample source for the file
+     *
+     * @throws IOException
+     */
+    private AmpliconSampleSource openSource(File inFile) throws IOException {
+        AmpliconSampleSource retVal;
+        if (this.streamFlag)
+            retVal = new QzaStreamSource(inFile, this.phredOffset);
+        else
+            retVal = new SampleGroupSource(this.sourceType.create(inFile));
+        // Let the source reject the bad reads as early as it can.
+        retVal.setFilter(this.minReadQual, this.minReadLen);
+        return retVal;
+    }
+
+    /**
+     * Classify all the reads in a sample and compute the output for it.
+     *
+     * @param run			sample run descriptor
+     * @param pipeline		classification pipeline
+     * @param counter		hit counter for the sample
+     *
+     * @throws Exception
+     */
+    private void processSample(SampleRun run, ReadPipeline<AmpliconRead> pipeline, RepHitCounter counter)
+            throws Exception {
+        String sampleID = run.sampleId;
+        // The sample sources are not guaranteed to be thread-safe, so we open the streams one at a time.
+        AmpliconReadStream sampleIter;
+        synchronized (run.group) {
+            sampleIter = run.group.open(sampleID);
+        }
+        try (sampleIter) {
+            log.info("Reading sample {}", sampleID);
+            run.start = System.currentTimeMillis();
+            run.lastLog = run.start;
+            run.nextCheck = this.checkInterval;
+            // If we are resuming, we may be able to pick up from a checkpoint.
+            File ckptFile = this.checkpointFile(sampleID);
+            if (this.resumeFlag && ckptFile.exists())
+                this.restoreCheckpoint(run, ckptFile, sampleIter, counter);
+            run.nextCheckpoint = run.consumed + this.checkpointInterval;
+            // The reads are classified by the pipeline workers while we decode.
+            final SampleMetrics metrics = run.metrics;
+            ReadPipeline.Job<AmpliconRead> job = pipeline.newJob(x -> this.processRead(x, run, counter));
+            // Each chunk of reads is stored in this list.  A new list is created for each chunk, since
+            // the pipeline owns a chunk after it is submitted.
+            List<AmpliconRead> batch = new ArrayList<AmpliconRead>(this.batchSize);
+            // Now loop through the reads in the sample.  If we are recording metrics, "mark" is the time at the end
+            // of the previous stage.
+            long mark = (metrics == null ? 0 : System.nanoTime());
+            while (sampleIter.hasNext()) {
+                AmpliconRead read = sampleIter.next();
+                run.consumed++;
+                if (metrics != null)
+                    mark = metrics.addDecode(mark);
+                // First we filter the read.
+                final boolean bad = (read.getQual() < this.minReadQual);
+                final boolean tooShort = (! bad && read.maxlength() < this.minReadLen);
+                if (metrics != null)
+                    mark = metrics.addFilter(mark);
+                if (bad)
+                    run.badCount++;
+                else if (tooShort)
+                    run.shortCount++;
+                else {
+                    run.readCount++;
+                    if (! run.stopped) {
+                        // This is a reasonable read, so we must queue it for processing.
+                        batch.add(read);
+                        run.examined++;
+                        if (batch.size() >= this.batchSize) {
+                            this.submitBatch(run, job, batch, counter);
+                            batch = new ArrayList<AmpliconRead>(this.batchSize);
+                            // Check to see if we can stop early.
+                            if (this.stableTol > 0.0 && run.examined >= run.nextCheck) {
+                                job.await();
+                                this.checkStability(run, counter);
+                                run.nextCheck += this.checkInterval;
+                            }
+                        }
+                    }
+                }
+                // Checkpoint if it is time.  We only do this between batches, so the checkpoint position is the
+                // end of the last submitted batch.
+                if (this.checkpointInterval > 0 && batch.isEmpty() && run.consumed >= run.nextCheckpoint) {
+                    this.writeCheckpoint(run, job, counter, ckptFile);
+                    run.nextCheckpoint = run.consumed + this.checkpointInterval;
+                }
+                if (metrics != null)
+                    mark = metrics.addQueue(mark);
+            }
+            // Submit the residual batch and wait for the workers to finish the sample.
+            job.submit(batch);
+            job.await();
+            this.showProgress(run, pipeline);
+        }
+        // Merge the per-thread counters.  This also clears them for the next sample.
+        final long mergeStart = (run.metrics == null ? 0 : System.nanoTime());
+        final int[] counts = counter.merge();
+        if (run.stopped) {
+            // Here we stopped early, so we scale the counts to the full number of good reads.  This keeps the
+            // meaning of the minimum hit count.
+            final double scale = (double) run.readCount / run.examined;
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = (int) Math.round(counts[i] * scale);
+            log.info("Sample {} stopped early after {} of {} good reads.  Counts scaled by {}.", sampleID,
+                    run.examined, run.readCount, scale);
+        }
+        // Now process the counts.  We only keep the ones that are high enough.
+        int goodCount = 0;
+        List<Integer> kept = new ArrayList<Integer>();
+        for (int i = 0; i < counts.length; i++) {
+            int hitsCounted = counts[i];
+            if (hitsCounted > 0) {
+                // Here we have a repgen that was found in the sample.
+                run.foundCount++;
+                goodCount += hitsCounted;
+                // Does it have enough coverage to count?
+                if (hitsCounted >= this.minHitCount)
+                    kept.add(i);
+            }
+        }
+        log.info("{} repgen instances found in {} good reads of sample {}.  {} reads were short, {} were bad.",
+                goodCount, run.readCount, sampleID, run.shortCount, run.badCount);
+        // Format the kept repgens, highest count first.  The output is buffered so it can be written in one piece.
+        kept.sort(Comparator.comparingInt((Integer i) -> -counts[i]).thenComparingInt(i -> i));
+        run.keptCount = kept.size();
+        StringBuilder buffer = new StringBuilder(run.keptCount * 80);
+        for (int repIdx : kept) {
+            buffer.append(sampleID).append('\t').append(this.repTable.getId(repIdx)).append('\t')
+                    .append(this.repTable.getName(repIdx)).append('\t').append(counts[repIdx])
+                    .append(System.lineSeparator());
+        }
+        run.output = buffer.toString();
+        run.hitCount = goodCount;
+        final long searches = run.searches.sum();
+        if (searches > 0) {
+            // Here the engine tracks its exact comparisons, so we report how many it avoided.
+            final long possible = searches * this.repTable.size();
+            final long avoided = possible - run.comparisons.sum();
+            log.info("{} engine avoided {} of {} exact comparisons ({}%) for {} reads in sample {}.", this.engineType,
+                    avoided, possible, String.format("%4.1f", avoided * 100.0 / possible), searches, sampleID);
+        }
+        if (run.metrics != null)
+            run.metrics.addMerge(mergeStart);
+        run.elapsed = System.currentTimeMillis() - run.start;
+    }
+
+    /**
+     * @return the checkpoint file for a sample
+     *
+     * @param sampleID	ID of the sample
+     */
+    private File checkpointFile(String sampleID) {
+        return new File(this.progressFile.getPath() + "." + sampleID + ".ckpt");
+    }
+
+    /**
+     * Write a checkpoint for a sample in progress.  The sample's queued reads must be finished first, so that the
+     * hit counts match the stream position.
+     *
+     * @param run			sample run descriptor
+     * @param job			pipeline job for the sample
+     * @param counter		hit counter for the sample
+     * @param ckptFile		checkpoint file for the sample
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void writeCheckpoint(SampleRun run, ReadPipeline.Job<AmpliconRead> job, RepHitCounter counter, File ckptFile)
+            throws IOException, InterruptedException {
+        job.await();
+        SampleCheckpoint ckpt = new SampleCheckpoint(run.consumed, run.readCount, run.examined, run.badCount,
+                run.shortCount, run.stopped, counter.peek());
+        ckpt.save(ckptFile, this.repTable);
+        log.debug("Checkpoint written for {} at read {}.", run.sampleId, run.consumed);
+    }
+
+    /**
+     * Restore a sample from its checkpoint.  The reads already processed are skipped and the hit counts are
+     * preloaded into the counter.  If the checkpoint is not usable, the sample is processed from the beginning.
+     *
+     * @param run			sample run descriptor
+     * @param ckptFile		checkpoint file for the sample
+     * @param sampleIter	read stream for the sample
+     * @param counter		hit counter for the sample
+     *
+     * @throws IOException
+     */
+    private void restoreCheckpoint(SampleRun run, File ckptFile, AmpliconReadStream sampleIter, RepHitCounter counter)
+            throws IOException {
+        SampleCheckpoint ckpt = SampleCheckpoint.load(ckptFile, this.repTable);
+        if (ckpt == null)
+            log.warn("Checkpoint for {} cannot be used.  Starting over.", run.sampleId);
+        else {
+            log.info("Resuming sample {} from checkpoint at read {}.", run.sampleId, ckpt.getOffset());
+            // Skip the reads already processed.
+            run.consumed = ckpt.skipReads(sampleIter, run.consumed);
+            if (run.consumed < ckpt.getOffset())
+                throw new IOException("Sample " + run.sampleId + " has only " + run.consumed
+                        + " reads, but its checkpoint is at read " + ckpt.getOffset() + ".");
+            run.readCount = ckpt.getReadCount();
+            run.examined = ckpt.getExamined();
+            run.badCount = ckpt.getBadCount();
+            run.shortCount = ckpt.getShortCount();
+            run.stopped = ckpt.isStopped();
+            run.nextCheck = (run.examined / this.checkInterval + 1) * this.checkInterval;
+            // Preload the hit counts.
+            final int[] counts = ckpt.getCounts();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0)
+                    counter.add(i, counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Determine whether the hit proportions for a sample have stabilized.  The proportions are stable if no
+     * proportion has changed by more than the tolerance since the last check, and the confidence interval for
+     * each proportion is within the tolerance.  The sample is stopped after enough consecutive stable checks.
+     * The client must insure that the workers have finished all the reads queued so far.
+     *
+     * @param run		sample run descriptor
+     * @param counter	hit counter for the sample
+     */
+    private void checkStability(SampleRun run, RepHitCounter counter) {
+        final int[] counts = counter.peek();
+        long total = 0;
+        for (int count : counts)
+            total += count;
+        if (total > 0) {
+            double[] props = new double[counts.length];
+            double maxChange = 0.0;
+            double maxError = 0.0;
+            for (int i = 0; i < counts.length; i++) {
+                double p = (double) counts[i] / total;
+                props[i] = p;
+                if (run.lastProps != null)
+                    maxChange = Math.max(maxChange, Math.abs(p - run.lastProps[i]));
+                maxError = Math.max(maxError, STABLE_Z * Math.sqrt(p * (1.0 - p) / total));
+            }
+            if (run.lastProps != null && maxChange <= this.stableTol && maxError <= this.stableTol)
+                run.stableCount++;
+            else
+                run.stableCount = 0;
+            run.lastProps = props;
+            log.debug("Stability check for {} at {} reads:  max change {}, max error {}.", run.sampleId, run.examined,
+                    maxChange, maxError);
+            if (run.stableCount >= STABLE_CHECKS) {
+                log.info("Hit proportions for {} are stable after {} good reads.", run.sampleId, run.examined);
+                run.stopped = true;
+            }
+        }
+    }
+
+    /**
+     * Queue a completed sample for output.  The samples are written in their original order, each one
+     * followed by its progress-file record, so a restart never sees a partial sample.
+     *
+     * @param run		completed sample run
+     */
+    private synchronized void commitSample(SampleRun run) {
+        this.pending.put(run.seq, run);
+        SampleRun next = this.pending.remove(this.nextSeq);
+        while (next != null) {
+            // Write the sample's output and make sure it is on disk before we record the sample as finished.
+            if (next.keptCount > 0) {
+                this.outStream.write(next.output);
+                this.outStream.flush();
+            } else
+                this.badSampleCount++;
+            if (this.progressExamined)
+                this.progressStream.format("%s\t%d\t%d%n", next.sampleId, next.keptCount, next.examined);
+            else
+                this.progressStream.format("%s\t%d%n", next.sampleId, next.keptCount);
+            this.progressStream.flush();
+            // The sample is finished, so its checkpoint is no longer needed.
+            this.checkpointFile(next.sampleId).delete();
+            if (this.metricsStream != null)
+                this.writeMetrics(next);
+            log.info("{} representatives kept out of {} found in sample {}.", next.keptCount, next.foundCount, next.sampleId);
+            this.sampleCount++;
+            log.info("PROGRESS:  {} samples processed, {} were bad.", this.sampleCount, this.badSampleCount);
+            this.nextSeq++;
+            next = this.pending.remove(this.nextSeq);
+        }
+    }
+
     /**
      * Prepare the output file.  If it is new, we write the header.  If we are resuming, we read in the
      * processed samples to get a list.
@@ -300,9 +868,11 @@ public class QzaReportProcessor extends BaseProcessor {
             try (PrintWriter writer = new PrintWriter(this.outFile)) {
                 writer.println("sample_id\trepgen_id\trepgen_name\tcount");
             }
-            // Initialize the progress stream.
+            // Initialize the progress stream.  The "examined" column is the number of good reads actually
+            // classified, which is less than the total if the sample stopped early.
             this.progressStream = new PrintWriter(this.progressFile);
-            this.progressStream.println("sample_id\treps");
+            this.progressStream.println("sample_id\treps\texamined");
+            this.progressExamined = true;
         } else if (! this.outFile.canRead())
             throw new FileNotFoundException("Output file " + this.outFile + " is not found or unreadable, but resume file exists.");
         else {
@@ -313,6 +883,11 @@ public class QzaReportProcessor extends BaseProcessor {
             try (TabbedLineReader progressStream = new TabbedLineReader(this.progressFile)) {
                 int sampleCol = progressStream.findField("sample_id");
                 int countCol = progressStream.findField("reps");
+                // A progress file from an older version has no "examined" column, so we must not add one.
+                this.progressExamined = (progressStream.findColumn("examined") >= 0);
+                if (! this.progressExamined)
+                    log.info("Progress file {} has the old format and will not record examined-read counts.",
+                            this.progressFile);
                 for (TabbedLineReader.Line line : progressStream) {
                     String sampleId = line.get(sampleCol);
                     int count = line.getInt(countCol);
@@ -321,6 +896,8 @@ public class QzaReportProcessor extends BaseProcessor {
                 }
             }
             log.info("{} samples already processed. {} were bad.", this.processed.size(), this.badSampleCount);
+            // Remove any output from a sample that was interrupted before it was recorded as finished.
+            this.removeUnfinishedSamples();
             // Set up to append to the progress stream.
             FileOutputStream outStream = new FileOutputStream(this.progressFile, true);
             this.progressStream = new PrintWriter(outStream);
@@ -333,50 +910,187 @@ public class QzaReportProcessor extends BaseProcessor {
     }
 
     /**
-     * Process a batch of reads.  The batch is cleared after processing so it can be used again.
+     * Open the metrics file, if metrics are being recorded.  If the file is new, we write the header.  Otherwise,
+     * we append to it.
+     *
+     * @return a writer for the metrics file, or NULL if metrics are not being recorded
+     *
+     * @throws IOException
+     */
+    private PrintWriter prepareMetrics() throws IOException {
+        PrintWriter retVal = null;
+        if (this.metricsFlag) {
+            File metricsFile = new File(this.outFile.getPath() + ".metrics.tbl");
+            boolean newFile = (! this.resumeFlag || ! metricsFile.exists());
+            log.info("Per-sample metrics will be written to {}.", metricsFile);
+            retVal = new PrintWriter(new FileOutputStream(metricsFile, ! newFile));
+            if (newFile) {
+                retVal.println("sample_id\treads\tgood\tbad\tshort\texamined\thits\telapsed_sec\treads_per_sec\t"
+                        + SampleMetrics.HEADER + "\tcache_hits\tcache_misses");
+                retVal.flush();
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Write the metrics for a completed sample.  The cache statistics are cumulative for the run, since the cache
+     * is shared by all the samples.
+     *
+     * @param run		completed sample run
+     */
+    private void writeMetrics(SampleRun run) {
+        double seconds = run.elapsed / 1000.0;
+        double speed = (seconds > 0 ? run.consumed / seconds : 0.0);
+        long cacheHits = 0;
+        long cacheMisses = 0;
+        if (this.hitCache != null) {
+            cacheHits = this.hitCache.getHits();
+            cacheMisses = this.hitCache.getMisses();
+        }
+        this.metricsStream.format("%s\t%d\t%d\t%d\t%d\t%d\t%d\t%.3f\t%.1f\t%s\t%d\t%d%n", run.sampleId,
+                run.consumed, run.readCount, run.badCount, run.shortCount, run.examined, run.hitCount, seconds,
+                speed, run.metrics.toLine(), cacheHits, cacheMisses);
+        this.metricsStream.flush();
+    }
+
+    /**
+     * Remove output lines for samples not listed in the progress file.  These can only come from a sample that
+     * was being written when the program was killed.  The output file is scanned a line at a time, and it is only
+     * rewritten if such lines are found.
+     *
+     * @throws IOException
+     */
+    private void removeUnfinishedSamples() throws IOException {
+        // Count the unfinished lines.
+        int removed = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(this.outFile))) {
+            // The header is always kept.
+            String line = reader.readLine();
+            if (line != null) {
+                line = reader.readLine();
+                while (line != null) {
+                    if (! this.isFinished(line))
+                        removed++;
+                    line = reader.readLine();
+                }
+            }
+        }
+        if (removed > 0) {
+            log.info("Removing {} output lines from unfinished samples.", removed);
+            // Copy the finished lines to a temporary file and move it into place.
+            File tempFile = new File(this.outFile.getPath() + ".tmp");
+            try (BufferedReader reader = new BufferedReader(new FileReader(this.outFile));
+                    PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(tempFile)))) {
+                String line = reader.readLine();
+                writer.println(line);
+                line = reader.readLine();
+                while (line != null) {
+                    if (this.isFinished(line))
+                        writer.println(line);
+                    line = reader.readLine();
+                }
+            }
+            Files.move(tempFile.toPath(), this.outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return TRUE if an output line belongs to a sample recorded as finished in the progress file
      *
+     * @param line		output line to check
+     */
+    private boolean isFinished(String line) {
+        return this.processed.contains(StringUtils.substringBefore(line, "\t"));
+    }
+
+    /**
+     * Submit a batch of reads to the classification workers.  This may block if the workers have fallen behind.
+     *
+     * @param run		sample run descriptor
+     * @param job		pipeline job for the current sample
      * @param batch		list of reads to process
+     * @param counter	hit counter for the sample
+     *
+     * @throws InterruptedException
+     */
+    private void submitBatch(SampleRun run, ReadPipeline.Job<AmpliconRead> job, List<AmpliconRead> batch, RepHitCounter counter)
+            throws InterruptedException {
+        if (run.metrics != null)
+            run.metrics.recordQueueDepth(job.getQueueDepth());
+        job.submit(batch);
+        // Display progress periodically.
+        long now = System.currentTimeMillis();
+        if (now - run.lastLog >= LOG_INTERVAL) {
+            run.lastLog = now;
+            log.info("{} reads queued for {}, {} good hits. {} reads/second.{}", run.readCount, run.sampleId,
+                    counter.total(), (1000.0 * run.readCount) / (now - run.start), this.cacheStats());
+        }
+    }
+
+    /**
+     * Display the processing speed for a sample.
+     *
+     * @param run		sample run descriptor
+     * @param pipeline	read-classification pipeline
      */
-    private void processBatch(List<SeqRead> batch) {
-        // We process the batch in parallel.
-        batch.parallelStream().forEach(x -> processRead(x));
-        // Display progress.
+    private void showProgress(SampleRun run, ReadPipeline<AmpliconRead> pipeline) {
         if (log.isInfoEnabled()) {
-            double speed = (1000.0 * this.readCount) / (System.currentTimeMillis() - this.start);
-            log.info("{} reads processed, {} good hits. {} reads/second.", this.readCount, this.goodCount, speed);
+            double speed = (1000.0 * run.readCount) / (System.currentTimeMillis() - run.start);
+            log.info("{} reads processed for {} by {} workers. {} reads/second.{}", run.readCount, run.sampleId,
+                    pipeline.getWorkerCount(), speed, this.cacheStats());
+        }
+    }
+
+    /**
+     * @return a string describing the duplicate-read cache hit and miss rates, or an empty string if there is no cache
+     */
+    private String cacheStats() {
+        String retVal = "";
+        if (this.hitCache != null) {
+            long hits = this.hitCache.getHits();
+            long misses = this.hitCache.getMisses();
+            retVal = String.format("  Cache: %d hits, %d misses, %4.1f%% hit rate.", hits, misses,
+                    this.hitCache.getHitRate() * 100.0);
         }
-        // Clear the batch to make room for more reads.
-        batch.clear();
+        return retVal;
     }
 
     /**
-     * Process a single read.  We find the read's repgen ID and record it in this object's data structures.
+     * Process a single read.  We find the read's repgen and record it in the sample's hit counter.
      *
      * @param read		read to process
+     * @param run		sample run descriptor for the read's sample
+     * @param counter	hit counter for the read's sample
      */
-    private void processRead(final SeqRead read) {
-        // Get the read's kmers.
-        SequenceKmers readKmers = read.new Kmers();
-        // Find the best repgen hit.
-        String repGenFound = null;
-        double bestHit = 0.0;
-        double readLen = read.length();
-        for (GenomeDescriptor desc : this.repgens) {
-            DnaKmers mapKmers = desc.getSsuKmers();
-            int simCount = readKmers.similarity(mapKmers);
-            double simFraction = simCount / readLen;
-            if (simFraction > bestHit) {
-                bestHit = simFraction;
-                repGenFound = desc.getId();
+    private void processRead(final AmpliconRead read, SampleRun run, RepHitCounter counter) {
+        final SampleMetrics metrics = run.metrics;
+        long mark = (metrics == null ? 0 : System.nanoTime());
+        // Find the best repgen hit.  If the read is a duplicate, we can get it from the cache.
+        long hit = ReadHitCache.MISS;
+        long key = 0;
+        if (this.hitCache != null) {
+            key = ReadHitCache.key(read.getLseq(), read.getRseq());
+            hit = this.hitCache.get(key);
+            if (metrics != null)
+                mark = metrics.addClassify(mark);
+        }
+        if (hit == ReadHitCache.MISS) {
+            hit = this.classifier.findGood(read);
+            int compared = this.classifier.getLastComparisons();
+            if (compared >= 0) {
+                run.searches.increment();
+                run.comparisons.add(compared);
             }
+            if (this.hitCache != null)
+                this.hitCache.put(key, hit);
+            if (metrics != null)
+                metrics.addClassify(mark);
         }
         // Is the best hit good enough?
-        if (bestHit >= this.minSimFraction) {
-            // Yes.  Count it.  This part must be synchronized so the method is thread-safe.
-            synchronized(this) {
-                this.goodCount++;
-                this.hitCounts.count(repGenFound);
-            }
+        if (this.classifier.isGood(hit, read.length())) {
+            // Yes.  Count it.  Each thread has its own counters, so no synchronization is needed.
+            counter.count(SsuClassifier.hitIdx(hit));
         }
     }
 
@@ -5,24 +5,40 @@ package org.theseed.binreports;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
-import org.theseed.io.TabbedLineReader;
 
 /**
  * This object describes a bin report.  It takes as input an ordered collection of feature IDs, and then reads the
  * sample information from a file.  The structures allows the client to iterate through the samples and retrieve
  * the feature arrays.
  *
+ * A file can be imported in two steps:  "parseFile" reads the file into a partial result without changing this
+ * object, and "merge" adds the partial result to the samples.  Parsing only reads the feature index, so several
+ * files can be parsed at once on different threads.  The partial results are then merged in file order, so the
+ * outcome is the same as if the files were imported one at a time.
+ *
+ * The files are read by a BinReportReader, and the feature IDs are resolved directly from the file bytes using an
+ * immutable feature index.
+ *
+ * The samples are kept in the order they were added, and are grouped by label.  For sequential processing, the
+ * scores for each label are available as a score matrix, with the samples' nonzero scores stored in contiguous
+ * arrays.  The matrices are built when first requested, and rebuilt if the samples change.
+ *
  * @author Bruce Parrello
  *
  */
@@ -31,12 +47,14 @@ public class BinReport implements Iterable<BinReport.Sample> {
     // FIELDS
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(BinReport.class);
-    /** map of sample IDs to samples */
+    /** map of sample IDs to samples, in the order added */
     private Map<String, Sample> sampleMap;
-    /** map of feature IDs to feature indices */
-    private Map<String, Integer> featureMap;
-    /** array of feature IDs, in order */
-    private String[] featureList;
+    /** map of labels to the samples for each label, in the order added */
+    private Map<String, Set<Sample>> labelMap;
+    /** map of labels to score matrices, or NULL if the matrices must be rebuilt */
+    private Map<String, ScoreMatrix> matrixMap;
+    /** index of feature IDs to feature indices */
+    private FeatureIndex featureIndex;
     /** minimum raw score for presence/absence scoring */
     private double minScore;
     /** number of ranking divisions to use for rank scoring */
@@ -45,9 +63,31 @@ public class BinReport implements Iterable<BinReport.Sample> {
     private static final double DEFAULT_MIN = 150.0;
     /** default number of ranking divisions */
     private static final int DEFAULT_DIVISIONS = 100;
+    /** maximum fraction of features with scores for a sample to be stored sparsely */
+    public static final double SPARSE_DENSITY = 0.25;
+
+    /**
+     * This interface is used to process the nonzero scores of a sample.
+     */
+    public interface ScoreConsumer {
+
+        /**
+         * Process a score.
+         *
+         * @param idx		feature index of the score
+         * @param score		value of the score
+         */
+        public void accept(int idx, double score);
+
+    }
 
     /**
-     * This object represents a single sample.
+     * This object represents a single sample.  Most samples only have scores for a small fraction of the features,
+     * so the scores are stored as parallel arrays of feature indices and values, sorted by index.  If the sample
+     * gets too dense, it switches to a full array of scores.
+     *
+     * When the score matrices are built, the sparse scores of each sample are moved into its label's matrix, and the
+     * sample refers to its slice of the matrix arrays.  A sample that is modified after that gets its own copy.
      */
     public class Sample {
 
@@ -55,8 +95,18 @@ public class BinReport implements Iterable<BinReport.Sample> {
         private String sampleId;
         /** label of the sample, indicating the condition of interest */
         private String label;
-        /** array of feature scores */
+        /** array of feature scores, or NULL if the sample is sparse */
         private double[] scores;
+        /** sorted feature indices of the stored scores (sparse only) */
+        private int[] indices;
+        /** stored scores, parallel to "indices" (sparse only) */
+        private double[] values;
+        /** position of the first stored score in "indices" and "values" (sparse only) */
+        private int base;
+        /** number of stored scores (sparse only) */
+        private int nStored;
+        /** TRUE if the sparse arrays belong to a score matrix */
+        private boolean shared;
 
         /**
          * Create a new, empty sample.
@@ -67,9 +117,32 @@ public class BinReport implements Iterable<BinReport.Sample> {
         protected Sample(String id, String condition) {
             this.sampleId = id;
             this.label = condition;
-            // Create an empty array of feature scores.
-            this.scores = new double[BinReport.this.featureMap.size()];
-            Arrays.fill(scores, 0.0);
+            // Start with an empty sparse score list.
+            this.scores = null;
+            this.indices = new int[0];
+            this.values = new double[0];
+            this.base = 0;
+            this.nStored = 0;
+            this.shared = false;
+        }
+
+        /**
+         * Create a new sample from a set of parsed scores.
+         *
+         * @param id			sample ID
+         * @param condition		sample label
+         * @param row			parsed scores for the sample
+         */
+        protected Sample(String id, String condition, ScoreRow row) {
+            this.sampleId = id;
+            this.label = condition;
+            row.combine();
+            this.indices = row.indices;
+            this.values = row.values;
+            this.base = 0;
+            this.nStored = row.size;
+            this.shared = false;
+            this.checkDensity();
         }
 
         /**
@@ -82,10 +155,137 @@ public class BinReport implements Iterable<BinReport.Sample> {
          */
         protected void setScore(String featureId, double score) throws IOException {
             // Find the feature and store this score in its array position.
-            int idx = BinReport.this.featureMap.getOrDefault(featureId, -1);
+            int idx = BinReport.this.featureIndex.find(featureId);
             if (idx < 0)
                 throw new IOException("Feature ID " + featureId + " for sample " + this.sampleId + " is not valid.");
-            this.scores[idx] += score;
+            this.addScore(idx, score);
+        }
+
+        /**
+         * Add a score to a feature.
+         *
+         * @param idx		index of the feature
+         * @param score		score to add
+         */
+        private void addScore(int idx, double score) {
+            this.prepareUpdate();
+            if (this.scores != null)
+                this.scores[idx] += score;
+            else {
+                int pos = Arrays.binarySearch(this.indices, 0, this.nStored, idx);
+                if (pos >= 0)
+                    this.values[pos] += score;
+                else {
+                    // Here we must insert a new score.
+                    pos = -pos - 1;
+                    if (this.nStored >= this.indices.length) {
+                        int newLen = Math.max(8, this.nStored * 2);
+                        this.indices = Arrays.copyOf(this.indices, newLen);
+                        this.values = Arrays.copyOf(this.values, newLen);
+                    }
+                    final int tail = this.nStored - pos;
+                    System.arraycopy(this.indices, pos, this.indices, pos + 1, tail);
+                    System.arraycopy(this.values, pos, this.values, pos + 1, tail);
+                    this.indices[pos] = idx;
+                    this.values[pos] = 0.0 + score;
+                    this.nStored++;
+                    this.checkDensity();
+                }
+            }
+        }
+
+        /**
+         * Add a set of parsed scores to this sample.  The row's scores for each feature are added to the sample's
+         * score one at a time in the order read, so the sums are exactly the same as adding the lines one by one.
+         *
+         * @param row		sorted parsed scores to add
+         */
+        protected void addScores(ScoreRow row) {
+            this.prepareUpdate();
+            if (this.scores != null) {
+                for (int k = 0; k < row.size; k++)
+                    this.scores[row.indices[k]] += row.values[k];
+            } else {
+                // Merge the two sorted lists.  The row can have several scores for a feature.
+                final int n = this.nStored;
+                int[] newIndices = new int[n + row.size];
+                double[] newValues = new double[n + row.size];
+                int i = 0;
+                int k = 0;
+                int out = 0;
+                while (i < n || k < row.size) {
+                    if (k >= row.size || i < n && this.indices[i] < row.indices[k]) {
+                        newIndices[out] = this.indices[i];
+                        newValues[out] = this.values[i];
+                        i++;
+                    } else {
+                        // Here we are adding the row's scores for a feature to the old score, if any.
+                        final int idx = row.indices[k];
+                        double sum = 0.0;
+                        if (i < n && this.indices[i] == idx) {
+                            sum = this.values[i];
+                            i++;
+                        }
+                        while (k < row.size && row.indices[k] == idx) {
+                            sum += row.values[k];
+                            k++;
+                        }
+                        newIndices[out] = idx;
+                        newValues[out] = sum;
+                    }
+                    out++;
+                }
+                this.indices = newIndices;
+                this.values = newValues;
+                this.nStored = out;
+                this.checkDensity();
+            }
+        }
+
+        /**
+         * Prepare this sample for a change to its scores.  The score matrices are invalidated, and if the sparse
+         * arrays belong to a score matrix, the sample gets its own copy, with the scores starting at position 0.
+         */
+        private void prepareUpdate() {
+            BinReport.this.invalidateMatrices();
+            if (this.shared) {
+                this.indices = Arrays.copyOfRange(this.indices, this.base, this.base + this.nStored);
+                this.values = Arrays.copyOfRange(this.values, this.base, this.base + this.nStored);
+                this.base = 0;
+                this.shared = false;
+            }
+        }
+
+        /**
+         * Point this sample's sparse scores at a slice of a score matrix.
+         *
+         * @param indices	matrix feature index array
+         * @param values	matrix score array
+         * @param start		position of the sample's first score
+         * @param len		number of scores for the sample
+         */
+        protected void share(int[] indices, double[] values, int start, int len) {
+            this.indices = indices;
+            this.values = values;
+            this.base = start;
+            this.nStored = len;
+            this.shared = true;
+        }
+
+        /**
+         * Switch to a full score array if too many features have scores.
+         */
+        private void checkDensity() {
+            final int width = BinReport.this.width();
+            if (this.scores == null && this.nStored > width * SPARSE_DENSITY) {
+                double[] full = new double[width];
+                this.copyScores(full);
+                this.scores = full;
+                this.indices = null;
+                this.values = null;
+                this.base = 0;
+                this.nStored = 0;
+            }
         }
 
         /**
@@ -103,14 +303,232 @@ public class BinReport implements Iterable<BinReport.Sample> {
         }
 
         /**
-         * @return the array of scores
+         * @return the array of scores; for a sparse sample, this is a new array
          */
         public double[] getScores() {
-            return this.scores;
+            double[] retVal = this.scores;
+            if (retVal == null) {
+                retVal = new double[BinReport.this.width()];
+                this.copyScores(retVal);
+            }
+            return retVal;
+        }
+
+        /**
+         * Copy the scores into an array.  Features with no score are set to 0.
+         *
+         * @param target	array to receive the scores, with one entry per feature
+         */
+        public void copyScores(double[] target) {
+            if (this.scores != null)
+                System.arraycopy(this.scores, 0, target, 0, this.scores.length);
+            else {
+                Arrays.fill(target, 0.0);
+                final int end = this.base + this.nStored;
+                for (int k = this.base; k < end; k++)
+                    target[this.indices[k]] = this.values[k];
+            }
+        }
+
+        /**
+         * Pass each nonzero score to a consumer, in feature order.
+         *
+         * @param consumer		consumer to receive the feature indices and scores
+         */
+        public void forEachNonZero(ScoreConsumer consumer) {
+            if (this.scores != null) {
+                for (int i = 0; i < this.scores.length; i++) {
+                    if (this.scores[i] != 0.0)
+                        consumer.accept(i, this.scores[i]);
+                }
+            } else {
+                final int end = this.base + this.nStored;
+                for (int k = this.base; k < end; k++) {
+                    if (this.values[k] != 0.0)
+                        consumer.accept(this.indices[k], this.values[k]);
+                }
+            }
+        }
+
+        /**
+         * @return the number of nonzero scores in this sample
+         */
+        public int getNonZeroCount() {
+            int retVal = 0;
+            if (this.scores != null) {
+                for (double score : this.scores) {
+                    if (score != 0.0) retVal++;
+                }
+            } else {
+                final int end = this.base + this.nStored;
+                for (int k = this.base; k < end; k++) {
+                    if (this.values[k] != 0.0) retVal++;
+                }
+            }
+            return retVal;
+        }
+
+        /**
+         * @return TRUE if this sample's scores are stored sparsely
+         */
+        public boolean isSparse() {
+            return (this.scores == null);
         }
 
     }
 
+    /**
+     * This object accumulates the scores for a sample while a file is being parsed.  The scores are kept in the order
+     * read, and then sorted when the file is finished.  A feature can have several scores in the row, which are only
+     * combined when the row becomes a new sample.  When the row is added to an existing sample, the scores are added
+     * one at a time, so the sums are the same as if the lines were added in order.
+     */
+    protected static class ScoreRow {
+
+        /** feature indices */
+        private int[] indices;
+        /** scores, parallel to "indices" */
+        private double[] values;
+        /** number of scores stored */
+        private int size;
+
+        /**
+         * Create an empty score row.
+         */
+        protected ScoreRow() {
+            this.indices = new int[16];
+            this.values = new double[16];
+            this.size = 0;
+        }
+
+        /**
+         * Create a score row from compacted scores.
+         *
+         * @param indices	feature indices, sorted with no duplicates
+         * @param values	scores, parallel to the indices
+         */
+        protected ScoreRow(int[] indices, double[] values) {
+            this.indices = indices;
+            this.values = values;
+            this.size = indices.length;
+        }
+
+        /**
+         * Add a score to this row.
+         *
+         * @param idx		feature index
+         * @param score		score to add
+         */
+        protected void add(int idx, double score) {
+            if (this.size >= this.indices.length) {
+                this.indices = Arrays.copyOf(this.indices, this.size * 2);
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.indices[this.size] = idx;
+            this.values[this.size] = score;
+            this.size++;
+        }
+
+        /**
+         * Sort the scores by feature index.  The sort is stable, so each feature's scores stay in the order read.
+         */
+        protected void sort() {
+            long[] keys = new long[this.size];
+            for (int k = 0; k < this.size; k++)
+                keys[k] = ((long) this.indices[k] << 32) | k;
+            Arrays.sort(keys);
+            int[] newIndices = new int[this.size];
+            double[] newValues = new double[this.size];
+            for (int k = 0; k < this.size; k++) {
+                newIndices[k] = (int) (keys[k] >>> 32);
+                newValues[k] = this.values[(int) keys[k]];
+            }
+            this.indices = newIndices;
+            this.values = newValues;
+        }
+
+        /**
+         * Combine the scores for each feature of a sorted row.  Each feature's scores are added in the order read,
+         * just as they would be in a full array.
+         */
+        protected void combine() {
+            int out = -1;
+            for (int k = 0; k < this.size; k++) {
+                final int idx = this.indices[k];
+                if (out >= 0 && this.indices[out] == idx)
+                    this.values[out] += this.values[k];
+                else {
+                    out++;
+                    this.indices[out] = idx;
+                    this.values[out] = 0.0 + this.values[k];
+                }
+            }
+            if (out + 1 < this.size) {
+                this.size = out + 1;
+                this.indices = Arrays.copyOf(this.indices, this.size);
+                this.values = Arrays.copyOf(this.values, this.size);
+            }
+        }
+
+    }
+
+    /**
+     * This object contains the samples parsed from a single bin report file, before they are merged into the
+     * bin report.
+     */
+    public static class Partial {
+
+        /** condition label for the samples */
+        private String label;
+        /** file from which the samples were read */
+        private File file;
+        /** map of sample IDs to parsed scores, in order of first appearance */
+        private Map<String, ScoreRow> sampleScores;
+        /** number of data lines read */
+        private int lineCount;
+
+        /**
+         * Create an empty partial result.
+         *
+         * @param label		condition label for the samples
+         * @param file		file being parsed
+         */
+        protected Partial(String label, File file) {
+            this.label = label;
+            this.file = file;
+            this.sampleScores = new LinkedHashMap<String, ScoreRow>();
+            this.lineCount = 0;
+        }
+
+        /**
+         * @return the condition label for the samples
+         */
+        public String getLabel() {
+            return this.label;
+        }
+
+        /**
+         * @return the file that was parsed
+         */
+        public File getFile() {
+            return this.file;
+        }
+
+        /**
+         * @return the IDs of the samples found, in order of first appearance
+         */
+        public Set<String> getSampleIds() {
+            return Collections.unmodifiableSet(this.sampleScores.keySet());
+        }
+
+        /**
+         * @return the number of samples found
+         */
+        public int size() {
+            return this.sampleScores.size();
+        }
+
+    }
 
     /**
      * Construct a new bin report for a feature ID set.
@@ -120,18 +538,12 @@ public class BinReport implements Iterable<BinReport.Sample> {
      * @throws ParseFailureException
      */
     public BinReport(Collection<String> featureIDs) throws ParseFailureException {
-        // We need to run through the feature IDs, building the index map.
-        this.featureMap = new HashMap<String, Integer>(featureIDs.size() * 4 / 3 + 1);
-        this.featureList = new String[featureIDs.size()];
-        for (String featureId : featureIDs) {
-            if (this.featureMap.containsKey(featureId))
-                throw new ParseFailureException("Duplicate feature ID \"" + featureId + " in bin report feature ID list.");
-            int idx = this.featureMap.size();
-            this.featureMap.put(featureId, idx);
-            this.featureList[idx] = featureId;
-        }
-        // Create the sample map.
-        this.sampleMap = new HashMap<String, Sample>(250);
+        // Build the feature index.  This fails if there is a duplicate feature ID.
+        this.featureIndex = new FeatureIndex(featureIDs);
+        // Create the sample maps.
+        this.sampleMap = new LinkedHashMap<String, Sample>(250);
+        this.labelMap = new LinkedHashMap<String, Set<Sample>>();
+        this.matrixMap = null;
         // Set the score-normalization tuning parameters.
         this.minScore = DEFAULT_MIN;
         this.divisions = DEFAULT_DIVISIONS;
@@ -141,7 +553,7 @@ public class BinReport implements Iterable<BinReport.Sample> {
      * @return the number of features for this bin report sample set
      */
     public int width() {
-        return this.featureMap.size();
+        return this.featureIndex.size();
     }
 
     /**
@@ -155,19 +567,14 @@ public class BinReport implements Iterable<BinReport.Sample> {
      * @return a list of the feature IDs, in order
      */
     public String[] getHeadings() {
-        // Create a blank array.
-        String[] retVal = new String[this.width()];
-        // Fill in the feature IDs, each appearing in its computed position.
-        for (var featEntry : this.featureMap.entrySet())
-            retVal[featEntry.getValue()] = featEntry.getKey();
-        return retVal;
+        return this.featureIndex.getIds();
     }
 
     /**
      * @return the array index of the feature with the specified ID
      */
     public int getFeatureIdx(String featureId) {
-        int retVal = this.featureMap.getOrDefault(featureId, -1);
+        int retVal = this.featureIndex.find(featureId);
         if (retVal < 0)
             throw new IllegalArgumentException("Invalid feature ID \"" + featureId + "\" in bin report query.");
         return retVal;
@@ -187,46 +594,256 @@ public class BinReport implements Iterable<BinReport.Sample> {
      * @throws IOException
      */
     public void processFile(String label, File file) throws IOException {
-        // Open the file and do a quick verification.
-        try (TabbedLineReader fileStream = new TabbedLineReader(file)) {
-            log.info("Processing bin report file {} with label {}.", file, label);
-            int sampleIdIdx = fileStream.findField("sample_id");
-            int groupIdx = fileStream.findColumn("rep_id");
-            if (groupIdx < 0)
-                groupIdx = fileStream.findField("repgen_id");
-            // We allow either "count" or "score" for the last column.
-            int scoreIdx = fileStream.findColumn("count");
-            if (scoreIdx < 0)
-                scoreIdx = fileStream.findField("score");
-            // Loop through the data lines.Denote we have no sample yet.
-            int lineIn = 0;
-            for (var line : fileStream) {
-                String sampleId = line.get(sampleIdIdx);
-                Sample sample = this.sampleMap.computeIfAbsent(sampleId, x -> new Sample(x, label));
-                String featureId = line.get(groupIdx);
-                double score = line.getDouble(scoreIdx);
-                sample.setScore(featureId, score);
-                lineIn++;
+        this.merge(this.parseFile(label, file));
+    }
+
+    /**
+     * Parse a bin report file into a partial result.  This method does not modify the bin report, so it can be called
+     * from multiple threads at once.
+     *
+     * @param label		condition label to use for all samples
+     * @param file		report file to process
+     *
+     * @return the partial result containing the file's samples
+     *
+     * @throws IOException
+     */
+    public Partial parseFile(String label, File file) throws IOException {
+        Partial retVal = new Partial(label, file);
+        // The samples are resolved from the file bytes.  Each distinct sample gets an ordinal and a score row.
+        ByteKeyMap sampleKeys = new ByteKeyMap(250);
+        List<ScoreRow> rows = new ArrayList<ScoreRow>();
+        log.info("Processing bin report file {} with label {}.", file, label);
+        try (BinReportReader reader = new BinReportReader(file)) {
+            // Loop through the data lines.  The reader's buffer can change when it is refilled.
+            while (reader.next()) {
+                final byte[] buffer = reader.getBuffer();
+                int sampleIdx = sampleKeys.findOrAdd(buffer, reader.getSampleStart(), reader.getSampleLen());
+                if (sampleIdx >= rows.size())
+                    rows.add(new ScoreRow());
+                int idx = this.featureIndex.find(buffer, reader.getFeatureStart(), reader.getFeatureLen());
+                if (idx < 0)
+                    throw new IOException("Feature ID " + reader.getFeatureId() + " for sample " + reader.getSampleId()
+                            + " is not valid.");
+                rows.get(sampleIdx).add(idx, reader.getScore());
             }
-            log.info("{} lines read from file {} for label {}.", lineIn, file, label);
+            // Save the samples in order of first appearance.
+            for (int i = 0; i < rows.size(); i++) {
+                ScoreRow row = rows.get(i);
+                row.sort();
+                retVal.sampleScores.put(sampleKeys.getKey(i), row);
+            }
+            retVal.lineCount = reader.getLineCount();
+            log.info("{} lines read from file {} for label {}.", retVal.lineCount, file, label);
         }
+        return retVal;
     }
 
     /**
-     * @return the list of condition labels for these samples
+     * Check whether the samples in a bin report file are grouped together, that is, each sample's lines are
+     * contiguous.  The sample IDs found are added to a map, and a sample ID already in the map from a previous file
+     * also counts as a grouping failure.
+     *
+     * @param file		bin report file to check
+     * @param seenIds	map of sample IDs found so far; the IDs in the file will be added
+     *
+     * @return TRUE if the file's samples are grouped and none were found previously, else FALSE
+     *
+     * @throws IOException
      */
-    public Set<String> getLabels() {
-        Set<String> retVal = this.sampleMap.values().stream().map(x -> x.getLabel()).collect(Collectors.toSet());
+    public static boolean checkGrouping(File file, ByteKeyMap seenIds) throws IOException {
+        boolean retVal = true;
+        try (BinReportReader reader = new BinReportReader(file)) {
+            int current = -1;
+            while (retVal && reader.next()) {
+                final byte[] buffer = reader.getBuffer();
+                final int start = reader.getSampleStart();
+                final int len = reader.getSampleLen();
+                if (current < 0 || seenIds.find(buffer, start, len) != current) {
+                    // Here we have a new sample.  It must not have been seen before.
+                    final int oldSize = seenIds.size();
+                    current = seenIds.findOrAdd(buffer, start, len);
+                    if (current < oldSize) {
+                        log.info("Sample {} in {} is not grouped or was found in an earlier file.",
+                                reader.getSampleId(), file);
+                        retVal = false;
+                    }
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Stream the samples from a bin report file whose samples are grouped together.  Each sample is passed to the
+     * consumer as soon as its last line is read, and the samples are not stored in this bin report, so only one
+     * sample is in memory at a time.  The file must have been verified by "checkGrouping".
+     *
+     * @param label		condition label to use for all samples
+     * @param file		report file to process
+     * @param consumer	consumer to receive the samples
+     *
+     * @return the number of samples streamed
+     *
+     * @throws IOException
+     */
+    public int streamFile(String label, File file, Consumer<Sample> consumer) throws IOException {
+        int retVal = 0;
+        log.info("Streaming bin report file {} with label {}.", file, label);
+        try (BinReportReader reader = new BinReportReader(file)) {
+            String sampleId = null;
+            byte[] sampleKey = null;
+            ScoreRow row = null;
+            while (reader.next()) {
+                final byte[] buffer = reader.getBuffer();
+                final int start = reader.getSampleStart();
+                final int len = reader.getSampleLen();
+                if (sampleKey == null || ! Arrays.equals(sampleKey, 0, sampleKey.length, buffer, start, start + len)) {
+                    // Here we are starting a new sample.  Output the old one.
+                    if (row != null) {
+                        this.releaseSample(sampleId, label, row, consumer);
+                        retVal++;
+                    }
+                    sampleKey = Arrays.copyOfRange(buffer, start, start + len);
+                    sampleId = reader.getSampleId();
+                    row = new ScoreRow();
+                }
+                int idx = this.featureIndex.find(buffer, reader.getFeatureStart(), reader.getFeatureLen());
+                if (idx < 0)
+                    throw new IOException("Feature ID " + reader.getFeatureId() + " for sample " + sampleId
+                            + " is not valid.");
+                row.add(idx, reader.getScore());
+            }
+            if (row != null) {
+                this.releaseSample(sampleId, label, row, consumer);
+                retVal++;
+            }
+            log.info("{} samples streamed from {} lines of file {}.", retVal, reader.getLineCount(), file);
+        }
         return retVal;
     }
 
     /**
-     * @return the set of samples for a specified condition label
+     * Pass a completed sample to a streaming consumer.
+     *
+     * @param sampleId	ID of the sample
+     * @param label		condition label of the sample
+     * @param row		scores read for the sample
+     * @param consumer	consumer to receive the sample
+     */
+    private void releaseSample(String sampleId, String label, ScoreRow row, Consumer<Sample> consumer) {
+        row.sort();
+        consumer.accept(new Sample(sampleId, label, row));
+    }
+
+    /**
+     * Merge a partial result into this bin report.  Samples already present keep their original labels, and the
+     * new scores are added to them.
+     *
+     * @param partial	partial result to merge
+     */
+    public void merge(Partial partial) {
+        for (Map.Entry<String, ScoreRow> sampleEntry : partial.sampleScores.entrySet()) {
+            final String sampleId = sampleEntry.getKey();
+            Sample sample = this.sampleMap.get(sampleId);
+            if (sample == null)
+                this.storeSample(new Sample(sampleId, partial.label, sampleEntry.getValue()));
+            else
+                sample.addScores(sampleEntry.getValue());
+        }
+        log.debug("{} samples from {} lines of {} merged.", partial.size(), partial.lineCount, partial.file);
+    }
+
+    /**
+     * Merge a partial result into this bin report when appending to samples loaded earlier (usually from a cache).
+     * A sample in the partial result can already have been added by another appended file, but it cannot be one of
+     * the old samples.
+     *
+     * @param partial	partial result to merge
+     * @param oldIds	set of IDs for the samples that were present before appending
+     *
+     * @throws IOException if the partial result contains one of the old samples
+     */
+    public void mergeNew(Partial partial, Set<String> oldIds) throws IOException {
+        for (String sampleId : partial.sampleScores.keySet()) {
+            if (oldIds.contains(sampleId))
+                throw new IOException("Sample " + sampleId + " in file " + partial.file
+                        + " is already in the bin report and cannot be appended.");
+        }
+        this.merge(partial);
+    }
+
+    /**
+     * Add a new sample with precomputed scores.
+     *
+     * @param sampleId	ID of the new sample
+     * @param label		condition label for the new sample
+     * @param row		compacted scores for the new sample
+     *
+     * @throws IOException
+     */
+    protected void addSample(String sampleId, String label, ScoreRow row) throws IOException {
+        if (this.sampleMap.containsKey(sampleId))
+            throw new IOException("Duplicate sample ID \"" + sampleId + "\" in bin report.");
+        this.storeSample(new Sample(sampleId, label, row));
+    }
+
+    /**
+     * Store a new sample in the sample maps.
+     *
+     * @param sample	sample to store
+     */
+    private void storeSample(Sample sample) {
+        this.sampleMap.put(sample.getSampleId(), sample);
+        this.labelMap.computeIfAbsent(sample.getLabel(), x -> new LinkedHashSet<Sample>()).add(sample);
+        this.invalidateMatrices();
+    }
+
+    /**
+     * Denote that the score matrices must be rebuilt.
+     */
+    private synchronized void invalidateMatrices() {
+        this.matrixMap = null;
+    }
+
+    /**
+     * @return the score matrix for the samples with a specified label, or NULL if there are no such samples
+     *
+     * @param label		label of the desired samples
+     */
+    public synchronized ScoreMatrix getScoreMatrix(String label) {
+        if (this.matrixMap == null) {
+            // Build all the matrices.
+            Map<String, ScoreMatrix> matrices = new HashMap<String, ScoreMatrix>(this.labelMap.size() * 4 / 3 + 1);
+            for (Map.Entry<String, Set<Sample>> labelEntry : this.labelMap.entrySet()) {
+                Sample[] samples = labelEntry.getValue().stream().toArray(Sample[]::new);
+                String matrixLabel = labelEntry.getKey();
+                matrices.put(matrixLabel, ScoreMatrix.build(matrixLabel, samples, this.width()));
+            }
+            this.matrixMap = matrices;
+            log.debug("Score matrices built for {} labels.", matrices.size());
+        }
+        return this.matrixMap.get(label);
+    }
+
+    /**
+     * @return the set of condition labels for these samples, in the order first added (read-only)
+     */
+    public Set<String> getLabels() {
+        return Collections.unmodifiableSet(this.labelMap.keySet());
+    }
+
+    /**
+     * @return the set of samples for a specified condition label, in the order added (read-only)
      *
      * @param label		condition label whose samples are desired
      */
     public Set<Sample> getSamplesForLabel(String label) {
-        Set<Sample> retVal = this.sampleMap.values().stream().filter(x -> x.getLabel().contentEquals(label)).collect(Collectors.toSet());
+        Set<Sample> retVal = this.labelMap.get(label);
+        if (retVal == null)
+            retVal = Collections.emptySet();
+        else
+            retVal = Collections.unmodifiableSet(retVal);
         return retVal;
     }
 
@@ -277,7 +894,7 @@ public class BinReport implements Iterable<BinReport.Sample> {
      * @param idx		index of the desired column
      */
     public String getIdxFeature(int idx) {
-        return this.featureList[idx];
+        return this.featureIndex.getId(idx);
     }
 
 }
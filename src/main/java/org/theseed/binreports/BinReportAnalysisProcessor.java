@@ -5,6 +5,10 @@ package org.theseed.binreports;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +48,16 @@ import org.theseed.utils.BaseBinReportsProcessor;
  * --format		output format (default XMATRIX)
  * --clear		if specified, the output directory will be erased before processing
  * --divisions	number of divisions for RANK score normalization (default 100)
+ * --stream		if specified, samples are normalized and written one at a time instead of being loaded into memory
+ * 				(TESTFILE, CSVFILE, and XMATRIX formats only; if the samples in the input files are not grouped
+ * 				together by sample ID, the samples are loaded into memory as usual); each input file is read
+ * 				twice, once to verify the grouping and once to stream the samples; this option cannot be used
+ * 				with "--cache" or "--append"
+ *
+ * When "--append" is specified, the TESTFILE, CSVFILE, and XMATRIX formats add the new samples to the existing output
+ * files if possible.  If the new samples have new labels, or the existing output has different columns or was
+ * normalized with a different method, minimum score, or number of divisions, all the output is regenerated.  The
+ * other formats are always regenerated from the full sample set.
  *
  * @author Bruce Parrello
  *
@@ -96,6 +110,10 @@ public class BinReportAnalysisProcessor extends BaseBinReportsProcessor implemen
     @Option(name = "--divisions", aliases = { "-N" }, usage = "number of quantile divisions for rank normalization")
     private int divisions;
 
+    /** if specified, the samples will be streamed rather than loaded into memory */
+    @Option(name = "--stream", usage = "if specified, process one sample at a time (requires grouped input files)")
+    private boolean streamFlag;
+
     @Override
     protected void setBinReportDefaults() {
         this.minScore = 1500.0;
@@ -107,6 +125,7 @@ public class BinReportAnalysisProcessor extends BaseBinReportsProcessor implemen
         this.negLabel = null;
         this.clearFlag = false;
         this.divisions = 100;
+        this.streamFlag = false;
     }
 
     @Override
@@ -132,18 +151,68 @@ public class BinReportAnalysisProcessor extends BaseBinReportsProcessor implemen
             log.info("Output file name specified.  Output directory set to {}.", this.outDir);
         } else
             this.outFileName = null;
+        // Validate streaming.  This must be done before the output directory is touched.
+        if (this.streamFlag && ! this.outputType.isStreamable())
+            throw new ParseFailureException("Output format " + this.outputType + " cannot be streamed.");
+        if (this.streamFlag && this.isAppending())
+            throw new ParseFailureException("Streaming is not supported when appending.");
+        if (this.streamFlag && this.getCacheFile() != null)
+            throw new ParseFailureException("Streaming cannot be used with a cache file.");
         // Create the report writer.  This has to be done last, to insure all the parameter values are filled in.
         // It is here that the output directory is initialized and cleared.
         this.reportWriter = this.outputType.create(this);
     }
 
+    @Override
+    protected boolean runStreamingAnalysis(BinReport sampleData) throws Exception {
+        boolean retVal = false;
+        if (this.streamFlag) {
+            // Verify the files are grouped by sample, and find the labels that have samples.  This means each file
+            // is read twice, but the pre-scan does no parsing of scores and keeps only the sample IDs in memory.
+            List<String> labels = this.getLabels();
+            List<File> inFiles = this.getInFiles();
+            ByteKeyMap seenIds = new ByteKeyMap(1000);
+            Set<String> usedLabels = new HashSet<String>();
+            boolean grouped = true;
+            for (int i = 0; grouped && i < inFiles.size(); i++) {
+                final int oldSize = seenIds.size();
+                grouped = BinReport.checkGrouping(inFiles.get(i), seenIds);
+                if (seenIds.size() > oldSize)
+                    usedLabels.add(labels.get(i));
+            }
+            if (! grouped)
+                log.warn("Input files are not grouped by sample.  Samples will be loaded into memory.");
+            else {
+                log.info("{} samples will be streamed.", seenIds.size());
+                // Store the normalization tuning parameters.
+                sampleData.setMinScore(this.minScore);
+                sampleData.setDivisions(this.divisions);
+                // Stream the files one label at a time.
+                this.reportWriter.startStream(sampleData, usedLabels);
+                for (String label : this.reportWriter.getLabels()) {
+                    for (int i = 0; i < inFiles.size(); i++) {
+                        if (labels.get(i).equals(label))
+                            sampleData.streamFile(label, inFiles.get(i), x -> this.reportWriter.streamSample(x));
+                    }
+                }
+                this.reportWriter.finishStream();
+                retVal = true;
+            }
+        }
+        return retVal;
+    }
+
     @Override
     protected void runBinReportAnalysis(BinReport sampleData) throws Exception {
         // Store the normalization tuning parameters.
         sampleData.setMinScore(this.minScore);
         sampleData.setDivisions(this.divisions);
-        // Process the report.
-        this.reportWriter.process(sampleData);
+        // Process the report.  When appending, we try to add only the new samples.
+        boolean done = false;
+        if (this.isAppending())
+            done = this.reportWriter.appendSamples(sampleData, this.getOldLabels(), this.getNewSamples());
+        if (! done)
+            this.reportWriter.process(sampleData);
     }
 
     @Override
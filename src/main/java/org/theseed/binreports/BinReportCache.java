@@ -0,0 +1,494 @@
+/**
+ *
+ */
+package org.theseed.binreports;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class reads and writes binary caches of imported bin report data.  A cache holds the feature IDs, the sample
+ * IDs and labels, and the nonzero scores of each sample, so that a later run can load the samples without parsing
+ * the bin report files again.  The cache is memory-mapped when it is loaded.
+ *
+ * Each cache contains a fingerprint of its inputs:  one entry for the feature ID file and one for each label/file
+ * pair, containing the label, the file's path, its size, and its modification time.  A cache whose fingerprint does
+ * not match the current inputs is stale, and is ignored.  A cache that is truncated or corrupt is also treated as
+ * stale.  Before a stale cache is rebuilt, the client should use
+ * "findLostInputs" to make sure the rebuild will not drop samples from files that are no longer being imported,
+ * which is usually a sign that the cache was extended by appending.
+ *
+ * The file begins with an eight-byte magic number and the format version.  Next come the fingerprint entries, the
+ * feature IDs, and the sample IDs and labels, each list preceded by its length and each string stored as a byte
+ * length followed by UTF-8 bytes.  The scores are stored in columns:  an array of the offset of each sample's first
+ * score (plus a final offset for the end), an array of the feature indices of all the scores, and an array of the
+ * score values.  Each column is preceded by padding to an eight-byte boundary.  All numbers are big-endian.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BinReportCache {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(BinReportCache.class);
+    /** magic number identifying a bin report cache ("BINRPTDB") */
+    public static final long MAGIC = 0x42494E5250544442L;
+    /** current format version */
+    public static final int VERSION = 1;
+
+    /**
+     * This is a static utility class.
+     */
+    private BinReportCache() { }
+
+    /**
+     * Compute the fingerprint of a set of bin report inputs.
+     *
+     * @param featFile		feature ID file
+     * @param labels		list of condition labels
+     * @param inFiles		list of bin report files, parallel to the labels
+     *
+     * @return a list of fingerprint entries, one for the feature file and one for each label/file pair
+     */
+    public static List<String> fingerprint(File featFile, List<String> labels, List<File> inFiles) {
+        List<String> retVal = new ArrayList<String>(labels.size() + 1);
+        retVal.add(fingerprintEntry("", featFile));
+        for (int i = 0; i < labels.size(); i++)
+            retVal.add(fingerprintEntry(labels.get(i), inFiles.get(i)));
+        return retVal;
+    }
+
+    /**
+     * @return the fingerprint entry for a single input file
+     *
+     * @param label		label associated with the file
+     * @param file		input file
+     */
+    public static String fingerprintEntry(String label, File file) {
+        return label + "\t" + file.getAbsolutePath() + "\t" + file.length() + "\t" + file.lastModified();
+    }
+
+    /**
+     * Write a bin report to a cache file.  The file is written to a temporary file and then moved into place, so a
+     * failed write leaves any previous cache intact.
+     *
+     * @param data			bin report to save
+     * @param fingerprint	fingerprint of the inputs used to build the bin report
+     * @param file			output file
+     *
+     * @throws IOException
+     */
+    public static void save(BinReport data, List<String> fingerprint, File file) throws IOException {
+        final int width = data.width();
+        final int n = data.size();
+        // Freeze the sample order and compute the score offsets.
+        List<BinReport.Sample> samples = new ArrayList<BinReport.Sample>(n);
+        int[] offsets = new int[n + 1];
+        for (BinReport.Sample sample : data) {
+            offsets[samples.size() + 1] = offsets[samples.size()] + sample.getNonZeroCount();
+            samples.add(sample);
+        }
+        final int total = offsets[n];
+        log.info("Writing {} samples with {} scores to cache file {}.", n, total, file);
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            // Write the header.
+            outStream.writeLong(MAGIC);
+            outStream.writeInt(VERSION);
+            outStream.writeInt(fingerprint.size());
+            for (String entry : fingerprint)
+                writeString(outStream, entry);
+            outStream.writeInt(width);
+            for (int i = 0; i < width; i++)
+                writeString(outStream, data.getIdxFeature(i));
+            outStream.writeInt(n);
+            outStream.writeInt(total);
+            for (BinReport.Sample sample : samples) {
+                writeString(outStream, sample.getSampleId());
+                writeString(outStream, sample.getLabel());
+            }
+            // Write the score columns.
+            pad(outStream);
+            for (int offset : offsets)
+                outStream.writeInt(offset);
+            pad(outStream);
+            for (BinReport.Sample sample : samples) {
+                final DataOutputStream out = outStream;
+                sample.forEachNonZero((i, v) -> writeInt(out, i));
+            }
+            pad(outStream);
+            for (BinReport.Sample sample : samples) {
+                final DataOutputStream out = outStream;
+                sample.forEachNonZero((i, v) -> writeDouble(out, v));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        log.info("{} bytes written to {}.", file.length(), file);
+    }
+
+    /**
+     * Write a string as a byte length followed by UTF-8 bytes.
+     *
+     * @param outStream		output stream
+     * @param string		string to write
+     *
+     * @throws IOException
+     */
+    private static void writeString(DataOutputStream outStream, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        outStream.writeInt(bytes.length);
+        outStream.write(bytes);
+    }
+
+    /**
+     * Pad an output stream to an eight-byte boundary.
+     *
+     * @param outStream		output stream
+     *
+     * @throws IOException
+     */
+    private static void pad(DataOutputStream outStream) throws IOException {
+        while (outStream.size() % Long.BYTES != 0)
+            outStream.writeByte(0);
+    }
+
+    /**
+     * Write an integer from inside a score consumer.
+     *
+     * @param outStream		output stream
+     * @param value			value to write
+     */
+    private static void writeInt(DataOutputStream outStream, int value) {
+        try {
+            outStream.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write a floating-point number from inside a score consumer.
+     *
+     * @param outStream		output stream
+     * @param value			value to write
+     */
+    private static void writeDouble(DataOutputStream outStream, double value) {
+        try {
+            outStream.writeDouble(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Load the samples from a cache file into a bin report.  The bin report must be empty and must have the same
+     * features as the cache.
+     *
+     * @param file			cache file
+     * @param fingerprint	fingerprint of the current inputs
+     * @param data			empty bin report to receive the samples
+     *
+     * @return TRUE if the samples were loaded, FALSE if the cache is stale
+     *
+     * @throws IOException
+     */
+    public static boolean load(File file, List<String> fingerprint, BinReport data) throws IOException {
+        MappedByteBuffer buffer = map(file);
+        boolean retVal = false;
+        try {
+            final int version = buffer.getInt();
+            if (version != VERSION)
+                log.info("Cache file {} has old version {} and will be rebuilt.", file, version);
+            else {
+                // Compare the fingerprints.
+                List<String> oldPrint = readStrings(buffer);
+                if (! oldPrint.equals(fingerprint))
+                    log.info("Cache file {} does not match the current input files and will be rebuilt.", file);
+                else {
+                    if (! checkFeatures(buffer, data))
+                        log.info("Cache file {} has different features and will be rebuilt.", file);
+                    else {
+                        loadSamples(buffer, data);
+                        log.info("{} samples loaded from cache file {}.", data.size(), file);
+                        retVal = true;
+                    }
+                }
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            // The samples are only added once the whole cache is validated, so the bin report is still empty.
+            log.warn("Cache file {} is corrupt and will be rebuilt: {}", file, e.toString());
+        }
+        return retVal;
+    }
+
+    /**
+     * Load all the samples from a cache file into a bin report, so that more samples can be added.  Unlike "load",
+     * this does not require the cache to match a set of input files, but the feature ID file must be unchanged.
+     *
+     * @param file			cache file
+     * @param featEntry		fingerprint entry for the current feature ID file
+     * @param data			empty bin report to receive the samples
+     *
+     * @return the fingerprint stored in the cache
+     *
+     * @throws IOException
+     */
+    public static List<String> loadForAppend(File file, String featEntry, BinReport data) throws IOException {
+        MappedByteBuffer buffer = map(file);
+        List<String> retVal;
+        try {
+            final int version = buffer.getInt();
+            if (version != VERSION)
+                throw new IOException("Cache file " + file + " has old version " + version + " and cannot be appended.");
+            retVal = readStrings(buffer);
+            if (retVal.isEmpty() || ! retVal.get(0).equals(featEntry))
+                throw new IOException("Feature ID file has changed since cache file " + file + " was built.");
+            if (! checkFeatures(buffer, data))
+                throw new IOException("Cache file " + file + " has different features from the feature ID file.");
+            loadSamples(buffer, data);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Cache file " + file + " is corrupt: " + e.toString());
+        }
+        log.info("{} samples loaded from cache file {} built from {} input files.", data.size(), file,
+                retVal.size() - 1);
+        return retVal;
+    }
+
+    /**
+     * Find the input files of a cache that are not among the current inputs.  Rebuilding the cache from the current
+     * inputs would lose the samples from these files.  The inputs are compared by label and path, so a file that has
+     * merely been modified is not considered lost.
+     *
+     * @param file			cache file
+     * @param fingerprint	fingerprint of the current inputs
+     *
+     * @return the fingerprint entries of the cached input files missing from the current inputs, or an empty list
+     * 		   if the cache has an old version or is corrupt
+     *
+     * @throws IOException
+     */
+    public static List<String> findLostInputs(File file, List<String> fingerprint) throws IOException {
+        MappedByteBuffer buffer = map(file);
+        List<String> retVal = new ArrayList<String>();
+        try {
+            final int version = buffer.getInt();
+            if (version == VERSION) {
+                Set<String> current = new HashSet<String>(fingerprint.size() * 4 / 3 + 1);
+                for (int i = 1; i < fingerprint.size(); i++)
+                    current.add(inputKey(fingerprint.get(i)));
+                List<String> oldPrint = readStrings(buffer);
+                for (int i = 1; i < oldPrint.size(); i++) {
+                    String entry = oldPrint.get(i);
+                    if (! current.contains(inputKey(entry)))
+                        retVal.add(entry);
+                }
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            // A corrupt cache has no samples we can save.
+            retVal.clear();
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the label and path portion of a fingerprint entry
+     *
+     * @param entry		fingerprint entry to parse
+     */
+    private static String inputKey(String entry) {
+        String retVal = entry;
+        int pos = entry.indexOf('\t');
+        if (pos >= 0)
+            pos = entry.indexOf('\t', pos + 1);
+        if (pos >= 0)
+            retVal = entry.substring(0, pos);
+        return retVal;
+    }
+
+    /**
+     * Map a cache file into memory and verify its magic number.
+     *
+     * @param file		cache file
+     *
+     * @return a buffer for the file, positioned after the magic number
+     *
+     * @throws IOException
+     */
+    private static MappedByteBuffer map(File file) throws IOException {
+        MappedByteBuffer retVal;
+        try (RandomAccessFile raFile = new RandomAccessFile(file, "r"); FileChannel channel = raFile.getChannel()) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Cache file " + file + " is too large to map.");
+            // The mapping remains valid after the channel is closed.
+            retVal = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (retVal.capacity() < Long.BYTES || retVal.getLong() != MAGIC)
+            throw new IOException("File " + file + " is not a bin report cache.");
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the feature IDs in a cache file match the features of a bin report
+     *
+     * @param buffer	mapped cache file, positioned at the feature IDs
+     * @param data		bin report to check
+     *
+     * @throws IOException
+     */
+    private static boolean checkFeatures(ByteBuffer buffer, BinReport data) throws IOException {
+        List<String> features = readStrings(buffer);
+        boolean retVal = (features.size() == data.width());
+        for (int i = 0; retVal && i < features.size(); i++)
+            retVal = features.get(i).equals(data.getIdxFeature(i));
+        return retVal;
+    }
+
+    /**
+     * Load the samples from the remainder of a cache file.  The whole file is validated before any samples are
+     * added, so if there is an error, the bin report is unchanged.
+     *
+     * @param buffer	mapped cache file, positioned after the feature IDs
+     * @param data		bin report to receive the samples
+     *
+     * @throws IOException
+     */
+    private static void loadSamples(ByteBuffer buffer, BinReport data) throws IOException {
+        final int n = buffer.getInt();
+        final int total = buffer.getInt();
+        if (n < 0 || total < 0 || n > buffer.remaining() / (2 * Integer.BYTES))
+            throw new IOException("Cache file has invalid sample counts.");
+        String[] ids = new String[n];
+        String[] labels = new String[n];
+        Set<String> idSet = new HashSet<String>(n * 4 / 3 + 1);
+        for (int i = 0; i < n; i++) {
+            ids[i] = readString(buffer);
+            labels[i] = readString(buffer);
+            if (! idSet.add(ids[i]))
+                throw new IOException("Cache file has duplicate sample ID " + ids[i] + ".");
+        }
+        // Now slice out the score columns.  The positions are computed in long arithmetic, so that a corrupt count
+        // cannot wrap around and pass the capacity check.
+        long pos = align(buffer.position());
+        IntBuffer offsets = slice(buffer, pos, n + 1L, Integer.BYTES).asIntBuffer();
+        pos = align(pos + (n + 1L) * Integer.BYTES);
+        IntBuffer indices = slice(buffer, pos, total, Integer.BYTES).asIntBuffer();
+        pos = align(pos + (long) total * Integer.BYTES);
+        DoubleBuffer values = slice(buffer, pos, total, Double.BYTES).asDoubleBuffer();
+        // Build the samples.
+        final int width = data.width();
+        BinReport.ScoreRow[] rows = new BinReport.ScoreRow[n];
+        for (int i = 0; i < n; i++) {
+            final int start = offsets.get(i);
+            final int len = offsets.get(i + 1) - start;
+            if (start < 0 || len < 0 || start + len > total)
+                throw new IOException("Cache file has invalid score offsets.");
+            int[] sampleIndices = new int[len];
+            double[] sampleValues = new double[len];
+            indices.position(start);
+            indices.get(sampleIndices);
+            values.position(start);
+            values.get(sampleValues);
+            for (int k = 0; k < len; k++) {
+                if (sampleIndices[k] < 0 || sampleIndices[k] >= width || k > 0 && sampleIndices[k] <= sampleIndices[k-1])
+                    throw new IOException("Cache file has invalid feature indices for sample " + ids[i] + ".");
+            }
+            rows[i] = new BinReport.ScoreRow(sampleIndices, sampleValues);
+        }
+        for (int i = 0; i < n; i++)
+            data.addSample(ids[i], labels[i], rows[i]);
+    }
+
+    /**
+     * @return a position rounded up to an eight-byte boundary
+     *
+     * @param pos	position to align
+     */
+    private static long align(long pos) {
+        return pos + (Long.BYTES - pos % Long.BYTES) % Long.BYTES;
+    }
+
+    /**
+     * @return a list of strings read from a byte buffer, preceded by the list length
+     *
+     * @param buffer	buffer positioned at the list
+     *
+     * @throws IOException
+     */
+    private static List<String> readStrings(ByteBuffer buffer) throws IOException {
+        final int n = buffer.getInt();
+        if (n < 0 || n > buffer.remaining() / Integer.BYTES)
+            throw new IOException("Cache file has an invalid string count " + n + ".");
+        List<String> retVal = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++)
+            retVal.add(readString(buffer));
+        return retVal;
+    }
+
+    /**
+     * @return a string read from a byte buffer as a byte length followed by UTF-8 bytes
+     *
+     * @param buffer	buffer positioned at the string
+     *
+     * @throws IOException
+     */
+    private static String readString(ByteBuffer buffer) throws IOException {
+        final int len = buffer.getInt();
+        if (len < 0 || len > buffer.remaining())
+            throw new IOException("Cache file has an invalid string length " + len + ".");
+        byte[] bytes = new byte[len];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a slice of a byte buffer
+     *
+     * @param buffer	source buffer
+     * @param pos		starting position of the slice
+     * @param count		number of values in the slice
+     * @param width		width of each value in bytes
+     *
+     * @throws IOException
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, long pos, long count, int width) throws IOException {
+        final long end = pos + count * width;
+        if (count < 0 || end > buffer.capacity())
+            throw new IOException("Cache file is truncated.");
+        ByteBuffer dup = buffer.duplicate();
+        dup.position((int) pos);
+        dup.limit((int) end);
+        return dup.slice();
+    }
+
+}
@@ -0,0 +1,362 @@
+/**
+ *
+ */
+package org.theseed.binreports;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This object reads a bin report file as raw bytes.  The file is read into a reusable buffer, and the header line is
+ * used to find the sample ID column, the feature ID column ("rep_id" or "repgen_id"), and the score column ("count"
+ * or "score").  After each call to "next", the sample and feature IDs of the current line are available as slices of
+ * the buffer, suitable for lookup in a ByteKeyMap, and the score can be parsed directly from the buffer.  No strings
+ * are created for the data lines.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BinReportReader implements AutoCloseable {
+
+    // FIELDS
+    /** input file */
+    private final File file;
+    /** input stream */
+    private final InputStream inStream;
+    /** data buffer */
+    private byte[] buffer;
+    /** position of the next unparsed byte */
+    private int pos;
+    /** position past the last valid byte */
+    private int limit;
+    /** TRUE if the input stream is exhausted */
+    private boolean eof;
+    /** number of data lines read */
+    private int lineCount;
+    /** index of the sample ID column */
+    private final int sampleCol;
+    /** index of the feature ID column */
+    private final int featureCol;
+    /** index of the score column */
+    private final int scoreCol;
+    /** highest column index needed */
+    private final int maxCol;
+    /** field start and end positions for the current line, indexed by column */
+    private final int[] fields;
+    /** default buffer size */
+    private static final int BUFFER_SIZE = 1 << 20;
+    /** powers of 10 that can be represented exactly */
+    private static final double[] POW10 = new double[23];
+    /** largest integer that can be represented exactly in a double */
+    private static final long MAX_EXACT = 1L << 53;
+
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i++)
+            POW10[i] = POW10[i - 1] * 10.0;
+    }
+
+    /**
+     * Open a bin report file and locate the key columns.
+     *
+     * @param file		bin report file to read
+     *
+     * @throws IOException
+     */
+    public BinReportReader(File file) throws IOException {
+        this.file = file;
+        this.inStream = new FileInputStream(file);
+        this.buffer = new byte[BUFFER_SIZE];
+        this.pos = 0;
+        this.limit = 0;
+        this.eof = false;
+        this.lineCount = 0;
+        try {
+            // Read the header line.
+            int end = this.findLineEnd();
+            if (end < 0)
+                throw new IOException("Bin report file " + file + " is empty.");
+            String header = new String(this.buffer, this.pos, trimEnd(this.buffer, this.pos, end),
+                    StandardCharsets.UTF_8);
+            this.pos = Math.min(end + 1, this.limit);
+            String[] labels = header.split("\t", -1);
+            this.sampleCol = findColumn(labels, "sample_id", null, file);
+            this.featureCol = findColumn(labels, "rep_id", "repgen_id", file);
+            this.scoreCol = findColumn(labels, "count", "score", file);
+        } catch (IOException e) {
+            this.inStream.close();
+            throw e;
+        }
+        this.maxCol = Math.max(this.sampleCol, Math.max(this.featureCol, this.scoreCol));
+        this.fields = new int[2 * (this.maxCol + 1)];
+    }
+
+    /**
+     * @return the index of a column in the header
+     *
+     * @param labels	array of column labels
+     * @param name		preferred column name
+     * @param alt		alternate column name, or NULL if there is none
+     * @param file		file being read (for error messages)
+     *
+     * @throws IOException
+     */
+    private static int findColumn(String[] labels, String name, String alt, File file) throws IOException {
+        int retVal = -1;
+        for (int i = 0; retVal < 0 && i < labels.length; i++) {
+            if (labels[i].equals(name))
+                retVal = i;
+        }
+        if (retVal < 0 && alt != null) {
+            for (int i = 0; retVal < 0 && i < labels.length; i++) {
+                if (labels[i].equals(alt))
+                    retVal = i;
+            }
+        }
+        if (retVal < 0)
+            throw new IOException("Field \"" + (alt == null ? name : alt) + "\" not found in " + file + ".");
+        return retVal;
+    }
+
+    /**
+     * Parse the next data line.  Blank lines are skipped.
+     *
+     * @return TRUE if a line was found, FALSE at end of file
+     *
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        boolean retVal = false;
+        while (! retVal && (this.pos < this.limit || ! this.eof)) {
+            int end = this.findLineEnd();
+            if (end < 0)
+                break;
+            final int lineEnd = trimEnd(this.buffer, this.pos, end);
+            if (lineEnd > this.pos) {
+                this.lineCount++;
+                this.splitLine(this.pos, lineEnd);
+                retVal = true;
+            }
+            this.pos = Math.min(end + 1, this.limit);
+        }
+        return retVal;
+    }
+
+    /**
+     * Find the end of the line at the current position, reading more data if necessary.  At the end of the file,
+     * an unterminated line ends at the end of the data.
+     *
+     * @return the position of the new-line character ending the line, or -1 if there are no more lines
+     *
+     * @throws IOException
+     */
+    private int findLineEnd() throws IOException {
+        int retVal = -1;
+        int scan = this.pos;
+        boolean done = false;
+        while (! done) {
+            while (scan < this.limit && this.buffer[scan] != '\n')
+                scan++;
+            if (scan < this.limit) {
+                retVal = scan;
+                done = true;
+            } else if (this.eof) {
+                if (this.pos < this.limit)
+                    retVal = this.limit;
+                done = true;
+            } else {
+                // We need more data.  This moves the current line to the front of the buffer.
+                final int shift = this.pos;
+                this.fill();
+                scan -= shift;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Move the unparsed data to the front of the buffer and read more data after it.  If the buffer is full, it is
+     * enlarged.
+     *
+     * @throws IOException
+     */
+    private void fill() throws IOException {
+        final int remaining = this.limit - this.pos;
+        if (this.pos > 0) {
+            System.arraycopy(this.buffer, this.pos, this.buffer, 0, remaining);
+            this.pos = 0;
+            this.limit = remaining;
+        } else if (this.limit == this.buffer.length)
+            this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+        int n = this.inStream.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        if (n < 0)
+            this.eof = true;
+        else
+            this.limit += n;
+    }
+
+    /**
+     * Record the positions of the fields we need in the current line.
+     *
+     * @param start		start of the line
+     * @param end		end of the line
+     *
+     * @throws IOException
+     */
+    private void splitLine(int start, int end) throws IOException {
+        int col = 0;
+        int fieldStart = start;
+        for (int i = start; i < end && col <= this.maxCol; i++) {
+            if (this.buffer[i] == '\t') {
+                this.fields[2 * col] = fieldStart;
+                this.fields[2 * col + 1] = i;
+                col++;
+                fieldStart = i + 1;
+            }
+        }
+        if (col <= this.maxCol) {
+            this.fields[2 * col] = fieldStart;
+            this.fields[2 * col + 1] = end;
+            col++;
+        }
+        if (col <= this.maxCol)
+            throw new IOException("Line " + this.lineCount + " of " + this.file + " has only " + col + " columns.");
+    }
+
+    /**
+     * @return the end of a line with any trailing carriage return removed
+     *
+     * @param buffer	buffer containing the line
+     * @param start		start of the line
+     * @param end		end of the line
+     */
+    private static int trimEnd(byte[] buffer, int start, int end) {
+        int retVal = end;
+        if (retVal > start && buffer[retVal - 1] == '\r')
+            retVal--;
+        return retVal;
+    }
+
+    /**
+     * @return the buffer containing the current line
+     */
+    public byte[] getBuffer() {
+        return this.buffer;
+    }
+
+    /**
+     * @return the offset of the current sample ID
+     */
+    public int getSampleStart() {
+        return this.fields[2 * this.sampleCol];
+    }
+
+    /**
+     * @return the length of the current sample ID
+     */
+    public int getSampleLen() {
+        return this.fields[2 * this.sampleCol + 1] - this.fields[2 * this.sampleCol];
+    }
+
+    /**
+     * @return the offset of the current feature ID
+     */
+    public int getFeatureStart() {
+        return this.fields[2 * this.featureCol];
+    }
+
+    /**
+     * @return the length of the current feature ID
+     */
+    public int getFeatureLen() {
+        return this.fields[2 * this.featureCol + 1] - this.fields[2 * this.featureCol];
+    }
+
+    /**
+     * @return the current sample ID as a string (this is for error messages and other rare uses)
+     */
+    public String getSampleId() {
+        return new String(this.buffer, this.getSampleStart(), this.getSampleLen(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the current feature ID as a string (this is for error messages and other rare uses)
+     */
+    public String getFeatureId() {
+        return new String(this.buffer, this.getFeatureStart(), this.getFeatureLen(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the score from the current line
+     */
+    public double getScore() {
+        return parseDouble(this.buffer, this.fields[2 * this.scoreCol], this.fields[2 * this.scoreCol + 1]);
+    }
+
+    /**
+     * @return the number of data lines read
+     */
+    public int getLineCount() {
+        return this.lineCount;
+    }
+
+    /**
+     * Parse a floating-point number from a slice of a byte buffer.  Simple decimal numbers with few enough digits
+     * to be represented exactly are converted directly, which gives the same result as the standard parser.
+     * Anything else (exponents, long mantissas, special values) is passed to the standard parser.
+     *
+     * @param buffer	buffer containing the number
+     * @param start		start of the number
+     * @param end		end of the number
+     *
+     * @return the value of the number
+     *
+     * @throws NumberFormatException if the number is invalid
+     */
+    public static double parseDouble(byte[] buffer, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = (buffer[i] == '-');
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = -1;
+        boolean simple = (i < end);
+        for (; simple && i < end; i++) {
+            final int b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fraction >= 0)
+                    fraction++;
+                if (mantissa >= MAX_EXACT)
+                    simple = false;
+            } else if (b == '.' && fraction < 0)
+                fraction = 0;
+            else
+                simple = false;
+        }
+        double retVal;
+        if (simple && digits > 0 && fraction < POW10.length) {
+            retVal = (double) mantissa;
+            if (fraction > 0)
+                retVal /= POW10[fraction];
+            if (negative)
+                retVal = -retVal;
+        } else
+            retVal = Double.parseDouble(new String(buffer, start, end - start, StandardCharsets.US_ASCII).trim());
+        return retVal;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.inStream.close();
+    }
+
+}
@@ -0,0 +1,188 @@
+/**
+ *
+ */
+package org.theseed.binreports;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This is a simple open-addressing hash map from byte strings to integer ordinals.  Keys can be looked up directly
+ * from a slice of a byte buffer, so a parser can resolve an ID without building a string.  Each key added is
+ * assigned the next ordinal, starting from 0.
+ *
+ * Lookups do not modify the map, so a map that is no longer being added to can be shared by multiple threads.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ByteKeyMap {
+
+    // FIELDS
+    /** array of keys, by ordinal */
+    private byte[][] keys;
+    /** array of key hashes, by ordinal */
+    private int[] hashes;
+    /** hash table of ordinals plus one (0 indicates an empty slot) */
+    private int[] table;
+    /** number of keys in the map */
+    private int size;
+    /** mask for computing a table slot from a hash */
+    private int mask;
+
+    /**
+     * Create an empty map.
+     *
+     * @param expected		expected number of keys
+     */
+    public ByteKeyMap(int expected) {
+        int cap = 16;
+        while (cap < expected * 2)
+            cap <<= 1;
+        this.table = new int[cap];
+        this.mask = cap - 1;
+        this.keys = new byte[Math.max(expected, 4)][];
+        this.hashes = new int[this.keys.length];
+        this.size = 0;
+    }
+
+    /**
+     * @return the hash code for a slice of a byte buffer
+     *
+     * @param buffer	buffer containing the key
+     * @param start		start of the key
+     * @param len		length of the key
+     */
+    public static int hash(byte[] buffer, int start, int len) {
+        int retVal = 0;
+        final int end = start + len;
+        for (int i = start; i < end; i++)
+            retVal = 31 * retVal + (buffer[i] & 0xFF);
+        return mix(retVal);
+    }
+
+    /**
+     * @return a scrambled version of a hash code, to spread the bits for slot selection
+     *
+     * @param h		hash code to scramble
+     */
+    protected static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the ordinal of a key, or -1 if it is not in the map
+     *
+     * @param buffer	buffer containing the key
+     * @param start		start of the key
+     * @param len		length of the key
+     * @param hash		hash code of the key (from "hash")
+     */
+    public int find(byte[] buffer, int start, int len, int hash) {
+        int retVal = -1;
+        int slot = hash & this.mask;
+        int entry = this.table[slot];
+        while (entry != 0 && retVal < 0) {
+            final int ord = entry - 1;
+            if (this.hashes[ord] == hash && Arrays.equals(this.keys[ord], 0, this.keys[ord].length, buffer, start,
+                    start + len))
+                retVal = ord;
+            else {
+                slot = (slot + 1) & this.mask;
+                entry = this.table[slot];
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the ordinal of a key, or -1 if it is not in the map
+     *
+     * @param buffer	buffer containing the key
+     * @param start		start of the key
+     * @param len		length of the key
+     */
+    public int find(byte[] buffer, int start, int len) {
+        return this.find(buffer, start, len, hash(buffer, start, len));
+    }
+
+    /**
+     * Find a key, adding it if it is not already present.
+     *
+     * @param buffer	buffer containing the key
+     * @param start		start of the key
+     * @param len		length of the key
+     *
+     * @return the ordinal of the key
+     */
+    public int findOrAdd(byte[] buffer, int start, int len) {
+        final int hash = hash(buffer, start, len);
+        int retVal = this.find(buffer, start, len, hash);
+        if (retVal < 0) {
+            if (this.size * 2 >= this.table.length)
+                this.rehash();
+            retVal = this.size;
+            if (retVal >= this.keys.length) {
+                this.keys = Arrays.copyOf(this.keys, retVal * 2);
+                this.hashes = Arrays.copyOf(this.hashes, retVal * 2);
+            }
+            this.keys[retVal] = Arrays.copyOfRange(buffer, start, start + len);
+            this.hashes[retVal] = hash;
+            this.store(retVal);
+            this.size++;
+        }
+        return retVal;
+    }
+
+    /**
+     * Find a string key, adding it if it is not already present.
+     *
+     * @param key		key to find
+     *
+     * @return the ordinal of the key
+     */
+    public int findOrAdd(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return this.findOrAdd(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Put an ordinal in the hash table.
+     *
+     * @param ord	ordinal to store
+     */
+    private void store(int ord) {
+        int slot = this.hashes[ord] & this.mask;
+        while (this.table[slot] != 0)
+            slot = (slot + 1) & this.mask;
+        this.table[slot] = ord + 1;
+    }
+
+    /**
+     * Double the size of the hash table.
+     */
+    private void rehash() {
+        this.table = new int[this.table.length * 2];
+        this.mask = this.table.length - 1;
+        for (int i = 0; i < this.size; i++)
+            this.store(i);
+    }
+
+    /**
+     * @return the key with the specified ordinal, as a string
+     *
+     * @param ord	ordinal of the desired key
+     */
+    public String getKey(int ord) {
+        return new String(this.keys[ord], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of keys in the map
+     */
+    public int size() {
+        return this.size;
+    }
+
+}
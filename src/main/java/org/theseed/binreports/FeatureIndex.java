@@ -0,0 +1,169 @@
+/**
+ *
+ */
+package org.theseed.binreports;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.theseed.basic.ParseFailureException;
+
+/**
+ * This is an immutable index from feature IDs to feature indices.  It is an open-addressing hash table built once
+ * from the feature ID list, with the hash code of each ID computed in advance.  An ID can be looked up either as a
+ * string or as a slice of a byte buffer, and both lookups use the same hash function, so a parser can resolve an ID
+ * without building a string.
+ *
+ * Because the index never changes after it is built, it can be shared by any number of threads.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class FeatureIndex {
+
+    // FIELDS
+    /** array of feature IDs, by index */
+    private final String[] ids;
+    /** array of UTF-8 feature ID bytes, by index */
+    private final byte[][] keys;
+    /** array of feature ID hash codes, by index */
+    private final int[] hashes;
+    /** hash table of feature indices plus one (0 indicates an empty slot) */
+    private final int[] table;
+    /** mask for computing a table slot from a hash */
+    private final int mask;
+
+    /**
+     * Build the index for a collection of feature IDs.
+     *
+     * @param featureIDs	collection of feature IDs, in index order
+     *
+     * @throws ParseFailureException if a feature ID occurs twice
+     */
+    public FeatureIndex(Collection<String> featureIDs) throws ParseFailureException {
+        final int n = featureIDs.size();
+        int cap = 16;
+        while (cap < n * 2)
+            cap <<= 1;
+        this.table = new int[cap];
+        this.mask = cap - 1;
+        this.ids = new String[n];
+        this.keys = new byte[n][];
+        this.hashes = new int[n];
+        int idx = 0;
+        for (String featureId : featureIDs) {
+            byte[] key = featureId.getBytes(StandardCharsets.UTF_8);
+            final int hash = ByteKeyMap.hash(key, 0, key.length);
+            if (this.find(key, 0, key.length, hash) >= 0)
+                throw new ParseFailureException("Duplicate feature ID \"" + featureId + " in bin report feature ID list.");
+            this.ids[idx] = featureId;
+            this.keys[idx] = key;
+            this.hashes[idx] = hash;
+            // Store the index in the first open slot.
+            int slot = hash & this.mask;
+            while (this.table[slot] != 0)
+                slot = (slot + 1) & this.mask;
+            this.table[slot] = idx + 1;
+            idx++;
+        }
+    }
+
+    /**
+     * @return the index of a feature ID in a slice of a byte buffer, or -1 if it is not found
+     *
+     * @param buffer	buffer containing the feature ID
+     * @param start		start of the feature ID
+     * @param len		length of the feature ID
+     * @param hash		hash code of the feature ID
+     */
+    private int find(byte[] buffer, int start, int len, int hash) {
+        int retVal = -1;
+        int slot = hash & this.mask;
+        int entry = this.table[slot];
+        while (entry != 0 && retVal < 0) {
+            final int idx = entry - 1;
+            if (this.hashes[idx] == hash && Arrays.equals(this.keys[idx], 0, this.keys[idx].length, buffer, start,
+                    start + len))
+                retVal = idx;
+            else {
+                slot = (slot + 1) & this.mask;
+                entry = this.table[slot];
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the index of a feature ID in a slice of a byte buffer, or -1 if it is not found
+     *
+     * @param buffer	buffer containing the feature ID
+     * @param start		start of the feature ID
+     * @param len		length of the feature ID
+     */
+    public int find(byte[] buffer, int start, int len) {
+        return this.find(buffer, start, len, ByteKeyMap.hash(buffer, start, len));
+    }
+
+    /**
+     * @return the index of a feature ID, or -1 if it is not found
+     *
+     * @param featureId		feature ID to find
+     */
+    public int find(String featureId) {
+        int retVal = -1;
+        // For an ASCII string, the hash over the characters is the same as the hash over the UTF-8 bytes.
+        final int len = featureId.length();
+        int h = 0;
+        boolean ascii = true;
+        for (int i = 0; ascii && i < len; i++) {
+            final char c = featureId.charAt(i);
+            if (c >= 0x80)
+                ascii = false;
+            else
+                h = 31 * h + c;
+        }
+        if (! ascii) {
+            byte[] key = featureId.getBytes(StandardCharsets.UTF_8);
+            retVal = this.find(key, 0, key.length);
+        } else {
+            final int hash = ByteKeyMap.mix(h);
+            int slot = hash & this.mask;
+            int entry = this.table[slot];
+            while (entry != 0 && retVal < 0) {
+                final int idx = entry - 1;
+                if (this.hashes[idx] == hash && this.ids[idx].equals(featureId))
+                    retVal = idx;
+                else {
+                    slot = (slot + 1) & this.mask;
+                    entry = this.table[slot];
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the feature ID with the specified index
+     *
+     * @param idx	index of the desired feature
+     */
+    public String getId(int idx) {
+        return this.ids[idx];
+    }
+
+    /**
+     * @return a copy of the feature ID array, in index order
+     */
+    public String[] getIds() {
+        return Arrays.copyOf(this.ids, this.ids.length);
+    }
+
+    /**
+     * @return the number of features in the index
+     */
+    public int size() {
+        return this.ids.length;
+    }
+
+}
@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package org.theseed.binreports;
+
+import java.util.Arrays;
+
+/**
+ * This object is a read-only view of the scores for all the samples with a single label.  The nonzero scores are
+ * stored row by row in two contiguous arrays, one for the feature indices and one for the score values, with a third
+ * array giving the position of each row's first score.  Each row corresponds to a sample, and the rows are in the
+ * order the samples were added to the bin report.
+ *
+ * The matrix is a snapshot:  if the bin report's samples change afterward, the matrix is unaffected, and a new one
+ * must be requested from the bin report.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ScoreMatrix {
+
+    // FIELDS
+    /** label for the samples in this matrix */
+    private final String label;
+    /** array of samples, by row */
+    private final BinReport.Sample[] samples;
+    /** number of features (columns) */
+    private final int width;
+    /** position of the first score for each row, plus a final entry for the end of the last row */
+    private final int[] rowStarts;
+    /** feature indices of the scores, sorted within each row */
+    private final int[] indices;
+    /** score values, parallel to "indices" */
+    private final double[] values;
+
+    /**
+     * Construct a score matrix from prepared arrays.
+     *
+     * @param label			label for the samples in the matrix
+     * @param samples		array of samples, by row
+     * @param width			number of features
+     * @param rowStarts		position of each row's first score, plus the end position
+     * @param indices		feature indices of the scores
+     * @param values		score values
+     */
+    protected ScoreMatrix(String label, BinReport.Sample[] samples, int width, int[] rowStarts, int[] indices,
+            double[] values) {
+        this.label = label;
+        this.samples = samples;
+        this.width = width;
+        this.rowStarts = rowStarts;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * @return the label for the samples in this matrix
+     */
+    public String getLabel() {
+        return this.label;
+    }
+
+    /**
+     * @return the number of rows (samples)
+     */
+    public int rows() {
+        return this.samples.length;
+    }
+
+    /**
+     * @return the number of columns (features)
+     */
+    public int width() {
+        return this.width;
+    }
+
+    /**
+     * @return the sample for a row
+     *
+     * @param row	index of the desired row
+     */
+    public BinReport.Sample getSample(int row) {
+        return this.samples[row];
+    }
+
+    /**
+     * @return the score in a specified row and column
+     *
+     * @param row	index of the row (sample)
+     * @param col	index of the column (feature)
+     */
+    public double get(int row, int col) {
+        double retVal = 0.0;
+        int pos = Arrays.binarySearch(this.indices, this.rowStarts[row], this.rowStarts[row + 1], col);
+        if (pos >= 0)
+            retVal = this.values[pos];
+        return retVal;
+    }
+
+    /**
+     * @return the number of nonzero scores in a row
+     *
+     * @param row	index of the row (sample)
+     */
+    public int getNonZeroCount(int row) {
+        return this.rowStarts[row + 1] - this.rowStarts[row];
+    }
+
+    /**
+     * Pass each nonzero score in a row to a consumer, in feature order.
+     *
+     * @param row			index of the row (sample)
+     * @param consumer		consumer to receive the feature indices and scores
+     */
+    public void forEachNonZero(int row, BinReport.ScoreConsumer consumer) {
+        final int end = this.rowStarts[row + 1];
+        for (int k = this.rowStarts[row]; k < end; k++)
+            consumer.accept(this.indices[k], this.values[k]);
+    }
+
+    /**
+     * Copy the scores in a row into an array.  Features with no score are set to 0.
+     *
+     * @param row		index of the row (sample)
+     * @param target	array to receive the scores, with one entry per feature
+     */
+    public void copyRow(int row, double[] target) {
+        Arrays.fill(target, 0, this.width, 0.0);
+        final int end = this.rowStarts[row + 1];
+        for (int k = this.rowStarts[row]; k < end; k++)
+            target[this.indices[k]] = this.values[k];
+    }
+
+    /**
+     * Build the score matrix for a group of samples.  Sparse samples are switched to use the matrix arrays for their
+     * scores, so the scores are not stored twice.
+     *
+     * @param label			label for the samples
+     * @param samples		array of samples, in row order
+     * @param width			number of features
+     *
+     * @return the score matrix for the samples
+     */
+    protected static ScoreMatrix build(String label, BinReport.Sample[] samples, int width) {
+        final int n = samples.length;
+        int[] rowStarts = new int[n + 1];
+        for (int i = 0; i < n; i++)
+            rowStarts[i + 1] = rowStarts[i] + samples[i].getNonZeroCount();
+        final int total = rowStarts[n];
+        int[] indices = new int[total];
+        double[] values = new double[total];
+        for (int i = 0; i < n; i++) {
+            int[] pos = new int[] { rowStarts[i] };
+            samples[i].forEachNonZero((idx, score) -> {
+                indices[pos[0]] = idx;
+                values[pos[0]] = score;
+                pos[0]++;
+            });
+            if (samples[i].isSparse())
+                samples[i].share(indices, values, rowStarts[i], rowStarts[i + 1] - rowStarts[i]);
+        }
+        return new ScoreMatrix(label, samples, width, rowStarts, indices, values);
+    }
+
+}
@@ -4,12 +4,15 @@
 package org.theseed.binreports.reports;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
@@ -17,6 +20,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.binreports.BinReport;
+import org.theseed.binreports.ScoreMatrix;
 import org.theseed.binreports.scores.ScorePackaging;
 
 /**
@@ -41,6 +45,12 @@ public abstract class BinReportReporter {
     private String[] labels;
     /** list of open output files */
     private List<PrintWriter> writers;
+    /** score normalizer for streaming */
+    private ScorePackaging streamNormalizer;
+    /** label currently being streamed, or NULL if none */
+    private String streamLabel;
+    /** maximum number of samples to normalize at once */
+    private static final int BATCH_SIZE = 256;
 
     /**
      * This interface must be supported by each command processor that uses this object.  It allows access to
@@ -90,35 +100,35 @@ public abstract class BinReportReporter {
      */
     public static enum Type {
         /** report on the representation groups common to each label */
-        COMMONS {
+        COMMONS(false) {
             @Override
             public BinReportReporter create(IParms processor) throws IOException, ParseFailureException {
                 return new CommonsBinReportReporter(processor);
             }
         },
         /** produce a classifier input directory */
-        XMATRIX {
+        XMATRIX(true) {
             @Override
             public BinReportReporter create(IParms processor) throws IOException, ParseFailureException {
                 return new XMatrixBinReportReporter(processor);
             }
         },
         /** produce a testing file for a DL4J classifier */
-        TESTFILE {
+        TESTFILE(true) {
             @Override
             public BinReportReporter create(IParms processor) throws IOException, ParseFailureException {
                 return new XFileBinReportReporter(processor, '\t');
             }
         },
         /** produce a testing file for a KERAS classifier */
-        CSVFILE {
+        CSVFILE(true) {
             @Override
             public BinReportReporter create(IParms processor) throws IOException, ParseFailureException {
                 return new XFileBinReportReporter(processor, ',');
             }
         },
         /** report on the score variances between labels */
-        COMPARE {
+        COMPARE(false) {
             @Override
             public BinReportReporter create(IParms processor) throws IOException, ParseFailureException {
                 return new CompareBinReportReporter(processor);
@@ -126,6 +136,21 @@ public abstract class BinReportReporter {
         }
     ;
 
+        /** TRUE if reports of this type can be streamed */
+        private boolean streamable;
+
+        private Type(boolean streamable) {
+            this.streamable = streamable;
+        }
+
+        /**
+         * @return TRUE if reports of this type can be produced one sample at a time (this can be checked before
+         * 		   the reporting object is created, since creating it initializes the output directory)
+         */
+        public boolean isStreamable() {
+            return this.streamable;
+        }
+
         /**
          * @return a reporting object of this type
          *
@@ -191,25 +216,25 @@ public abstract class BinReportReporter {
     public void process(BinReport binReport) throws IOException {
         // Create the scoring method.
         ScorePackaging normalizer = this.method.create(binReport);
-        // Loop through the labels.  We do a special sort on these, putting them in alphabetical order except with
-        // the negative label first.
-        this.labels = binReport.getLabels().stream().sorted().toArray(String[]::new);
-        for (int i = 1; i < this.labels.length; i++) {
-            if (this.labels[i].contentEquals(this.negLabel)) {
-                this.labels[i] = labels[0];
-                this.labels[0] = this.negLabel;
-            }
-        }
+        // Sort the labels for output.
+        this.labels = this.sortLabels(binReport.getLabels());
         // Initialize the report.
         this.startReport(binReport);
+        // Create the batch buffer for normalized scores.
+        double[][] batch = new double[BATCH_SIZE][binReport.width()];
         // Loop through the labels.
         for (String label : this.labels) {
             log.info("Processing samples for output label {}.", label);
             this.startLabel(label);
-            // Loop through this label's samples, normalizing the scores.
-            for (BinReport.Sample sample : binReport.getSamplesForLabel(label)) {
-                double[] scores = normalizer.getScores(sample);
-                this.processSample(sample, scores);
+            // Loop through this label's samples, normalizing the scores.  The samples are in the label's score
+            // matrix in a fixed order.  We normalize them in parallel batches and then process them in order.
+            ScoreMatrix matrix = binReport.getScoreMatrix(label);
+            final int n = matrix.rows();
+            for (int start = 0; start < n; start += BATCH_SIZE) {
+                final int end = Math.min(n, start + BATCH_SIZE);
+                normalizer.normalize(matrix, start, end, batch);
+                for (int row = start; row < end; row++)
+                    this.processSample(matrix.getSample(row), batch[row - start]);
             }
             // Summarize the label.
             this.finishLabel();
@@ -220,6 +245,134 @@ public abstract class BinReportReporter {
         this.closeOutFiles();
     }
 
+    /**
+     * @return an array of labels sorted for output
+     *
+     * We do a special sort on the labels, putting them in alphabetical order except with the negative label first.
+     *
+     * @param labelSet	collection of labels to sort
+     */
+    public String[] sortLabels(Collection<String> labelSet) {
+        String[] retVal = labelSet.stream().sorted().toArray(String[]::new);
+        for (int i = 1; i < retVal.length; i++) {
+            if (retVal[i].contentEquals(this.negLabel)) {
+                retVal[i] = retVal[0];
+                retVal[0] = this.negLabel;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if this report can be produced one sample at a time, that is, each sample's output depends only
+     * 		   on that sample
+     */
+    public boolean isStreamable() {
+        return false;
+    }
+
+    /**
+     * Start a streaming report.  The samples must then be passed to "streamSample" grouped by label, with the
+     * labels in the order returned by "getLabels", after which "finishStream" must be called.
+     *
+     * @param binReport		bin report object containing the features and tuning parameters (but no samples)
+     * @param labelSet		collection of labels for the samples to be streamed
+     *
+     * @throws IOException
+     */
+    public void startStream(BinReport binReport, Collection<String> labelSet) throws IOException {
+        if (! this.isStreamable())
+            throw new IllegalStateException("Report type " + this.getClass().getSimpleName() + " cannot be streamed.");
+        this.streamNormalizer = this.method.create(binReport);
+        this.labels = this.sortLabels(labelSet);
+        this.streamLabel = null;
+        this.startReport(binReport);
+    }
+
+    /**
+     * Normalize and process a sample for a streaming report.
+     *
+     * @param sample	sample to process
+     */
+    public void streamSample(BinReport.Sample sample) {
+        final String label = sample.getLabel();
+        if (! label.equals(this.streamLabel)) {
+            // Here we are starting a new label.
+            if (this.streamLabel != null)
+                this.finishLabel();
+            log.info("Streaming samples for output label {}.", label);
+            this.startLabel(label);
+            this.streamLabel = label;
+        }
+        double[] scores = this.streamNormalizer.getScores(sample);
+        this.processSample(sample, scores);
+    }
+
+    /**
+     * Finish a streaming report.
+     */
+    public void finishStream() {
+        if (this.streamLabel != null)
+            this.finishLabel();
+        this.finishReport();
+        this.closeOutFiles();
+    }
+
+    /**
+     * Add new samples to the output from a previous run.  This is only possible for a streamable report, and only if
+     * the new samples do not introduce any new labels.  If the output cannot be appended, the client must call
+     * "process" to produce the whole report.
+     *
+     * @param binReport		bin report object containing all the samples, old and new
+     * @param oldLabels		set of labels for the old samples
+     * @param newSamples	collection of new samples to add
+     *
+     * @return TRUE if the new samples were added, FALSE if the whole report must be produced
+     *
+     * @throws IOException
+     */
+    public boolean appendSamples(BinReport binReport, Set<String> oldLabels, Collection<BinReport.Sample> newSamples)
+            throws IOException {
+        boolean retVal = false;
+        if (! this.isStreamable())
+            log.info("Report type {} must be regenerated for new samples.", this.getClass().getSimpleName());
+        else if (! oldLabels.containsAll(binReport.getLabels()))
+            log.info("New samples have new labels, so the report must be regenerated.");
+        else {
+            this.labels = this.sortLabels(binReport.getLabels());
+            if (this.prepareAppend(binReport)) {
+                // Process the new samples a label at a time, as if they were at the end of the original input.
+                ScorePackaging normalizer = this.method.create(binReport);
+                for (String label : this.labels) {
+                    this.startLabel(label);
+                    for (BinReport.Sample sample : newSamples) {
+                        if (sample.getLabel().equals(label))
+                            this.processSample(sample, normalizer.getScores(sample));
+                    }
+                    this.finishLabel();
+                }
+                this.finishReport();
+                this.closeOutFiles();
+                log.info("{} new samples appended to report.", newSamples.size());
+                retVal = true;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Open the output from a previous run so that new samples can be added.  The default is to not allow this.
+     *
+     * @param binReport		bin report object containing all the samples
+     *
+     * @return TRUE if the output is ready for new samples, FALSE if the whole report must be produced
+     *
+     * @throws IOException
+     */
+    protected boolean prepareAppend(BinReport binReport) throws IOException {
+        return false;
+    }
+
     /**
      * Initialize the report.
      *
@@ -268,6 +421,27 @@ public abstract class BinReportReporter {
         return retVal;
     }
 
+    /**
+     * @return a print writer that appends to an existing output file with the specified name
+     *
+     * @param name		base name of the file
+     *
+     * @throws IOException
+     */
+    protected PrintWriter openAppendFile(String name) throws IOException {
+        File outFile = new File(this.outDir, name);
+        PrintWriter retVal = new PrintWriter(new FileWriter(outFile, true));
+        this.writers.add(retVal);
+        return retVal;
+    }
+
+    /**
+     * @return the output directory
+     */
+    protected File getOutDir() {
+        return this.outDir;
+    }
+
     /**
      * Close all the open output streams.
      */
@@ -289,7 +463,7 @@ public abstract class BinReportReporter {
      *
      * @return the ordered array of output labels
      */
-    protected String[] getLabels() {
+    public String[] getLabels() {
         return this.labels;
     }
 
@@ -3,6 +3,9 @@
  */
 package org.theseed.binreports.reports;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 
@@ -12,6 +15,10 @@ import org.theseed.binreports.BinReport.Sample;
 /**
  * This is a subclass of a bin-report reporter that produces a machine learning input file.
  *
+ * Along with the data file, we write a settings file containing the normalization method, the minimum score, and
+ * the number of divisions.  New samples can only be appended to the data file if these are unchanged, since
+ * otherwise the new rows would be normalized differently from the old ones.
+ *
  * @author Bruce Parrello
  *
  */
@@ -55,6 +62,20 @@ public class XFileBinReportReporter extends BinReportReporter {
      * @throws IOException
      */
     protected String setHeadings(BinReport binReport, String name) throws IOException {
+        String retVal = this.buildHeadings(binReport);
+        this.dataWriter = this.openOutFile(name);
+        this.dataWriter.println(retVal);
+        return retVal;
+    }
+
+    /**
+     * Initialize the line buffer and compute the data file header.
+     *
+     * @param binReport		source bin report
+     *
+     * @return the heading line for the data file
+     */
+    private String buildHeadings(BinReport binReport) {
         // Get the input column headings and form the header.
         var headings = binReport.getHeadings();
         this.line = new StringBuilder((headings.length + 2) * 15);
@@ -62,15 +83,97 @@ public class XFileBinReportReporter extends BinReportReporter {
         for (String heading : headings)
             this.line.append(this.delim).append(heading);
         this.line.append(this.delim).append("condition");
-        this.dataWriter = this.openOutFile(name);
-        String retVal = this.line.toString();
-        this.dataWriter.println(retVal);
-        return retVal;
+        return this.line.toString();
+    }
+
+    /**
+     * @return the name of the data file
+     */
+    protected String getDataFileName() {
+        return this.outFileName;
+    }
+
+    /**
+     * @return the name of the settings file
+     */
+    protected String getSettingsFileName() {
+        return this.getDataFileName() + ".settings";
+    }
+
+    /**
+     * @return the settings line describing the score normalization
+     *
+     * @param binReport		source bin report
+     */
+    private String buildSettings(BinReport binReport) {
+        return this.getMethodType().name() + "\t" + binReport.getMinScore() + "\t" + binReport.getDivisions();
+    }
+
+    /**
+     * Write the settings file describing the score normalization.
+     *
+     * @param binReport		source bin report
+     *
+     * @throws IOException
+     */
+    protected void writeSettings(BinReport binReport) throws IOException {
+        PrintWriter settingsWriter = this.openOutFile(this.getSettingsFileName());
+        settingsWriter.println(this.buildSettings(binReport));
+        settingsWriter.flush();
     }
 
     @Override
     protected void startReport(BinReport binReport) throws IOException {
-        this.setHeadings(binReport, this.outFileName);
+        this.setHeadings(binReport, this.getDataFileName());
+        this.writeSettings(binReport);
+    }
+
+    @Override
+    protected boolean prepareAppend(BinReport binReport) throws IOException {
+        boolean retVal = false;
+        final String name = this.getDataFileName();
+        File dataFile = new File(this.getOutDir(), name);
+        File settingsFile = new File(this.getOutDir(), this.getSettingsFileName());
+        String header = this.buildHeadings(binReport);
+        if (! dataFile.canRead())
+            log.info("Data file {} not found, so the report must be regenerated.", dataFile);
+        else if (! settingsFile.canRead())
+            log.info("Settings file {} not found, so the report must be regenerated.", settingsFile);
+        else {
+            // Verify the old file has the same columns and the same normalization.
+            String oldHeader = readFirstLine(dataFile);
+            String oldSettings = readFirstLine(settingsFile);
+            if (! header.equals(oldHeader))
+                log.info("Data file {} has different columns, so the report must be regenerated.", dataFile);
+            else if (! this.buildSettings(binReport).equals(oldSettings))
+                log.info("Data file {} used different normalization settings, so the report must be regenerated.",
+                        dataFile);
+            else {
+                this.dataWriter = this.openAppendFile(name);
+                retVal = true;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the first line of a file, or NULL if the file is empty
+     *
+     * @param file		file to read
+     *
+     * @throws IOException
+     */
+    private static String readFirstLine(File file) throws IOException {
+        String retVal;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            retVal = reader.readLine();
+        }
+        return retVal;
+    }
+
+    @Override
+    public boolean isStreamable() {
+        return true;
     }
 
     @Override
@@ -3,8 +3,12 @@
  */
 package org.theseed.binreports.reports;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
 
 import org.theseed.binreports.BinReport;
 
@@ -38,11 +42,34 @@ public class XMatrixBinReportReporter extends XFileBinReportReporter {
         markerWriter.println("RandomForest");
         markerWriter.flush();
         // Now we create the header line for the skeleton training file and the data file.
-        String lineString = this.setHeadings(binReport, "data.tbl");
+        String lineString = this.setHeadings(binReport, this.getDataFileName());
+        this.writeSettings(binReport);
         // Write out the skeleton training file.
         PrintWriter trainingWriter = this.openOutFile("training.tbl");
         trainingWriter.println(lineString);
         trainingWriter.flush();
     }
 
+    @Override
+    protected String getDataFileName() {
+        return "data.tbl";
+    }
+
+    @Override
+    protected boolean prepareAppend(BinReport binReport) throws IOException {
+        boolean retVal = false;
+        // The label file must be unchanged.
+        File labelFile = new File(this.getOutDir(), "labels.txt");
+        if (! labelFile.canRead())
+            log.info("Label file {} not found, so the report must be regenerated.", labelFile);
+        else {
+            List<String> oldLabels = Files.readAllLines(labelFile.toPath());
+            if (! oldLabels.equals(Arrays.asList(this.getLabels())))
+                log.info("Label file {} has different labels, so the report must be regenerated.", labelFile);
+            else
+                retVal = super.prepareAppend(binReport);
+        }
+        return retVal;
+    }
+
 }
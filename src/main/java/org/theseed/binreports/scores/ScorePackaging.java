@@ -3,14 +3,19 @@
  */
 package org.theseed.binreports.scores;
 
-import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import org.theseed.binreports.BinReport;
+import org.theseed.binreports.ScoreMatrix;
 
 /**
  * This is the base class for objects that translate bin report scores to classification input values.  Each
  * subclass uses a different method to normalize the results.
  *
+ * Each sample is normalized independently, so a batch of samples can be normalized in parallel.  The batch methods
+ * fill a caller-provided output matrix, and produce exactly the same values as normalizing the samples one at a
+ * time.
+ *
  * @author Bruce Parrello
  *
  */
@@ -142,11 +147,93 @@ public abstract class ScorePackaging {
      * @param sample	sample containing the scores to normalize
      */
     public double[] getScores(BinReport.Sample sample) {
-        double[] retVal = Arrays.copyOf(sample.getScores(), this.data.width());
+        double[] retVal = new double[this.data.width()];
+        sample.copyScores(retVal);
+        this.computeScores(retVal);
+        return retVal;
+    }
+
+    /**
+     * @return a normalized scoring array for a row of a score matrix
+     *
+     * @param matrix	score matrix containing the sample
+     * @param row		index of the sample's row in the matrix
+     */
+    public double[] getScores(ScoreMatrix matrix, int row) {
+        double[] retVal = new double[this.data.width()];
+        matrix.copyRow(row, retVal);
         this.computeScores(retVal);
         return retVal;
     }
 
+    /**
+     * Normalize a range of rows from a score matrix in parallel.  Row "start" of the score matrix goes into row 0 of
+     * the output, and so forth.
+     *
+     * @param matrix	score matrix containing the samples
+     * @param start		index of the first row to normalize
+     * @param end		index past the last row to normalize
+     * @param output	output matrix; each row must have room for one score per feature
+     */
+    public void normalize(ScoreMatrix matrix, int start, int end, double[][] output) {
+        this.checkOutput(end - start, output);
+        IntStream.range(start, end).parallel().forEach(row -> {
+            double[] scores = output[row - start];
+            matrix.copyRow(row, scores);
+            this.computeScores(scores);
+        });
+    }
+
+    /**
+     * Normalize all the rows of a score matrix in parallel.
+     *
+     * @param matrix	score matrix containing the samples
+     * @param output	output matrix with one row per sample; each row must have room for one score per feature
+     */
+    public void normalize(ScoreMatrix matrix, double[][] output) {
+        this.normalize(matrix, 0, matrix.rows(), output);
+    }
+
+    /**
+     * Normalize all the samples in the bin report in parallel.  The output rows are in the same order as the bin
+     * report's samples.
+     *
+     * @param output	output matrix with one row per sample; each row must have room for one score per feature
+     *
+     * @return an array of the samples, parallel to the output rows
+     */
+    public BinReport.Sample[] normalizeAll(double[][] output) {
+        BinReport.Sample[] retVal = new BinReport.Sample[this.data.size()];
+        int i = 0;
+        for (BinReport.Sample sample : this.data)
+            retVal[i++] = sample;
+        this.checkOutput(retVal.length, output);
+        IntStream.range(0, retVal.length).parallel().forEach(row -> {
+            double[] scores = output[row];
+            retVal[row].copyScores(scores);
+            this.computeScores(scores);
+        });
+        return retVal;
+    }
+
+    /**
+     * Insure an output matrix is big enough.
+     *
+     * @param rows		number of rows required
+     * @param output	output matrix to check
+     */
+    private void checkOutput(int rows, double[][] output) {
+        if (output.length < rows)
+            throw new IllegalArgumentException("Output matrix has " + output.length + " rows, but " + rows
+                    + " are required.");
+        final int width = this.data.width();
+        for (int i = 0; i < rows; i++) {
+            if (output[i].length != width)
+                throw new IllegalArgumentException("Output matrix row " + i + " has length " + output[i].length
+                        + ", but the width is " + width + ".");
+        }
+    }
+
     /**
      * Normalize the scores from a sample.
      *
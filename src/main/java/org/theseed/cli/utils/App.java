@@ -5,6 +5,7 @@ import java.util.Arrays;
 import org.theseed.basic.BaseProcessor;
 import org.theseed.bin.utils.BinStatsProcessor;
 import org.theseed.bin.utils.BinTestProcessor;
+import org.theseed.bin.utils.QzaCompileProcessor;
 import org.theseed.bin.utils.QzaReportProcessor;
 import org.theseed.binreports.BinReportAnalysisProcessor;
 
@@ -20,6 +21,7 @@ import org.theseed.binreports.BinReportAnalysisProcessor;
  * qzaDump		convert the samples in a QZA file to FASTA files
  * binTest		test the binning code on a directory of samples
  * binReport	analyze bin reports to produce reports or classifier data
+ * qzaCompile	compile a RepGen SSU table into a memory-mapped kmer database for qzaReport
  */
 public class App
 {
@@ -58,6 +60,9 @@ public class App
         case "binReport" :
             processor = new BinReportAnalysisProcessor();
             break;
+        case "qzaCompile" :
+            processor = new QzaCompileProcessor();
+            break;
         default:
             throw new RuntimeException("Invalid command " + command);
         }
@@ -6,7 +6,17 @@ package org.theseed.cli.utils;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.io.FileUtils;
 import org.kohsuke.args4j.Argument;
@@ -15,10 +25,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.BaseProcessor;
 import org.theseed.basic.ParseFailureException;
+import org.theseed.qza.AmpliconRead;
+import org.theseed.qza.AmpliconReadStream;
+import org.theseed.qza.AmpliconSampleSource;
+import org.theseed.qza.BlockCompressedOutputStream;
+import org.theseed.qza.QzaStreamSource;
+import org.theseed.qza.SampleGroupSource;
 import org.theseed.sequence.FastaOutputStream;
 import org.theseed.sequence.Sequence;
 import org.theseed.sequence.fastq.FastqSampleGroup;
-import org.theseed.sequence.fastq.ReadStream;
 import org.theseed.sequence.fastq.SeqRead;
 
 /**
@@ -33,6 +48,13 @@ import org.theseed.sequence.fastq.SeqRead;
  * --phred		phred offset for quality strings in the FASTQ files (default 33)
  * --minQual	minimum quality for a read to be acceptable
  * --clear		erase the output directory before processing
+ * --stream		decompress and parse the FASTQ files directly from the QZA archive instead of reading them
+ * 				through the sample group
+ * --threads	number of samples to dump at the same time (default 1)
+ * --maxOpen	maximum number of output files open at the same time; each sample in progress uses two
+ * 				(default 64)
+ * --compress	compression for the output files-- NONE, GZIP, or BGZF (default NONE); compressed files are
+ * 				given a suffix of ".gz", and are compressed in blocks by a pool of worker threads
  *
  * @author Bruce Parrello
  *
@@ -42,10 +64,24 @@ public class QzaDumpProcessor extends BaseProcessor {
     // FIELDS
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(QzaDumpProcessor.class);
-    /** QZA sample group */
-    private FastqSampleGroup sampleGroup;
+    /** QZA sample source */
+    private AmpliconSampleSource sampleGroup;
     /** set of sample IDs */
     private Set<String> sampleIDs;
+    /** permits for opening output files */
+    private Semaphore openFiles;
+    /** number of samples started */
+    private AtomicInteger sampCount;
+    /** number of reads kept */
+    private LongAdder keepCount;
+    /** number of reads rejected */
+    private LongAdder rejectCount;
+    /** executor for block compression of the output, or NULL if the output is not compressed */
+    private ExecutorService compressor;
+    /** number of output files used by each sample */
+    private static final int FILES_PER_SAMPLE = 2;
+    /** number of seconds to wait for interrupted sample threads to finish */
+    private static final long SHUTDOWN_WAIT = 60;
 
     // COMMAND-LINE OPTIONS
 
@@ -65,6 +101,22 @@ public class QzaDumpProcessor extends BaseProcessor {
     @Option(name = "--clear", usage = "erase output directory before processing")
     private boolean clearFlag;
 
+    /** if specified, the QZA file will be streamed directly */
+    @Option(name = "--stream", usage = "if specified, QZA samples will be parsed directly from the archive")
+    private boolean streamFlag;
+
+    /** number of samples to process concurrently */
+    @Option(name = "--threads", metaVar = "8", usage = "number of samples to dump at the same time")
+    private int threadCount;
+
+    /** maximum number of open output files */
+    @Option(name = "--maxOpen", metaVar = "100", usage = "maximum number of output files open at the same time")
+    private int maxOpen;
+
+    /** output compression type */
+    @Option(name = "--compress", usage = "compression type for output files")
+    private BlockCompressedOutputStream.Type compressType;
+
     /** input file or directory */
     @Argument(index = 0, metaVar = "inFile", usage = "input QZA file or P3 sample directory", required = true)
     private File inFile;
@@ -79,6 +131,10 @@ public class QzaDumpProcessor extends BaseProcessor {
         this.phredOffset = 33;
         this.minReadQual = 30.0;
         this.clearFlag = false;
+        this.streamFlag = false;
+        this.threadCount = 1;
+        this.maxOpen = 64;
+        this.compressType = BlockCompressedOutputStream.Type.NONE;
     }
 
     @Override
@@ -88,10 +144,21 @@ public class QzaDumpProcessor extends BaseProcessor {
             throw new ParseFailureException("Invalid phred offset.  Must be between 32 and 127.");
         if (this.minReadQual > 99.0 || this.minReadQual < 0.0)
             throw new ParseFailureException("Invalid minimum read quality.  Cannot be greater than 99 or less than 0.");
+        if (this.threadCount < 1)
+            throw new ParseFailureException("Invalid thread count.  Must be at least 1.");
+        if (this.maxOpen < FILES_PER_SAMPLE)
+            throw new ParseFailureException("Invalid maximum open-file count.  Must be at least " + FILES_PER_SAMPLE + ".");
         // Check the input file.
         if (! this.inFile.exists())
             throw new FileNotFoundException("Input source " + this.inFile + " not found.");
-        this.sampleGroup = this.sourceType.create(this.inFile);
+        if (! this.streamFlag)
+            this.sampleGroup = new SampleGroupSource(this.sourceType.create(this.inFile));
+        else if (this.sourceType != FastqSampleGroup.Type.QZA)
+            throw new ParseFailureException("Streaming is only supported for QZA sources.");
+        else
+            this.sampleGroup = new QzaStreamSource(this.inFile, this.phredOffset);
+        // Let the source reject the bad reads as early as it can.
+        this.sampleGroup.setFilter(this.minReadQual, 0);
         this.sampleIDs = this.sampleGroup.getSampleIDs();
         log.info("{} samples found in {}.", this.sampleIDs.size(), this.inFile);
         // Set up the output directory.
@@ -110,39 +177,118 @@ public class QzaDumpProcessor extends BaseProcessor {
     protected void runCommand() throws Exception {
         // Store the phred offset.
         SeqRead.setPhredOffset(this.phredOffset);
-        // Get some counters.
-        int sampCount = 0;
-        int rejectCount = 0;
-        int keepCount = 0;
-        // Loop through the samples.
-        for (String sampleId : this.sampleIDs) {
-            sampCount++;
-            log.info("Processing sample {}: {}.", sampCount, sampleId);
+        // Get some counters.  These are shared by all the sample threads.
+        this.sampCount = new AtomicInteger();
+        this.rejectCount = new LongAdder();
+        this.keepCount = new LongAdder();
+        this.openFiles = new Semaphore(this.maxOpen);
+        // If we are compressing, create the compression workers.
+        this.compressor = null;
+        if (this.compressType != BlockCompressedOutputStream.Type.NONE) {
+            int workers = Runtime.getRuntime().availableProcessors();
+            log.info("Output will be compressed in {} format using {} workers.", this.compressType, workers);
+            this.compressor = Executors.newFixedThreadPool(workers);
+        }
+        // Only create an executor if we are dumping multiple samples at once.
+        ExecutorService executor = null;
+        if (this.threadCount > 1) {
+            log.info("Dumping up to {} samples at a time with at most {} open output files.", this.threadCount,
+                    this.maxOpen);
+            executor = Executors.newFixedThreadPool(this.threadCount);
+        }
+        try {
+            if (executor == null) {
+                // Loop through the samples in the main thread.
+                for (String sampleId : this.sampleIDs)
+                    this.dumpSample(sampleId);
+            } else {
+                // Submit the samples to the executor and wait for them.  This will throw an exception if a
+                // sample failed.
+                List<Future<?>> tasks = new ArrayList<Future<?>>(this.sampleIDs.size());
+                for (String sampleId : this.sampleIDs)
+                    tasks.add(executor.submit(() -> {
+                        this.dumpSample(sampleId);
+                        return null;
+                    }));
+                for (Future<?> task : tasks) {
+                    try {
+                        task.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception)
+                            throw (Exception) cause;
+                        throw e;
+                    }
+                }
+            }
+            log.info("All done.  {} reads kept and {} rejected for {} samples.", this.keepCount.sum(),
+                    this.rejectCount.sum(), this.sampCount.get());
+        } finally {
+            if (executor != null) {
+                // Stop the sample threads and wait for them to close their files.  Closing a compressed file
+                // needs the compression workers, and reading needs the sample group, so both must stay open
+                // until the sample threads are done.
+                executor.shutdownNow();
+                if (! executor.awaitTermination(SHUTDOWN_WAIT, TimeUnit.SECONDS))
+                    log.warn("Sample threads did not stop after {} seconds.", SHUTDOWN_WAIT);
+            }
+            if (this.compressor != null)
+                this.compressor.shutdownNow();
+            // Insure we close the input sample group.
+            this.sampleGroup.close();
+        }
+    }
+
+    /**
+     * Write the good reads of a sample to its pair of FASTA files.
+     *
+     * @param sampleId		ID of the sample to dump
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void dumpSample(String sampleId) throws IOException, InterruptedException {
+        // Wait until we are allowed to open the output files.
+        this.openFiles.acquire(FILES_PER_SAMPLE);
+        try {
+            int sampNum = this.sampCount.incrementAndGet();
+            log.info("Processing sample {}: {}.", sampNum, sampleId);
+            int keeps = 0;
+            int rejects = 0;
             // We need to create output files for the left and right read sets.
-            File lOutFile = new File(this.outDir, sampleId + "-fwd.fna");
-            File rOutFile = new File(this.outDir, sampleId + "-rev.fna");
-            try (var lOutStream = new FastaOutputStream(lOutFile);
-                    var rOutStream = new FastaOutputStream(rOutFile)) {
-                // Open the input stream.
-                ReadStream inStream = this.sampleGroup.sampleIter(sampleId);
-                for (var read : inStream) {
-                    if (read.getQual() < this.minReadQual)
-                        rejectCount++;
-                    else {
-                        // Write the left and right sequences.
-                        String label = read.getLabel();
-                        Sequence seq = new Sequence(label, "", read.getLseq());
-                        lOutStream.write(seq);
-                        seq = new Sequence(label, "", read.getRseq());
-                        rOutStream.write(seq);
-                        keepCount++;
+            final String suffix = this.compressType.getSuffix();
+            File lOutFile = new File(this.outDir, sampleId + "-fwd.fna" + suffix);
+            File rOutFile = new File(this.outDir, sampleId + "-rev.fna" + suffix);
+            try (var lOutStream = new FastaOutputStream(this.compressType.create(lOutFile, this.compressor));
+                    var rOutStream = new FastaOutputStream(this.compressType.create(rOutFile, this.compressor))) {
+                // Open the input stream.  The sample source is not guaranteed to be thread-safe.
+                AmpliconReadStream inStream;
+                synchronized (this.sampleGroup) {
+                    inStream = this.sampleGroup.open(sampleId);
+                }
+                try (inStream) {
+                    while (inStream.hasNext()) {
+                        AmpliconRead read = inStream.next();
+                        if (read.getQual() < this.minReadQual)
+                            rejects++;
+                        else {
+                            // Write the left and right sequences.
+                            String label = read.getLabel();
+                            Sequence seq = new Sequence(label, "", read.getLseq().toString());
+                            lOutStream.write(seq);
+                            seq = new Sequence(label, "", read.getRseq().toString());
+                            rOutStream.write(seq);
+                            keeps++;
+                        }
                     }
                 }
             }
-            log.info("{} reads kept and {} rejected for {} samples.", keepCount, rejectCount, sampCount);
+            this.keepCount.add(keeps);
+            this.rejectCount.add(rejects);
+            log.info("{} reads kept and {} rejected for sample {}.", keeps, rejects, sampleId);
+        } finally {
+            this.openFiles.release(FILES_PER_SAMPLE);
         }
-        // Insure we close the input sample group.
-        this.sampleGroup.close();
     }
 
 }
@@ -0,0 +1,67 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import org.theseed.sequence.DnaKmers;
+import org.theseed.sequence.SequenceKmers;
+
+/**
+ * This interface describes a paired amplicon read as seen by the sample processing commands.  It allows the commands
+ * to work with reads from the sequence library's sample groups and with reads parsed directly from a streamed QZA
+ * archive.  The sequences are returned as character sequences, so that a reader can avoid building strings.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public interface AmpliconRead {
+
+    /** character used to separate the left and right sequences when computing a kmer set */
+    public static final char KMER_SEPARATOR = 'x';
+
+    /**
+     * @return the read label
+     */
+    public String getLabel();
+
+    /**
+     * @return the left (forward) sequence
+     */
+    public CharSequence getLseq();
+
+    /**
+     * @return the right (reverse) sequence, or an empty sequence if the read is unpaired
+     */
+    public CharSequence getRseq();
+
+    /**
+     * @return the mean quality of the read
+     */
+    public double getQual();
+
+    /**
+     * @return the length of the longer sequence in the read
+     */
+    public int maxlength();
+
+    /**
+     * @return the total length of the read
+     */
+    public int length();
+
+    /**
+     * Compute the kmer set for the read.  This is only needed by the unpacked classification engines.  The two
+     * sequences are joined by a separator character, so that a kmer spanning the gap can never match a
+     * representative kmer.  Readers with a kmer set of their own should override this method.
+     *
+     * @return the kmer set for the read
+     */
+    public default SequenceKmers getKmers() {
+        CharSequence lseq = this.getLseq();
+        CharSequence rseq = this.getRseq();
+        StringBuilder buffer = new StringBuilder(lseq.length() + rseq.length() + 1);
+        buffer.append(lseq).append(KMER_SEPARATOR).append(rseq);
+        return new DnaKmers(buffer.toString().toLowerCase());
+    }
+
+}
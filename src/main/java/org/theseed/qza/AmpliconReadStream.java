@@ -0,0 +1,20 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * This interface describes a stream of the reads in a single sample.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public interface AmpliconReadStream extends Iterator<AmpliconRead>, AutoCloseable {
+
+    @Override
+    public void close() throws IOException;
+
+}
@@ -0,0 +1,51 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * This interface describes a source of amplicon samples, such as a QZA archive.  The source presents a set of
+ * sample IDs, and can open a read stream for each sample.  Sources are not guaranteed to be thread-safe, so a
+ * client that opens samples from multiple threads must synchronize on the source.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public interface AmpliconSampleSource extends AutoCloseable {
+
+    /**
+     * @return the set of sample IDs in this source
+     *
+     * @throws IOException
+     */
+    public Set<String> getSampleIDs() throws IOException;
+
+    /**
+     * Open a stream for the reads of a sample.
+     *
+     * @param sampleId		ID of the desired sample
+     *
+     * @return a stream of the reads in the sample
+     *
+     * @throws IOException
+     */
+    public AmpliconReadStream open(String sampleId) throws IOException;
+
+    /**
+     * Specify the filter criteria the client will apply to the reads.  A source that can compute the quality and
+     * length of a read while parsing it may then skip building the reads that fail.  A failing read is returned as a
+     * placeholder with the correct quality and lengths but empty sequences, so the client's filter rejects it as
+     * usual.  The placeholder is only valid until the next read is requested.  The default is to do nothing.
+     *
+     * @param minQual	minimum acceptable mean quality
+     * @param minLen	minimum acceptable length for the longer sequence of a read
+     */
+    public default void setFilter(double minQual, int minLen) { }
+
+    @Override
+    public void close() throws IOException;
+
+}
@@ -0,0 +1,307 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This output stream compresses its data in independent blocks on worker threads.  Each block is written as a
+ * complete gzip member, and a file made of concatenated gzip members is a legal gzip file that can be read by the
+ * standard tools.  In BGZF mode, each member header also contains the block-size field used by the BGZF (blocked
+ * gzip) format, and the file ends with the standard empty BGZF block.
+ *
+ * The blocks are compressed by an executor shared with other streams.  The compressed blocks are written in order,
+ * and the number of blocks waiting for compression is limited, so the memory used by a stream is bounded.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BlockCompressedOutputStream extends OutputStream {
+
+    // FIELDS
+    /** underlying output stream */
+    private OutputStream outStream;
+    /** executor for compressing the blocks */
+    private ExecutorService executor;
+    /** TRUE for BGZF headers, FALSE for plain gzip headers */
+    private boolean bgzf;
+    /** buffer for the current block */
+    private byte[] buffer;
+    /** number of bytes in the current block */
+    private int used;
+    /** compression tasks for the blocks not yet written, in output order */
+    private ArrayDeque<Future<byte[]>> pending;
+    /** TRUE if this stream has been closed */
+    private boolean closed;
+    /** maximum number of uncompressed bytes in a block (this insures a BGZF block fits in 64K) */
+    public static final int BLOCK_SIZE = 0xFF00;
+    /** maximum number of blocks waiting for compression */
+    private static final int MAX_PENDING = 8;
+    /** maximum size of a compressed block */
+    private static final int MAX_BLOCK = 0x10000;
+    /** length of a plain gzip member header */
+    private static final int GZIP_HEADER = 10;
+    /** length of a BGZF member header */
+    private static final int BGZF_HEADER = 18;
+    /** length of a gzip member trailer */
+    private static final int TRAILER = 8;
+    /** the empty BGZF block that marks the end of a BGZF file */
+    private static final byte[] BGZF_EOF = new byte[] { 0x1f, (byte) 0x8b, 0x08, 0x04, 0, 0, 0, 0, 0, (byte) 0xff, 0x06, 0,
+            0x42, 0x43, 0x02, 0, 0x1b, 0, 0x03, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+    /**
+     * This enum describes the output compression types.
+     */
+    public static enum Type {
+        /** no compression */
+        NONE(""),
+        /** gzip compression in parallel blocks */
+        GZIP(".gz"),
+        /** blocked gzip compression, compatible with the sequence-alignment tools */
+        BGZF(".gz");
+
+        /** file name suffix for this type */
+        private String suffix;
+
+        private Type(String suffix) {
+            this.suffix = suffix;
+        }
+
+        /**
+         * @return the file name suffix for this compression type
+         */
+        public String getSuffix() {
+            return this.suffix;
+        }
+
+        /**
+         * Open an output file with this compression type.
+         *
+         * @param outFile		output file to create
+         * @param executor		executor for block compression
+         *
+         * @return an output stream for the file
+         *
+         * @throws IOException
+         */
+        public OutputStream create(File outFile, ExecutorService executor) throws IOException {
+            OutputStream retVal = new BufferedOutputStream(new FileOutputStream(outFile), MAX_BLOCK);
+            switch (this) {
+            case GZIP :
+                retVal = new BlockCompressedOutputStream(retVal, executor, false);
+                break;
+            case BGZF :
+                retVal = new BlockCompressedOutputStream(retVal, executor, true);
+                break;
+            default :
+                break;
+            }
+            return retVal;
+        }
+
+    }
+
+    /**
+     * Create a block-compressed output stream.
+     *
+     * @param outStream		underlying output stream
+     * @param executor		executor for compressing the blocks
+     * @param bgzf			TRUE to write BGZF blocks, FALSE to write plain gzip members
+     */
+    public BlockCompressedOutputStream(OutputStream outStream, ExecutorService executor, boolean bgzf) {
+        this.outStream = outStream;
+        this.executor = executor;
+        this.bgzf = bgzf;
+        this.buffer = new byte[BLOCK_SIZE];
+        this.used = 0;
+        this.pending = new ArrayDeque<Future<byte[]>>(MAX_PENDING);
+        this.closed = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (this.used >= BLOCK_SIZE)
+            this.submitBlock();
+        this.buffer[this.used++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (this.used >= BLOCK_SIZE)
+                this.submitBlock();
+            int n = Math.min(len, BLOCK_SIZE - this.used);
+            System.arraycopy(b, off, this.buffer, this.used, n);
+            this.used += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Queue the current block for compression.  If too many blocks are waiting, the oldest ones are written first.
+     *
+     * @throws IOException
+     */
+    private void submitBlock() throws IOException {
+        if (this.used > 0) {
+            while (this.pending.size() >= MAX_PENDING)
+                this.writeNext();
+            final byte[] block = this.buffer;
+            final int len = this.used;
+            final boolean bgzfFlag = this.bgzf;
+            this.pending.add(this.executor.submit(() -> compress(block, len, bgzfFlag)));
+            this.buffer = new byte[BLOCK_SIZE];
+            this.used = 0;
+        }
+    }
+
+    /**
+     * Wait for the oldest block to finish compressing and write it.
+     *
+     * @throws IOException
+     */
+    private void writeNext() throws IOException {
+        Future<byte[]> next = this.pending.remove();
+        try {
+            this.outStream.write(next.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing output.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error compressing output: " + e.getCause().toString(), e.getCause());
+        }
+    }
+
+    /**
+     * Flush all the data written so far.  The current block is compressed even if it is not full.
+     */
+    @Override
+    public void flush() throws IOException {
+        this.submitBlock();
+        while (! this.pending.isEmpty())
+            this.writeNext();
+        this.outStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (! this.closed) {
+            this.closed = true;
+            try {
+                this.flush();
+                if (this.bgzf)
+                    this.outStream.write(BGZF_EOF);
+            } finally {
+                this.outStream.close();
+            }
+        }
+    }
+
+    /**
+     * Compress a block into a gzip member.
+     *
+     * @param block		buffer containing the block
+     * @param len		number of bytes in the block
+     * @param bgzf		TRUE to include the BGZF block-size field in the header
+     *
+     * @return the complete gzip member for the block
+     */
+    protected static byte[] compress(byte[] block, int len, boolean bgzf) {
+        final int header = (bgzf ? BGZF_HEADER : GZIP_HEADER);
+        // A deflated block is never more than a few bytes bigger than the input when it is stored uncompressed.
+        byte[] retVal = new byte[MAX_BLOCK + header + TRAILER];
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        int size;
+        try {
+            size = deflate(deflater, block, len, retVal, header);
+            if (header + size + TRAILER > MAX_BLOCK) {
+                // The data is not compressible, so we store it instead.
+                deflater.reset();
+                deflater.setLevel(Deflater.NO_COMPRESSION);
+                size = deflate(deflater, block, len, retVal, header);
+            }
+        } finally {
+            deflater.end();
+        }
+        final int total = header + size + TRAILER;
+        // Fill in the header.
+        retVal[0] = 0x1f;
+        retVal[1] = (byte) 0x8b;
+        retVal[2] = Deflater.DEFLATED;
+        retVal[3] = (byte) (bgzf ? 0x04 : 0);
+        retVal[9] = (byte) 0xff;
+        if (bgzf) {
+            // The extra field is "BC" with a two-byte payload containing the block size minus 1.
+            putShort(retVal, 10, 6);
+            retVal[12] = 'B';
+            retVal[13] = 'C';
+            putShort(retVal, 14, 2);
+            putShort(retVal, 16, total - 1);
+        }
+        // Fill in the trailer.
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, len);
+        putInt(retVal, header + size, (int) crc.getValue());
+        putInt(retVal, header + size + 4, len);
+        return Arrays.copyOf(retVal, total);
+    }
+
+    /**
+     * Deflate a block into an output buffer.
+     *
+     * @param deflater	deflater to use
+     * @param block		input buffer
+     * @param len		number of input bytes
+     * @param out		output buffer
+     * @param offset	position in the output buffer for the compressed data
+     *
+     * @return the number of compressed bytes
+     */
+    private static int deflate(Deflater deflater, byte[] block, int len, byte[] out, int offset) {
+        deflater.setInput(block, 0, len);
+        deflater.finish();
+        int pos = offset;
+        final int limit = out.length - TRAILER;
+        while (! deflater.finished() && pos < limit)
+            pos += deflater.deflate(out, pos, limit - pos);
+        return pos - offset;
+    }
+
+    /**
+     * Store a little-endian 16-bit value in a buffer.
+     *
+     * @param buffer	target buffer
+     * @param pos		position for the value
+     * @param value		value to store
+     */
+    private static void putShort(byte[] buffer, int pos, int value) {
+        buffer[pos] = (byte) value;
+        buffer[pos + 1] = (byte) (value >>> 8);
+    }
+
+    /**
+     * Store a little-endian 32-bit value in a buffer.
+     *
+     * @param buffer	target buffer
+     * @param pos		position for the value
+     * @param value		value to store
+     */
+    private static void putInt(byte[] buffer, int pos, int value) {
+        putShort(buffer, pos, value);
+        putShort(buffer, pos + 2, value >>> 16);
+    }
+
+}
@@ -0,0 +1,60 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This is a read-only character sequence view of a range of ASCII bytes.  It allows sequence data parsed from a byte
+ * buffer to be used by the kmer and hashing code without creating a string.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ByteSequence implements CharSequence {
+
+    // FIELDS
+    /** source byte array */
+    private final byte[] data;
+    /** offset of the first byte */
+    private final int offset;
+    /** number of bytes */
+    private final int len;
+
+    /**
+     * Create a view of a range of bytes.
+     *
+     * @param data		source byte array
+     * @param offset	offset of the first byte
+     * @param len		number of bytes
+     */
+    public ByteSequence(byte[] data, int offset, int len) {
+        this.data = data;
+        this.offset = offset;
+        this.len = len;
+    }
+
+    @Override
+    public int length() {
+        return this.len;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (this.data[this.offset + index] & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > this.len || start > end)
+            throw new IndexOutOfBoundsException("Invalid subsequence " + start + " to " + end + " of length " + this.len + ".");
+        return new ByteSequence(this.data, this.offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(this.data, this.offset, this.len, StandardCharsets.US_ASCII);
+    }
+
+}
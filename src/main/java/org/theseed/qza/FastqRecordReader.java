@@ -0,0 +1,285 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * This object parses FASTQ records directly from a byte stream.  The data is read into a reusable buffer, and each
+ * record is parsed in place:  after a successful call to "next", the label, sequence, and quality of the record are
+ * available as offsets into the buffer.  The offsets remain valid until the next call.  No strings are created.
+ *
+ * The quality characters are totaled while the end of the quality line is being found, so a client can filter
+ * a record by mean quality without another pass over the data.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class FastqRecordReader implements AutoCloseable {
+
+    // FIELDS
+    /** input stream */
+    private final InputStream inStream;
+    /** data buffer */
+    private byte[] buffer;
+    /** position of the next unparsed byte */
+    private int pos;
+    /** position past the last valid byte */
+    private int limit;
+    /** TRUE if the input stream is exhausted */
+    private boolean eof;
+    /** offset of the current label */
+    private int labelStart;
+    /** length of the current label */
+    private int labelLen;
+    /** offset of the current sequence */
+    private int seqStart;
+    /** length of the current sequence */
+    private int seqLen;
+    /** offset of the current quality string */
+    private int qualStart;
+    /** total of the quality characters in the current record */
+    private long qualSum;
+    /** line start and end positions for the current record */
+    private final int[] lines;
+    /** default buffer size */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Create a record reader for a byte stream.
+     *
+     * @param inStream		stream of FASTQ data
+     */
+    public FastqRecordReader(InputStream inStream) {
+        this.inStream = inStream;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.pos = 0;
+        this.limit = 0;
+        this.eof = false;
+        this.lines = new int[8];
+    }
+
+    /**
+     * Parse the next record.
+     *
+     * @return TRUE if a record was found, FALSE at end of stream
+     *
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        // Skip any blank lines between records.
+        boolean found = this.skipBlankLines();
+        if (found) {
+            // Find the four lines of the record.
+            int scan = this.pos;
+            int line = 0;
+            while (line < 4) {
+                int lineEnd = (line == 3 ? this.scanQual(scan) : indexOf(this.buffer, scan, this.limit, (byte) '\n'));
+                if (lineEnd < 0) {
+                    if (this.eof) {
+                        if (line == 3 && scan < this.limit) {
+                            // The last line is unterminated.
+                            lineEnd = this.limit;
+                        } else
+                            throw new IOException("Incomplete FASTQ record at end of stream.");
+                    } else {
+                        // We need more data.  Slide the record to the front of the buffer and refill.
+                        int shift = this.pos;
+                        this.fill();
+                        scan -= shift;
+                        for (int i = 0; i < 2 * line; i++)
+                            this.lines[i] -= shift;
+                        continue;
+                    }
+                }
+                this.lines[2 * line] = scan;
+                this.lines[2 * line + 1] = trimEnd(this.buffer, scan, lineEnd);
+                if (line == 3 && this.lines[7] < lineEnd)
+                    this.qualSum -= '\r';
+                scan = lineEnd + 1;
+                line++;
+            }
+            if (this.buffer[this.lines[0]] != '@')
+                throw new IOException("Invalid FASTQ header line.");
+            if (this.buffer[this.lines[4]] != '+')
+                throw new IOException("Invalid FASTQ separator line.");
+            // The label ends at the first whitespace.
+            this.labelStart = this.lines[0] + 1;
+            int labelEnd = this.labelStart;
+            while (labelEnd < this.lines[1] && this.buffer[labelEnd] > ' ')
+                labelEnd++;
+            this.labelLen = labelEnd - this.labelStart;
+            this.seqStart = this.lines[2];
+            this.seqLen = this.lines[3] - this.seqStart;
+            this.qualStart = this.lines[6];
+            if (this.lines[7] - this.qualStart != this.seqLen)
+                throw new IOException("FASTQ quality string length does not match sequence length.");
+            this.pos = Math.min(scan, this.limit);
+        }
+        return found;
+    }
+
+    /**
+     * Skip blank lines at the current position.
+     *
+     * @return TRUE if there is more data, FALSE at end of stream
+     *
+     * @throws IOException
+     */
+    private boolean skipBlankLines() throws IOException {
+        boolean retVal = false;
+        boolean done = false;
+        while (! done) {
+            if (this.pos >= this.limit) {
+                if (this.eof)
+                    done = true;
+                else
+                    this.fill();
+            } else {
+                byte b = this.buffer[this.pos];
+                if (b == '\n' || b == '\r')
+                    this.pos++;
+                else {
+                    retVal = true;
+                    done = true;
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Move the unparsed data to the front of the buffer and read more data after it.  If the buffer is full, it is
+     * enlarged.
+     *
+     * @throws IOException
+     */
+    private void fill() throws IOException {
+        final int remaining = this.limit - this.pos;
+        if (this.pos > 0) {
+            System.arraycopy(this.buffer, this.pos, this.buffer, 0, remaining);
+            this.pos = 0;
+            this.limit = remaining;
+        } else if (this.limit == this.buffer.length)
+            this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+        int n = this.inStream.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        if (n < 0)
+            this.eof = true;
+        else
+            this.limit += n;
+    }
+
+    /**
+     * @return the position of a byte in a buffer range, or -1 if it is not found
+     *
+     * @param buffer	buffer to search
+     * @param start		start of the range
+     * @param end		end of the range
+     * @param target	byte to find
+     */
+    private static int indexOf(byte[] buffer, int start, int end, byte target) {
+        int retVal = -1;
+        for (int i = start; retVal < 0 && i < end; i++) {
+            if (buffer[i] == target)
+                retVal = i;
+        }
+        return retVal;
+    }
+
+    /**
+     * Find the end of a quality line and total its characters.  The total is stored in "qualSum".  If the end of
+     * the line is not found, the total covers the whole range, but it will be recomputed after the buffer is
+     * refilled.
+     *
+     * @return the position of the new-line character ending the line, or -1 if it is not found
+     *
+     * @param start		start of the quality line
+     */
+    private int scanQual(int start) {
+        final byte[] buf = this.buffer;
+        final int end = this.limit;
+        long total = 0;
+        int retVal = -1;
+        for (int i = start; retVal < 0 && i < end; i++) {
+            final byte b = buf[i];
+            if (b == '\n')
+                retVal = i;
+            else
+                total += b;
+        }
+        this.qualSum = total;
+        return retVal;
+    }
+
+    /**
+     * @return the end of a line with any trailing carriage return removed
+     *
+     * @param buffer	buffer containing the line
+     * @param start		start of the line
+     * @param end		end of the line
+     */
+    private static int trimEnd(byte[] buffer, int start, int end) {
+        int retVal = end;
+        if (retVal > start && buffer[retVal - 1] == '\r')
+            retVal--;
+        return retVal;
+    }
+
+    /**
+     * @return the buffer containing the current record
+     */
+    public byte[] getBuffer() {
+        return this.buffer;
+    }
+
+    /**
+     * @return the offset of the current label
+     */
+    public int getLabelStart() {
+        return this.labelStart;
+    }
+
+    /**
+     * @return the length of the current label
+     */
+    public int getLabelLen() {
+        return this.labelLen;
+    }
+
+    /**
+     * @return the offset of the current sequence
+     */
+    public int getSeqStart() {
+        return this.seqStart;
+    }
+
+    /**
+     * @return the length of the current sequence (and quality string)
+     */
+    public int getSeqLen() {
+        return this.seqLen;
+    }
+
+    /**
+     * @return the offset of the current quality string
+     */
+    public int getQualStart() {
+        return this.qualStart;
+    }
+
+    /**
+     * @return the total of the quality characters in the current record, before the phred offset is subtracted
+     */
+    public long getQualSum() {
+        return this.qualSum;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.inStream.close();
+    }
+
+}
@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.sequence.SequenceKmers;
+
+/**
+ * This classification engine uses an inverted index from each SSU kmer to the ordinals of the representatives
+ * containing it.  For each read, we run through the read's kmers and bump a hit counter for every representative
+ * in the kmer's posting list.  The counter for a representative is then exactly the number of kmers it shares with
+ * the read, which is the similarity the scan engine computes.  Representatives that share no kmers with the read
+ * are never touched.  Because it works on the same kmer sets as the scan engine, it always produces the same
+ * result.  The packed index engine (PackedIndexSsuClassifier) is faster, but counts canonical kmers instead.
+ *
+ * The hit counters are kept in a per-thread tally so that reads can be classified in parallel.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class IndexSsuClassifier extends KmerSetSsuClassifier {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(IndexSsuClassifier.class);
+    /** map of kmers to representative ordinal lists */
+    private Map<String, int[]> index;
+    /** per-thread hit tally */
+    private ThreadLocal<RepTally> tallies;
+
+    /**
+     * Construct an index-based classification engine.
+     *
+     * @param reps		table of representative genomes
+     * @param minSim	minimum similarity fraction for an acceptable hit
+     */
+    public IndexSsuClassifier(RepSsuTable reps, double minSim) {
+        super(reps, minSim);
+        final int n = reps.size();
+        log.info("Building SSU kmer index for {} representatives.", n);
+        long start = System.currentTimeMillis();
+        // Each posting list has its current length in position 0.  The lists are grown by doubling, since the
+        // conserved regions of the SSU produce kmers found in nearly every representative.
+        this.index = new HashMap<String, int[]>();
+        long postings = 0;
+        for (int i = 0; i < n; i++) {
+            for (String kmer : reps.getKmers(i)) {
+                int[] list = this.index.get(kmer);
+                if (list == null) {
+                    list = new int[4];
+                    this.index.put(kmer, list);
+                } else if (list[0] + 1 >= list.length) {
+                    list = Arrays.copyOf(list, list.length * 2);
+                    this.index.put(kmer, list);
+                }
+                list[0]++;
+                list[list[0]] = i;
+                postings++;
+            }
+        }
+        // Now trim the lists to their final size and remove the length slot.
+        for (var entry : this.index.entrySet()) {
+            int[] list = entry.getValue();
+            entry.setValue(Arrays.copyOfRange(list, 1, list[0] + 1));
+        }
+        log.info("{} kmers and {} postings indexed in {} seconds.", this.index.size(), postings,
+                (System.currentTimeMillis() - start) / 1000.0);
+        this.tallies = ThreadLocal.withInitial(() -> new RepTally(n));
+    }
+
+    @Override
+    protected long findBest(SequenceKmers readKmers) {
+        RepTally tally = this.tallies.get();
+        // Accumulate the counts for the representatives sharing each kmer.
+        for (String kmer : readKmers) {
+            int[] list = this.index.get(kmer);
+            if (list != null) {
+                for (int idx : list)
+                    tally.add(idx);
+            }
+        }
+        // Find the best count.  This also clears the tally for the next read.
+        return tally.best();
+    }
+
+}
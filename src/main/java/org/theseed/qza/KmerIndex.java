@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This is an inverted index from packed kmers to the ordinals of the representatives containing them.  The kmers
+ * are stored in an open-addressing hash table with linear probing.  The posting lists are stored in slot order in
+ * a single buffer, so the postings for the kmer in slot S are in positions START[S] up to but not including
+ * START[S+1], in ascending ordinal order.  Empty slots have empty posting lists.
+ *
+ * Once built, the index is immutable and can be shared by any number of threads.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class KmerIndex {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(KmerIndex.class);
+    /** hash table of kmers */
+    private final LongBuffer keys;
+    /** start of each slot's posting list, with an extra entry for the end */
+    private final IntBuffer starts;
+    /** representative ordinals for all the posting lists */
+    private final IntBuffer postings;
+    /** mask for computing a slot from a hash code */
+    private final int mask;
+    /** number of distinct kmers */
+    private final int kmerCount;
+    /** key value for an empty slot (packed kmers are never negative) */
+    public static final long EMPTY = -1L;
+
+    /**
+     * Build an index from the packed kmers of a representative table.
+     *
+     * @param reps		table of representatives; the packed kmers must already be computed
+     */
+    public KmerIndex(RepSsuTable reps) {
+        final int n = reps.size();
+        final LongBuffer packed = reps.getPacked();
+        log.info("Building packed kmer index for {} representatives.", n);
+        long start = System.currentTimeMillis();
+        // Insert all the kmers, counting the postings for each slot.  The table grows as needed.
+        long[] table = new long[1 << 16];
+        Arrays.fill(table, EMPTY);
+        int[] counts = new int[table.length];
+        int used = 0;
+        for (int i = 0; i < n; i++) {
+            final int end = reps.packedEnd(i);
+            for (int j = reps.packedStart(i); j < end; j++) {
+                if (used * 2 >= table.length) {
+                    // Double the table size and re-insert the old kmers.
+                    long[] oldTable = table;
+                    int[] oldCounts = counts;
+                    table = new long[oldTable.length * 2];
+                    Arrays.fill(table, EMPTY);
+                    counts = new int[table.length];
+                    for (int s = 0; s < oldTable.length; s++) {
+                        if (oldTable[s] != EMPTY) {
+                            int slot = findSlot(table, oldTable[s]);
+                            table[slot] = oldTable[s];
+                            counts[slot] = oldCounts[s];
+                        }
+                    }
+                }
+                long kmer = packed.get(j);
+                int slot = findSlot(table, kmer);
+                if (table[slot] == EMPTY) {
+                    table[slot] = kmer;
+                    used++;
+                }
+                counts[slot]++;
+            }
+        }
+        // Convert the counts to start positions.
+        int[] startArray = new int[table.length + 1];
+        for (int s = 0; s < table.length; s++)
+            startArray[s + 1] = startArray[s] + counts[s];
+        // Fill in the postings.  We process the representatives in order, so each list is sorted.
+        int[] postArray = new int[startArray[table.length]];
+        int[] fill = Arrays.copyOf(startArray, table.length);
+        for (int i = 0; i < n; i++) {
+            final int end = reps.packedEnd(i);
+            for (int j = reps.packedStart(i); j < end; j++) {
+                int slot = findSlot(table, packed.get(j));
+                postArray[fill[slot]] = i;
+                fill[slot]++;
+            }
+        }
+        this.keys = LongBuffer.wrap(table);
+        this.starts = IntBuffer.wrap(startArray);
+        this.postings = IntBuffer.wrap(postArray);
+        this.mask = table.length - 1;
+        this.kmerCount = used;
+        log.info("{} kmers and {} postings indexed in {} seconds.", used, postArray.length,
+                (System.currentTimeMillis() - start) / 1000.0);
+    }
+
+    /**
+     * Construct an index from pre-built buffers.
+     *
+     * @param keys			hash table of kmers (length must be a power of 2)
+     * @param starts		posting-list start positions, by slot
+     * @param postings		representative ordinals for the posting lists
+     * @param kmerCount		number of distinct kmers in the table
+     */
+    public KmerIndex(LongBuffer keys, IntBuffer starts, IntBuffer postings, int kmerCount) {
+        final int cap = keys.capacity();
+        if (Integer.bitCount(cap) != 1)
+            throw new IllegalArgumentException("Kmer index capacity " + cap + " is not a power of 2.");
+        this.keys = keys;
+        this.starts = starts;
+        this.postings = postings;
+        this.mask = cap - 1;
+        this.kmerCount = kmerCount;
+    }
+
+    /**
+     * @return the hash slot for a kmer
+     *
+     * @param kmer	packed kmer to hash
+     * @param mask	mask for the table size
+     */
+    private static int hash(long kmer, int mask) {
+        long h = kmer * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 29);
+        return (int) h & mask;
+    }
+
+    /**
+     * @return the slot containing a kmer in a build table, or the empty slot where it belongs
+     *
+     * @param table		hash table being built
+     * @param kmer		kmer to find
+     */
+    private static int findSlot(long[] table, long kmer) {
+        final int m = table.length - 1;
+        int retVal = hash(kmer, m);
+        while (table[retVal] != EMPTY && table[retVal] != kmer)
+            retVal = (retVal + 1) & m;
+        return retVal;
+    }
+
+    /**
+     * @return the slot containing the specified kmer, or -1 if the kmer is not in the index
+     *
+     * @param kmer	packed kmer to find
+     */
+    public int find(long kmer) {
+        int slot = hash(kmer, this.mask);
+        long key = this.keys.get(slot);
+        while (key != EMPTY && key != kmer) {
+            slot = (slot + 1) & this.mask;
+            key = this.keys.get(slot);
+        }
+        return (key == EMPTY ? -1 : slot);
+    }
+
+    /**
+     * @return the position of the first posting for a slot
+     *
+     * @param slot		slot whose postings are desired
+     */
+    public int start(int slot) {
+        return this.starts.get(slot);
+    }
+
+    /**
+     * @return the position past the last posting for a slot
+     *
+     * @param slot		slot whose postings are desired
+     */
+    public int end(int slot) {
+        return this.starts.get(slot + 1);
+    }
+
+    /**
+     * @return the representative ordinal at the specified posting position
+     *
+     * @param pos	posting position
+     */
+    public int posting(int pos) {
+        return this.postings.get(pos);
+    }
+
+    /**
+     * @return the number of distinct kmers in the index
+     */
+    public int size() {
+        return this.kmerCount;
+    }
+
+    /**
+     * @return the hash table buffer
+     */
+    public LongBuffer getKeys() {
+        return this.keys;
+    }
+
+    /**
+     * @return the posting-list start buffer
+     */
+    public IntBuffer getStarts() {
+        return this.starts;
+    }
+
+    /**
+     * @return the posting buffer
+     */
+    public IntBuffer getPostings() {
+        return this.postings;
+    }
+
+}
@@ -0,0 +1,41 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import org.theseed.sequence.SequenceKmers;
+
+/**
+ * This is the base class for the classification engines that work on the string kmer sets produced by the
+ * sequence library.  The kmer set for each read is obtained from the read itself and passed to the subclass.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public abstract class KmerSetSsuClassifier extends SsuClassifier {
+
+    /**
+     * Construct a kmer-set classification engine.
+     *
+     * @param reps		table of representative genomes
+     * @param minSim	minimum similarity fraction for an acceptable hit
+     */
+    public KmerSetSsuClassifier(RepSsuTable reps, double minSim) {
+        super(reps, minSim);
+    }
+
+    @Override
+    public long findBest(AmpliconRead read) {
+        return this.findBest(read.getKmers());
+    }
+
+    /**
+     * Find the best representative for a read using its kmer set.
+     *
+     * @param readKmers		kmer set for the read
+     *
+     * @return the hit code for the best representative, or NO_HIT if no representative shares any kmers
+     */
+    protected abstract long findBest(SequenceKmers readKmers);
+
+}
@@ -0,0 +1,57 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+/**
+ * This classification engine uses an inverted index from each packed SSU kmer to the ordinals of the representatives
+ * containing it.  For each read, we run through the read's kmers and bump a hit counter for every representative
+ * in the kmer's posting list.  The counter for a representative is then exactly the number of kmers it shares with
+ * the read, which is the similarity the packed scan engine computes.  Representatives that share no kmers with the
+ * read are never touched.  This is the packed-kmer equivalent of the index engine, and it is the only index engine
+ * that can use a compiled database.
+ *
+ * The hit counters are kept in a per-thread tally so that reads can be classified in parallel.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PackedIndexSsuClassifier extends PackedSsuClassifier {
+
+    // FIELDS
+    /** inverted index of representative kmers */
+    private KmerIndex index;
+    /** per-thread hit tally */
+    private ThreadLocal<RepTally> tallies;
+
+    /**
+     * Construct a packed index-based classification engine.
+     *
+     * @param reps		table of representative genomes
+     * @param minSim	minimum similarity fraction for an acceptable hit
+     */
+    public PackedIndexSsuClassifier(RepSsuTable reps, double minSim) {
+        super(reps, minSim);
+        this.index = reps.getIndex();
+        final int n = reps.size();
+        this.tallies = ThreadLocal.withInitial(() -> new RepTally(n));
+    }
+
+    @Override
+    protected long findBest(long[] kmers, int n) {
+        RepTally tally = this.tallies.get();
+        final KmerIndex idx = this.index;
+        // Accumulate the counts for the representatives sharing each kmer.
+        for (int i = 0; i < n; i++) {
+            int slot = idx.find(kmers[i]);
+            if (slot >= 0) {
+                final int end = idx.end(slot);
+                for (int pos = idx.start(slot); pos < end; pos++)
+                    tally.add(idx.posting(pos));
+            }
+        }
+        // Find the best count.  This also clears the tally for the next read.
+        return tally.best();
+    }
+
+}
@@ -0,0 +1,232 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * This object converts DNA sequences to sets of packed kmers.  Each nucleotide is stored in two bits, so a kmer of
+ * up to 31 base pairs fits in a long.  A kmer is always stored in canonical form, which is the lesser of the kmer
+ * and its reverse complement, so the two strands of a sequence produce the same kmer set.
+ *
+ * The kmers are rolled over the sequence, so no strings are created, and they are accumulated in a buffer that is
+ * reused from one read to the next.  A kmerizer is not thread-safe, so each thread needs its own.
+ *
+ * The similarity between two packed kmer sets is the number of distinct canonical kmers they have in common.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PackedKmerizer {
+
+    // FIELDS
+    /** kmer size */
+    private final int k;
+    /** mask for the bits of a packed kmer */
+    private final long mask;
+    /** shift to put a nucleotide in the high position of a kmer */
+    private final int highShift;
+    /** kmer buffer */
+    private long[] buffer;
+    /** number of kmers in the buffer */
+    private int size;
+    /** largest kmer size that can be packed */
+    public static final int MAX_K = 31;
+    /** value indicating an invalid nucleotide */
+    private static final int INVALID = -1;
+    /** map of characters to nucleotide codes */
+    private static final int[] CODES = new int[128];
+    static {
+        Arrays.fill(CODES, INVALID);
+        CODES['a'] = 0; CODES['A'] = 0;
+        CODES['c'] = 1; CODES['C'] = 1;
+        CODES['g'] = 2; CODES['G'] = 2;
+        CODES['t'] = 3; CODES['T'] = 3;
+        CODES['u'] = 3; CODES['U'] = 3;
+    }
+
+    /**
+     * Construct a kmerizer for a specified kmer size.
+     *
+     * @param k		kmer size (must be no greater than MAX_K)
+     */
+    public PackedKmerizer(int k) {
+        if (k < 1 || k > MAX_K)
+            throw new IllegalArgumentException("Packed kmer size must be between 1 and " + MAX_K + ".");
+        this.k = k;
+        this.mask = (1L << (2 * k)) - 1;
+        this.highShift = 2 * (k - 1);
+        this.buffer = new long[500];
+        this.size = 0;
+    }
+
+    /**
+     * Compute the kmers for a read.  The kmers for both sequences are put in the buffer, sorted, and
+     * de-duplicated.  No kmers span the gap between the two sequences.
+     *
+     * @param lseq		left sequence
+     * @param rseq		right sequence (may be empty)
+     *
+     * @return the number of distinct kmers found
+     */
+    public int kmerize(CharSequence lseq, CharSequence rseq) {
+        this.size = 0;
+        this.addKmers(lseq);
+        this.addKmers(rseq);
+        return this.finish();
+    }
+
+    /**
+     * Compute the kmers for a single sequence.
+     *
+     * @param seq		sequence to process
+     *
+     * @return the number of distinct kmers found
+     */
+    public int kmerize(CharSequence seq) {
+        this.size = 0;
+        this.addKmers(seq);
+        return this.finish();
+    }
+
+    /**
+     * Sort and de-duplicate the kmer buffer.
+     *
+     * @return the number of distinct kmers remaining
+     */
+    private int finish() {
+        final long[] kmers = this.buffer;
+        final int n = this.size;
+        Arrays.sort(kmers, 0, n);
+        int retVal = 0;
+        for (int i = 0; i < n; i++) {
+            if (retVal == 0 || kmers[i] != kmers[retVal - 1]) {
+                kmers[retVal] = kmers[i];
+                retVal++;
+            }
+        }
+        this.size = retVal;
+        return retVal;
+    }
+
+    /**
+     * Add the canonical kmers of a sequence to the buffer.  Kmers containing ambiguity characters are skipped.
+     *
+     * @param seq		sequence to process
+     */
+    private void addKmers(CharSequence seq) {
+        final int n = seq.length();
+        // Insure there is room in the buffer.
+        if (this.size + n > this.buffer.length)
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.size + n));
+        long fwd = 0;
+        long rev = 0;
+        int valid = 0;
+        for (int i = 0; i < n; i++) {
+            char c = seq.charAt(i);
+            int code = (c < 128 ? CODES[c] : INVALID);
+            if (code == INVALID)
+                valid = 0;
+            else {
+                fwd = ((fwd << 2) | code) & this.mask;
+                rev = (rev >>> 2) | ((long) (3 - code) << this.highShift);
+                valid++;
+                if (valid >= this.k) {
+                    this.buffer[this.size] = (fwd < rev ? fwd : rev);
+                    this.size++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the kmer buffer; only the first "size()" positions are valid
+     */
+    public long[] getKmers() {
+        return this.buffer;
+    }
+
+    /**
+     * @return the number of kmers in the buffer
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the kmer size
+     */
+    public int getK() {
+        return this.k;
+    }
+
+    /**
+     * @return the canonical packed form of a kmer string, or -1 if it contains an invalid character
+     *
+     * @param kmer	kmer string to encode
+     */
+    public long encode(CharSequence kmer) {
+        long retVal = -1L;
+        if (kmer.length() == this.k) {
+            long fwd = 0;
+            long rev = 0;
+            boolean ok = true;
+            for (int i = 0; ok && i < this.k; i++) {
+                char c = kmer.charAt(i);
+                int code = (c < 128 ? CODES[c] : INVALID);
+                if (code == INVALID)
+                    ok = false;
+                else {
+                    fwd = (fwd << 2) | code;
+                    rev = (rev >>> 2) | ((long) (3 - code) << this.highShift);
+                }
+            }
+            if (ok)
+                retVal = (fwd < rev ? fwd : rev);
+        }
+        return retVal;
+    }
+
+    /**
+     * Count the kmers two sorted kmer arrays have in common.
+     *
+     * @param a			first kmer array
+     * @param aLen		number of kmers in the first array
+     * @param b			second kmer array
+     * @param bStart	index of the first kmer in the second array
+     * @param bEnd		index past the last kmer in the second array
+     *
+     * @return the number of kmers found in both arrays
+     */
+    public static int similarity(long[] a, int aLen, LongBuffer b, int bStart, int bEnd) {
+        int retVal = 0;
+        int i = 0;
+        int j = bStart;
+        if (aLen > 0 && j < bEnd) {
+            long av = a[0];
+            long bv = b.get(j);
+            while (true) {
+                if (av < bv) {
+                    i++;
+                    if (i >= aLen) break;
+                    av = a[i];
+                } else if (av > bv) {
+                    j++;
+                    if (j >= bEnd) break;
+                    bv = b.get(j);
+                } else {
+                    retVal++;
+                    i++;
+                    j++;
+                    if (i >= aLen || j >= bEnd) break;
+                    av = a[i];
+                    bv = b.get(j);
+                }
+            }
+        }
+        return retVal;
+    }
+
+}
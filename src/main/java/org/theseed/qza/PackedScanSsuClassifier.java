@@ -0,0 +1,39 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.nio.LongBuffer;
+
+/**
+ * This engine compares a read's packed kmers to the packed kmers of every representative in ordinal order and keeps
+ * the first one with the highest score.  It is the packed-kmer equivalent of the scan engine, and is the reference
+ * against which the faster packed engines are checked.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PackedScanSsuClassifier extends PackedSsuClassifier {
+
+    public PackedScanSsuClassifier(RepSsuTable reps, double minSim) {
+        super(reps, minSim);
+    }
+
+    @Override
+    protected long findBest(long[] kmers, int n) {
+        RepSsuTable reps = this.getReps();
+        final LongBuffer packed = reps.getPacked();
+        final int nReps = reps.size();
+        long retVal = NO_HIT;
+        int best = 0;
+        for (int i = 0; i < nReps; i++) {
+            int simCount = PackedKmerizer.similarity(kmers, n, packed, reps.packedStart(i), reps.packedEnd(i));
+            if (simCount > best) {
+                best = simCount;
+                retVal = packHit(i, simCount);
+            }
+        }
+        return retVal;
+    }
+
+}
@@ -0,0 +1,76 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import org.theseed.sequence.DnaKmers;
+
+/**
+ * This is the base class for the classification engines that work on packed kmers.  The constructor insures the
+ * representative table has packed kmers, and each read is converted to a sorted array of distinct packed kmers
+ * by a per-thread kmerizer before it is passed to the subclass.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public abstract class PackedSsuClassifier extends SsuClassifier {
+
+    // FIELDS
+    /** per-thread read kmerizer */
+    private ThreadLocal<PackedKmerizer> kmerizers;
+
+    /**
+     * Construct a packed classification engine.
+     *
+     * @param reps		table of representative genomes
+     * @param minSim	minimum similarity fraction for an acceptable hit
+     */
+    public PackedSsuClassifier(RepSsuTable reps, double minSim) {
+        super(reps, minSim);
+        reps.pack(DnaKmers.kmerSize());
+        final int k = reps.getPackedK();
+        this.kmerizers = ThreadLocal.withInitial(() -> new PackedKmerizer(k));
+    }
+
+    @Override
+    public long findBest(AmpliconRead read) {
+        PackedKmerizer kmerizer = this.kmerizers.get();
+        int n = kmerizer.kmerize(read.getLseq(), read.getRseq());
+        return this.findBest(kmerizer.getKmers(), n);
+    }
+
+    @Override
+    public long findGood(AmpliconRead read) {
+        PackedKmerizer kmerizer = this.kmerizers.get();
+        int n = kmerizer.kmerize(read.getLseq(), read.getRseq());
+        return this.findGood(kmerizer.getKmers(), n, read.length());
+    }
+
+    /**
+     * Find the best representative for a read using its packed kmers.
+     *
+     * @param kmers		sorted array of distinct packed kmers for the read
+     * @param n			number of kmers in the array
+     *
+     * @return the hit code for the best representative, or NO_HIT if no representative shares any kmers
+     */
+    protected abstract long findBest(long[] kmers, int n);
+
+    /**
+     * Find the best representative for a read using its packed kmers, but only if it is good enough to count.
+     * Engines that can stop early when no remaining representative can be good enough override this method.
+     *
+     * @param kmers		sorted array of distinct packed kmers for the read
+     * @param n			number of kmers in the array
+     * @param readLen	length of the read
+     *
+     * @return the hit code for the best representative, or NO_HIT if the best representative is not good enough
+     */
+    protected long findGood(long[] kmers, int n, double readLen) {
+        long retVal = this.findBest(kmers, n);
+        if (! this.isGood(retVal, readLen))
+            retVal = NO_HIT;
+        return retVal;
+    }
+
+}
@@ -0,0 +1,231 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * This classification engine uses a cheap upper bound on each representative's similarity to avoid most of the exact
+ * comparisons.  A fixed subset of the kmers (chosen by hash, about one in SAMPLE_RATE) is indexed.  For a read, we
+ * count the sampled kmers each representative shares with the read.  A representative's similarity can be no greater
+ * than its sampled count plus the smaller of the number of unsampled read kmers and the number of unsampled
+ * representative kmers.
+ *
+ * The representatives that share sampled kmers are sorted by decreasing bound and then increasing ordinal, and then
+ * evaluated exactly in that order.  We stop as soon as the bound is lower than the best similarity found (or equal
+ * to it at a higher ordinal), because no later candidate can win.  When the read length is known, we also stop as
+ * soon as the bound is too low to reach the minimum similarity fraction.  Representatives that share no sampled
+ * kmers are only considered if the number of unsampled read kmers is high enough for one of them to win.
+ *
+ * Because a candidate is only skipped when its bound proves it cannot beat the best hit, the result is the same as
+ * the exhaustive packed scan.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PruneSsuClassifier extends PackedSsuClassifier {
+
+    // FIELDS
+    /** inverted index of the sampled representative kmers */
+    private KmerIndex sampleIndex;
+    /** number of unsampled kmers in each representative, by ordinal */
+    private int[] unsampled;
+    /** per-thread candidate workspace */
+    private ThreadLocal<Workspace> workspaces;
+    /** sampling rate for the kmers in the bound index (must be a power of 2) */
+    public static final int SAMPLE_RATE = 4;
+    /** mask for choosing sampled kmers */
+    private static final long SAMPLE_MASK = SAMPLE_RATE - 1;
+
+    /**
+     * This object contains the candidate arrays for a single thread.
+     */
+    private static class Workspace {
+
+        /** sampled hit counts */
+        private RepTally tally;
+        /** sort keys for the candidates */
+        private long[] keys;
+        /** flags indicating which representatives were candidates */
+        private boolean[] seen;
+        /** number of exact comparisons in the last search */
+        private int compared;
+
+        /**
+         * Create a workspace for the specified number of representatives.
+         *
+         * @param n		number of representatives
+         */
+        protected Workspace(int n) {
+            this.tally = new RepTally(n);
+            this.keys = new long[n];
+            this.seen = new boolean[n];
+        }
+
+    }
+
+    /**
+     * Construct a pruning classification engine.
+     *
+     * @param reps		table of representative genomes
+     * @param minSim	minimum similarity fraction for an acceptable hit
+     */
+    public PruneSsuClassifier(RepSsuTable reps, double minSim) {
+        super(reps, minSim);
+        // Extract the sampled kmers into a secondary representative table and index it.
+        final int n = reps.size();
+        final LongBuffer packed = reps.getPacked();
+        String[] ids = new String[n];
+        String[] names = new String[n];
+        long[] sampled = new long[packed.capacity() / SAMPLE_RATE + n];
+        int[] starts = new int[n + 1];
+        this.unsampled = new int[n];
+        int used = 0;
+        for (int i = 0; i < n; i++) {
+            ids[i] = reps.getId(i);
+            names[i] = reps.getName(i);
+            starts[i] = used;
+            final int end = reps.packedEnd(i);
+            for (int j = reps.packedStart(i); j < end; j++) {
+                long kmer = packed.get(j);
+                if (isSampled(kmer)) {
+                    if (used >= sampled.length)
+                        sampled = Arrays.copyOf(sampled, sampled.length * 2);
+                    sampled[used] = kmer;
+                    used++;
+                } else
+                    this.unsampled[i]++;
+            }
+        }
+        starts[n] = used;
+        RepSsuTable sampleTable = new RepSsuTable(ids, names, reps.getPackedK(),
+                LongBuffer.wrap(Arrays.copyOf(sampled, used)), IntBuffer.wrap(starts), null);
+        this.sampleIndex = sampleTable.getIndex();
+        this.workspaces = ThreadLocal.withInitial(() -> new Workspace(n));
+    }
+
+    /**
+     * @return TRUE if the specified kmer is in the sampled subset
+     *
+     * @param kmer	packed kmer to check
+     */
+    private static boolean isSampled(long kmer) {
+        long h = kmer * 0xC2B2AE3D27D4EB4FL;
+        return ((h >>> 40) & SAMPLE_MASK) == 0;
+    }
+
+    @Override
+    protected long findBest(long[] kmers, int n) {
+        return this.search(kmers, n, 0.0);
+    }
+
+    @Override
+    public int getLastComparisons() {
+        return this.workspaces.get().compared;
+    }
+
+    @Override
+    protected long findGood(long[] kmers, int n, double readLen) {
+        return this.search(kmers, n, readLen);
+    }
+
+    /**
+     * Find the best representative for a read.
+     *
+     * @param kmers		sorted array of distinct packed kmers for the read
+     * @param n			number of kmers in the array
+     * @param readLen	length of the read, or 0 to return the best hit even if it is not good enough
+     *
+     * @return the hit code for the best representative, or NO_HIT if there is none; if a read length is specified,
+     * 		   NO_HIT is also returned if the best representative is not good enough
+     */
+    private long search(long[] kmers, int n, double readLen) {
+        Workspace ws = this.workspaces.get();
+        final RepTally tally = ws.tally;
+        final long[] keys = ws.keys;
+        final KmerIndex idx = this.sampleIndex;
+        final double minSim = this.getMinSim();
+        final boolean checkLen = (readLen > 0.0);
+        ws.compared = 0;
+        // Count the sampled kmers shared with each representative, and the unsampled read kmers.
+        int free = 0;
+        for (int i = 0; i < n; i++) {
+            final long kmer = kmers[i];
+            if (! isSampled(kmer))
+                free++;
+            else {
+                int slot = idx.find(kmer);
+                if (slot >= 0) {
+                    final int end = idx.end(slot);
+                    for (int pos = idx.start(slot); pos < end; pos++)
+                        tally.add(idx.posting(pos));
+                }
+            }
+        }
+        // Build the sort keys.  The high word is the complement of the bound, so that the highest bound sorts
+        // first, and the low word is the ordinal, so that ties sort by ordinal.
+        final int nTouched = tally.size();
+        for (int k = 0; k < nTouched; k++) {
+            final int repIdx = tally.getIdx(k);
+            final int bound = tally.getCount(repIdx) + Math.min(free, this.unsampled[repIdx]);
+            keys[k] = ((long) (Integer.MAX_VALUE - bound) << 32) | repIdx;
+        }
+        tally.clear();
+        Arrays.sort(keys, 0, nTouched);
+        // Evaluate the candidates in order until none of the rest can win.
+        final RepSsuTable reps = this.getReps();
+        final LongBuffer packed = reps.getPacked();
+        int best = 0;
+        int bestIdx = Integer.MAX_VALUE;
+        boolean done = false;
+        for (int k = 0; k < nTouched && ! done; k++) {
+            final int bound = Integer.MAX_VALUE - (int) (keys[k] >>> 32);
+            final int repIdx = (int) keys[k];
+            if (! beats(bound, repIdx, best, bestIdx) || checkLen && bound / readLen < minSim)
+                done = true;
+            else {
+                int sim = PackedKmerizer.similarity(kmers, n, packed, reps.packedStart(repIdx), reps.packedEnd(repIdx));
+                ws.compared++;
+                if (beats(sim, repIdx, best, bestIdx)) {
+                    best = sim;
+                    bestIdx = repIdx;
+                }
+            }
+        }
+        // The representatives without sampled hits can have at most "free" kmers in common with the read.  We only
+        // need to look at them if that is enough to win.
+        if (free > 0 && free >= best && ! (checkLen && free / readLen < minSim)) {
+            final boolean[] seen = ws.seen;
+            for (int k = 0; k < nTouched; k++)
+                seen[(int) keys[k]] = true;
+            final int nReps = reps.size();
+            for (int repIdx = 0; repIdx < nReps; repIdx++) {
+                if (! seen[repIdx]) {
+                    final int bound = Math.min(free, this.unsampled[repIdx]);
+                    if (beats(bound, repIdx, best, bestIdx) && ! (checkLen && bound / readLen < minSim)) {
+                        int sim = PackedKmerizer.similarity(kmers, n, packed, reps.packedStart(repIdx),
+                                reps.packedEnd(repIdx));
+                        ws.compared++;
+                        if (beats(sim, repIdx, best, bestIdx)) {
+                            best = sim;
+                            bestIdx = repIdx;
+                        }
+                    }
+                }
+            }
+            for (int k = 0; k < nTouched; k++)
+                seen[(int) keys[k]] = false;
+        }
+        long retVal = NO_HIT;
+        if (best > 0) {
+            retVal = packHit(bestIdx, best);
+            if (checkLen && ! this.isGood(retVal, readLen))
+                retVal = NO_HIT;
+        }
+        return retVal;
+    }
+
+}
@@ -0,0 +1,283 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This sample source streams reads directly out of a QZA archive.  A QZA file is a zip archive whose "data" directory
+ * contains gzipped FASTQ files, one per sample and direction, along with a MANIFEST file that maps the file names to
+ * sample IDs and directions.  Each FASTQ entry is decompressed on the fly and parsed in place (see
+ * FastqRecordReader), so nothing is extracted to disk.
+ *
+ * If there is no MANIFEST, the sample IDs and directions are computed from the Casava-style file names
+ * ("sample_S1_L001_R1_001.fastq.gz").
+ *
+ * If a filter is specified, reads that fail it are not copied out of the parsing buffers.  Instead, a reusable
+ * placeholder read with the correct quality and lengths is returned.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class QzaStreamSource implements AmpliconSampleSource {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(QzaStreamSource.class);
+    /** zip archive being read */
+    private final ZipFile zipFile;
+    /** map of sample IDs to forward and reverse entries */
+    private final Map<String, ZipEntry[]> samples;
+    /** phred offset for quality strings */
+    private final int phredOffset;
+    /** minimum acceptable mean quality */
+    private double minQual;
+    /** minimum acceptable length for the longer sequence of a read */
+    private int minLen;
+    /** size of the decompression buffer */
+    private static final int GZIP_BUFFER = 1 << 16;
+    /** pattern for Casava-style file names */
+    private static final Pattern CASAVA_NAME = Pattern.compile("(.+)_S?\\d+_L\\d{3}_R([12])_001\\.fastq\\.gz");
+
+    /**
+     * This object streams the reads of a single sample.
+     */
+    private static class Stream implements AmpliconReadStream {
+
+        /** forward record reader */
+        private final FastqRecordReader fwd;
+        /** reverse record reader, or NULL for unpaired reads */
+        private final FastqRecordReader rev;
+        /** phred offset for quality strings */
+        private final int phredOffset;
+        /** minimum acceptable mean quality */
+        private final double minQual;
+        /** minimum acceptable length for the longer sequence of a read */
+        private final int minLen;
+        /** placeholder for rejected reads */
+        private final RejectedRead rejected;
+        /** next read to return, or NULL if it has not been parsed */
+        private AmpliconRead nextRead;
+        /** TRUE if the end of the sample has been reached */
+        private boolean done;
+
+        /**
+         * Create a stream for a sample.
+         *
+         * @param fwd			forward record reader
+         * @param rev			reverse record reader, or NULL
+         * @param phredOffset	phred offset for quality strings
+         * @param minQual		minimum acceptable mean quality
+         * @param minLen		minimum acceptable length for the longer sequence of a read
+         */
+        protected Stream(FastqRecordReader fwd, FastqRecordReader rev, int phredOffset, double minQual, int minLen) {
+            this.fwd = fwd;
+            this.rev = rev;
+            this.phredOffset = phredOffset;
+            this.minQual = minQual;
+            this.minLen = minLen;
+            this.rejected = new RejectedRead();
+            this.nextRead = null;
+            this.done = false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.nextRead == null && ! this.done) {
+                try {
+                    if (! this.fwd.next())
+                        this.done = true;
+                    else if (this.rev != null && ! this.rev.next())
+                        throw new IOException("Reverse FASTQ file is shorter than the forward file.");
+                    else
+                        this.nextRead = this.parseRead();
+                } catch (IOException e) {
+                    throw new RuntimeException("Error reading QZA sample: " + e.toString(), e);
+                }
+            }
+            return (this.nextRead != null);
+        }
+
+        /**
+         * @return the read for the current records, or the rejection placeholder if it fails the filter
+         */
+        private AmpliconRead parseRead() {
+            AmpliconRead retVal;
+            final double qual = StreamedRead.meanQual(this.fwd, this.rev, this.phredOffset);
+            final int lLen = this.fwd.getSeqLen();
+            final int rLen = (this.rev == null ? 0 : this.rev.getSeqLen());
+            final int maxLen = Math.max(lLen, rLen);
+            if (qual >= this.minQual && maxLen >= this.minLen)
+                retVal = new StreamedRead(this.fwd, this.rev, this.phredOffset);
+            else {
+                this.rejected.setStats(qual, maxLen, lLen + rLen);
+                retVal = this.rejected;
+            }
+            return retVal;
+        }
+
+        @Override
+        public AmpliconRead next() {
+            if (! this.hasNext())
+                throw new NoSuchElementException("No more reads in sample.");
+            AmpliconRead retVal = this.nextRead;
+            this.nextRead = null;
+            return retVal;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.fwd.close();
+            } finally {
+                if (this.rev != null)
+                    this.rev.close();
+            }
+        }
+
+    }
+
+    /**
+     * Open a QZA archive for streaming.
+     *
+     * @param qzaFile		QZA file to read
+     * @param phredOffset	phred offset for quality strings
+     *
+     * @throws IOException
+     */
+    public QzaStreamSource(File qzaFile, int phredOffset) throws IOException {
+        this.zipFile = new ZipFile(qzaFile);
+        this.phredOffset = phredOffset;
+        this.minQual = 0.0;
+        this.minLen = 0;
+        this.samples = new TreeMap<String, ZipEntry[]>();
+        // Find the FASTQ entries and the manifest.
+        Map<String, ZipEntry> fastqs = new HashMap<String, ZipEntry>();
+        ZipEntry manifest = null;
+        Enumeration<? extends ZipEntry> entries = this.zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (name.contains("/data/")) {
+                String baseName = name.substring(name.lastIndexOf('/') + 1);
+                if (baseName.equals("MANIFEST"))
+                    manifest = entry;
+                else if (baseName.endsWith(".fastq.gz"))
+                    fastqs.put(baseName, entry);
+            }
+        }
+        if (manifest != null)
+            this.readManifest(manifest, fastqs);
+        else {
+            // Here we have to parse the file names.
+            for (Map.Entry<String, ZipEntry> fastq : fastqs.entrySet()) {
+                Matcher m = CASAVA_NAME.matcher(fastq.getKey());
+                if (m.matches())
+                    this.store(m.group(1), m.group(2).equals("1"), fastq.getValue());
+            }
+        }
+        log.info("{} samples found in {} FASTQ entries of {}.", this.samples.size(), fastqs.size(), qzaFile);
+    }
+
+    /**
+     * Read the manifest to determine the sample ID and direction of each FASTQ file.
+     *
+     * @param manifest		manifest entry
+     * @param fastqs		map of file names to FASTQ entries
+     *
+     * @throws IOException
+     */
+    private void readManifest(ZipEntry manifest, Map<String, ZipEntry> fastqs) throws IOException {
+        try (InputStream inStream = this.zipFile.getInputStream(manifest);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(inStream, StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            while (line != null) {
+                String[] parts = line.split(",");
+                if (parts.length >= 3 && ! line.startsWith("#") && ! parts[0].equals("sample-id")) {
+                    ZipEntry entry = fastqs.get(parts[1]);
+                    if (entry == null)
+                        throw new IOException("MANIFEST file " + parts[1] + " not found in archive.");
+                    this.store(parts[0], ! parts[2].equals("reverse"), entry);
+                }
+                line = reader.readLine();
+            }
+        }
+    }
+
+    /**
+     * Store a FASTQ entry for a sample.
+     *
+     * @param sampleId		ID of the sample
+     * @param forward		TRUE for the forward file, FALSE for the reverse file
+     * @param entry			FASTQ entry
+     */
+    private void store(String sampleId, boolean forward, ZipEntry entry) {
+        ZipEntry[] pair = this.samples.computeIfAbsent(sampleId, x -> new ZipEntry[2]);
+        pair[forward ? 0 : 1] = entry;
+    }
+
+    @Override
+    public Set<String> getSampleIDs() {
+        Set<String> retVal = new TreeSet<String>();
+        for (Map.Entry<String, ZipEntry[]> sample : this.samples.entrySet()) {
+            if (sample.getValue()[0] != null)
+                retVal.add(sample.getKey());
+        }
+        return retVal;
+    }
+
+    @Override
+    public AmpliconReadStream open(String sampleId) throws IOException {
+        ZipEntry[] pair = this.samples.get(sampleId);
+        if (pair == null || pair[0] == null)
+            throw new IOException("Sample " + sampleId + " not found in QZA archive.");
+        FastqRecordReader fwd = this.openEntry(pair[0]);
+        FastqRecordReader rev = (pair[1] == null ? null : this.openEntry(pair[1]));
+        return new Stream(fwd, rev, this.phredOffset, this.minQual, this.minLen);
+    }
+
+    /**
+     * @return a FASTQ record reader for a gzipped archive entry
+     *
+     * @param entry		entry to open
+     *
+     * @throws IOException
+     */
+    private FastqRecordReader openEntry(ZipEntry entry) throws IOException {
+        InputStream inStream = new GZIPInputStream(this.zipFile.getInputStream(entry), GZIP_BUFFER);
+        return new FastqRecordReader(inStream);
+    }
+
+    @Override
+    public void setFilter(double minQual, int minLen) {
+        this.minQual = minQual;
+        this.minLen = minLen;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.zipFile.close();
+    }
+
+}
@@ -0,0 +1,205 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This is a bounded cache of classification results for read sequences.  Amplicon samples are extremely redundant,
+ * so the same read sequence is classified over and over again.  The cache is keyed by a 64-bit hash of the read's
+ * left and right sequences, and stores the hit code (best representative ordinal and similarity count) computed by
+ * the classification engine.
+ *
+ * The cache is organized as a set-associative table of primitive arrays.  Each key maps to a set of four slots.
+ * Each slot has a use frequency, and when a set is full, the least-frequently-used slot is evicted and the
+ * frequencies of the others are halved, so that old favorites eventually age out.  The sets are protected by a
+ * striped array of locks, so the cache can be shared by all the worker threads and by all the samples in a run.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ReadHitCache {
+
+    // FIELDS
+    /** key for each slot (0 if the slot is empty) */
+    private final long[] keys;
+    /** hit code for each slot */
+    private final long[] values;
+    /** use frequency for each slot */
+    private final int[] freqs;
+    /** mask for computing a set number from a key */
+    private final int setMask;
+    /** lock objects for the sets */
+    private final Object[] locks;
+    /** number of cache hits */
+    private final LongAdder hits;
+    /** number of cache misses */
+    private final LongAdder misses;
+    /** number of slots in each set */
+    private static final int WAYS = 4;
+    /** number of locks (must be a power of 2) */
+    private static final int LOCKS = 256;
+    /** value returned for a cache miss */
+    public static final long MISS = Long.MIN_VALUE;
+
+    /**
+     * Construct a new, empty read-hit cache.
+     *
+     * @param capacity		approximate maximum number of entries (rounded up to a power of 2)
+     */
+    public ReadHitCache(int capacity) {
+        int sets = 1;
+        while (sets * WAYS < capacity)
+            sets <<= 1;
+        this.setMask = sets - 1;
+        final int size = sets * WAYS;
+        this.keys = new long[size];
+        this.values = new long[size];
+        this.freqs = new int[size];
+        this.locks = new Object[LOCKS];
+        for (int i = 0; i < LOCKS; i++)
+            this.locks[i] = new Object();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    /**
+     * Compute the cache key for a read.  This is a 64-bit hash of the two sequences, ignoring case.
+     *
+     * @param lseq		left sequence
+     * @param rseq		right sequence
+     *
+     * @return a nonzero hash key for the read
+     */
+    public static long key(CharSequence lseq, CharSequence rseq) {
+        long h = 0xcbf29ce484222325L;
+        h = hashInto(h, lseq);
+        // Separate the two sequences so that moving bases between them changes the hash.
+        h = (h ^ '|') * 0x100000001b3L;
+        h = hashInto(h, rseq);
+        // Finish with a mixing step so that the low-order bits are well distributed.
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return (h == 0 ? 1 : h);
+    }
+
+    /**
+     * Add a sequence to an FNV-1a hash.
+     *
+     * @param h		hash so far
+     * @param seq	sequence to add
+     *
+     * @return the updated hash
+     */
+    private static long hashInto(long h, CharSequence seq) {
+        final int n = seq.length();
+        for (int i = 0; i < n; i++) {
+            h ^= Character.toLowerCase(seq.charAt(i));
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Look up a read in the cache.
+     *
+     * @param key	hash key of the read
+     *
+     * @return the cached hit code, or MISS if the read is not in the cache
+     */
+    public long get(long key) {
+        final int base = this.setBase(key);
+        long retVal = MISS;
+        synchronized (this.lockFor(base)) {
+            for (int i = base; retVal == MISS && i < base + WAYS; i++) {
+                if (this.keys[i] == key) {
+                    retVal = this.values[i];
+                    if (this.freqs[i] < Integer.MAX_VALUE)
+                        this.freqs[i]++;
+                }
+            }
+        }
+        if (retVal == MISS)
+            this.misses.increment();
+        else
+            this.hits.increment();
+        return retVal;
+    }
+
+    /**
+     * Store a read's hit code in the cache.
+     *
+     * @param key	hash key of the read
+     * @param hit	hit code to store
+     */
+    public void put(long key, long hit) {
+        final int base = this.setBase(key);
+        synchronized (this.lockFor(base)) {
+            // Find the slot to use.  We prefer the slot already holding this key, then an empty slot, then the
+            // least-frequently-used slot.
+            int slot = -1;
+            int victim = base;
+            for (int i = base; slot < 0 && i < base + WAYS; i++) {
+                if (this.keys[i] == key || this.keys[i] == 0)
+                    slot = i;
+                else if (this.freqs[i] < this.freqs[victim])
+                    victim = i;
+            }
+            if (slot < 0) {
+                // Evict the victim and age the rest of the set.
+                slot = victim;
+                for (int i = base; i < base + WAYS; i++)
+                    this.freqs[i] >>= 1;
+            }
+            this.keys[slot] = key;
+            this.values[slot] = hit;
+            this.freqs[slot] = 1;
+        }
+    }
+
+    /**
+     * @return the index of the first slot in the set for a key
+     *
+     * @param key	hash key of interest
+     */
+    private int setBase(long key) {
+        return ((int) (key >>> 20) & this.setMask) * WAYS;
+    }
+
+    /**
+     * @return the lock for the set beginning at the specified slot
+     *
+     * @param base	index of the set's first slot
+     */
+    private Object lockFor(int base) {
+        return this.locks[(base / WAYS) & (LOCKS - 1)];
+    }
+
+    /**
+     * @return the number of cache hits
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return the number of cache misses
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return the fraction of lookups that were hits
+     */
+    public double getHitRate() {
+        long h = this.hits.sum();
+        long total = h + this.misses.sum();
+        return (total == 0 ? 0.0 : (double) h / total);
+    }
+
+}
@@ -0,0 +1,229 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Phaser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object manages a pool of worker threads that process chunks of items taken from a bounded queue.  The
+ * producer thread decodes and filters the input and submits chunks, while the workers process them continuously,
+ * so neither side has to wait for the other except when the queue is full or empty.
+ *
+ * The items are submitted through jobs.  Each job has its own handler, and the producer can wait for all of a job's
+ * chunks to be finished before it examines the job's results.  The producer remains registered with the job, so it
+ * can wait more than once.  Both submitting and waiting can be interrupted, so the producers must be stopped before
+ * the pipeline is closed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ReadPipeline<T> implements AutoCloseable {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(ReadPipeline.class);
+    /** queue of chunks waiting for a worker */
+    private final BlockingQueue<Chunk<T>> queue;
+    /** worker threads */
+    private final Thread[] workers;
+    /** chunk used to tell a worker to stop */
+    private final Chunk<T> stopper;
+
+    /**
+     * This interface is used to process a single item.
+     */
+    public interface Handler<T> {
+
+        /**
+         * Process an item.
+         *
+         * @param item		item to process
+         */
+        public void process(T item);
+
+    }
+
+    /**
+     * This object represents a chunk of items for a single job.
+     */
+    private static class Chunk<T> {
+
+        /** job that owns the chunk */
+        private Job<T> job;
+        /** items in the chunk */
+        private List<T> items;
+
+        /**
+         * Create a new chunk.
+         *
+         * @param job		owning job
+         * @param items		items to process
+         */
+        protected Chunk(Job<T> job, List<T> items) {
+            this.job = job;
+            this.items = items;
+        }
+
+    }
+
+    /**
+     * This object represents a set of chunks that must be tracked together, usually a sample.
+     */
+    public static class Job<T> {
+
+        /** handler for the job's items */
+        private final Handler<T> handler;
+        /** synchronizer for the outstanding chunks; the producer is the permanent party */
+        private final Phaser phaser;
+        /** first error thrown by a worker, or NULL if none */
+        private volatile RuntimeException error;
+        /** controlling pipeline */
+        private final ReadPipeline<T> parent;
+
+        /**
+         * Create a new job.
+         *
+         * @param parent	controlling pipeline
+         * @param handler	handler for the job's items
+         */
+        protected Job(ReadPipeline<T> parent, Handler<T> handler) {
+            this.parent = parent;
+            this.handler = handler;
+            this.phaser = new Phaser(1);
+            this.error = null;
+        }
+
+        /**
+         * Submit a chunk of items for processing.  The chunk list becomes the property of the pipeline and must
+         * not be reused by the caller.  If the queue is full, this method blocks until there is room.
+         *
+         * @param items		list of items to process
+         *
+         * @throws InterruptedException
+         */
+        public void submit(List<T> items) throws InterruptedException {
+            if (! items.isEmpty()) {
+                this.phaser.register();
+                this.parent.queue.put(new Chunk<T>(this, items));
+            }
+        }
+
+        /**
+         * @return the number of chunks from all jobs waiting in the pipeline's queue
+         */
+        public int getQueueDepth() {
+            return this.parent.getQueueDepth();
+        }
+
+        /**
+         * Wait for all the chunks submitted so far to be processed.  The wait can be interrupted, so that a failed
+         * run can stop the threads waiting on its jobs.
+         *
+         * @throws InterruptedException
+         */
+        public void await() throws InterruptedException {
+            this.phaser.awaitAdvanceInterruptibly(this.phaser.arrive());
+            if (this.error != null)
+                throw this.error;
+        }
+
+        /**
+         * Process a chunk for this job.
+         *
+         * @param items		items to process
+         */
+        protected void run(List<T> items) {
+            try {
+                if (this.error == null) {
+                    for (T item : items)
+                        this.handler.process(item);
+                }
+            } catch (RuntimeException e) {
+                this.error = e;
+            } finally {
+                this.phaser.arriveAndDeregister();
+            }
+        }
+
+    }
+
+    /**
+     * Create and start a read pipeline.
+     *
+     * @param nWorkers		number of worker threads
+     * @param capacity		maximum number of chunks allowed in the queue
+     */
+    public ReadPipeline(int nWorkers, int capacity) {
+        this.queue = new ArrayBlockingQueue<Chunk<T>>(capacity);
+        this.stopper = new Chunk<T>(null, null);
+        this.workers = new Thread[nWorkers];
+        for (int i = 0; i < nWorkers; i++) {
+            Thread worker = new Thread(() -> this.work(), "ReadWorker-" + i);
+            worker.setDaemon(true);
+            this.workers[i] = worker;
+            worker.start();
+        }
+        log.info("Read pipeline started with {} workers and a queue of {} chunks.", nWorkers, capacity);
+    }
+
+    /**
+     * @return a new job using the specified handler
+     *
+     * @param handler	handler for the job's items
+     */
+    public Job<T> newJob(Handler<T> handler) {
+        return new Job<T>(this, handler);
+    }
+
+    /**
+     * Main loop for a worker thread.
+     */
+    private void work() {
+        try {
+            Chunk<T> chunk = this.queue.take();
+            while (chunk != this.stopper) {
+                chunk.job.run(chunk.items);
+                chunk = this.queue.take();
+            }
+        } catch (InterruptedException e) {
+            // Here we were interrupted during shutdown.  Just exit.
+        }
+    }
+
+    /**
+     * @return the number of chunks currently waiting in the queue
+     */
+    public int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int getWorkerCount() {
+        return this.workers.length;
+    }
+
+    @Override
+    public void close() {
+        // Tell each worker to stop, then wait for them.
+        try {
+            for (int i = 0; i < this.workers.length; i++)
+                this.queue.put(this.stopper);
+            for (Thread worker : this.workers)
+                worker.join();
+        } catch (InterruptedException e) {
+            for (Thread worker : this.workers)
+                worker.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+/**
+ * This object is a placeholder for a read that failed a sample source's filter.  It has no sequence data, only the
+ * quality and lengths the client's filter needs to reject it.  A source reuses a single placeholder for all of the
+ * rejected reads in a sample.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class RejectedRead implements AmpliconRead {
+
+    // FIELDS
+    /** mean quality of the read */
+    private double qual;
+    /** length of the longer sequence */
+    private int maxLen;
+    /** total length of the read */
+    private int len;
+
+    /**
+     * Store the statistics for the current rejected read.
+     *
+     * @param qual		mean quality of the read
+     * @param maxLen	length of the longer sequence
+     * @param len		total length of the read
+     */
+    protected void setStats(double qual, int maxLen, int len) {
+        this.qual = qual;
+        this.maxLen = maxLen;
+        this.len = len;
+    }
+
+    @Override
+    public String getLabel() {
+        return "";
+    }
+
+    @Override
+    public CharSequence getLseq() {
+        return "";
+    }
+
+    @Override
+    public CharSequence getRseq() {
+        return "";
+    }
+
+    @Override
+    public double getQual() {
+        return this.qual;
+    }
+
+    @Override
+    public int maxlength() {
+        return this.maxLen;
+    }
+
+    @Override
+    public int length() {
+        return this.len;
+    }
+
+}
@@ -0,0 +1,119 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This object counts read hits for representative genomes addressed by ordinal.  Each thread that records hits
+ * gets its own primitive counter array, so the worker threads never contend for a lock while counting.  The
+ * per-thread arrays are merged when a sample is finished.
+ *
+ * The merge must only be performed when no other thread is counting, for example after a parallel stream or
+ * a worker pool has finished with the sample's reads.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RepHitCounter {
+
+    // FIELDS
+    /** number of representatives */
+    private final int width;
+    /** list of the per-thread counter arrays */
+    private final List<int[]> slots;
+    /** counter array for the current thread */
+    private final ThreadLocal<int[]> local;
+
+    /**
+     * Construct a hit counter for the specified number of representatives.
+     *
+     * @param width		number of representative genomes
+     */
+    public RepHitCounter(int width) {
+        this.width = width;
+        this.slots = new ArrayList<int[]>();
+        this.local = ThreadLocal.withInitial(() -> this.newSlot());
+    }
+
+    /**
+     * @return a new counter array registered for merging
+     */
+    private synchronized int[] newSlot() {
+        int[] retVal = new int[this.width];
+        this.slots.add(retVal);
+        return retVal;
+    }
+
+    /**
+     * Count a hit for a representative.
+     *
+     * @param idx	ordinal of the representative hit
+     */
+    public void count(int idx) {
+        this.local.get()[idx]++;
+    }
+
+    /**
+     * Add a number of hits for a representative.
+     *
+     * @param idx		ordinal of the representative hit
+     * @param hits		number of hits to add
+     */
+    public void add(int idx, int hits) {
+        this.local.get()[idx] += hits;
+    }
+
+    /**
+     * Merge the counts from all the threads and clear the per-thread counters for the next sample.
+     *
+     * @return an array of the total hits for each representative, indexed by ordinal
+     */
+    public synchronized int[] merge() {
+        int[] retVal = new int[this.width];
+        for (int[] slot : this.slots) {
+            for (int i = 0; i < this.width; i++) {
+                retVal[i] += slot[i];
+                slot[i] = 0;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Compute the current totals without clearing the per-thread counters.  Like the merge, this should only be
+     * called when no other thread is counting, or the result will be approximate.
+     *
+     * @return an array of the hits so far for each representative, indexed by ordinal
+     */
+    public synchronized int[] peek() {
+        int[] retVal = new int[this.width];
+        for (int[] slot : this.slots) {
+            for (int i = 0; i < this.width; i++)
+                retVal[i] += slot[i];
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the total number of hits counted so far
+     */
+    public synchronized long total() {
+        long retVal = 0;
+        for (int[] slot : this.slots) {
+            for (int count : slot)
+                retVal += count;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of representatives
+     */
+    public int width() {
+        return this.width;
+    }
+
+}
@@ -0,0 +1,252 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class reads and writes compiled representative-genome SSU kmer databases.  A compiled database contains the
+ * representative IDs and names, the packed kmers, and the kmer index, in a form that can be memory-mapped directly
+ * into the buffers used by RepSsuTable and KmerIndex.  Because the file is mapped read-only, several processes on
+ * the same host share a single copy of the pages in the operating system's cache, and no process has to rebuild
+ * the kmers at startup.
+ *
+ * The file begins with an eight-byte magic number, followed by a header of integers:  the format version, the kmer
+ * size, the number of representatives, the number of packed kmers, the index hash-table capacity, the number of
+ * index postings, and the number of distinct indexed kmers.  Next come the representative IDs and names, each
+ * stored as a byte length followed by UTF-8 bytes.  The remaining sections are the packed kmer buffer, the
+ * representative start buffer, the index key buffer, the index start buffer, and the index posting buffer.  The
+ * packed kmer buffer and the index key buffer are each preceded by padding to an eight-byte boundary.  All numbers
+ * are big-endian.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RepSsuDatabase {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(RepSsuDatabase.class);
+    /** magic number identifying a compiled database ("QZAREPDB") */
+    public static final long MAGIC = 0x515A415245504442L;
+    /** current format version */
+    public static final int VERSION = 1;
+
+    /**
+     * This is a static utility class.
+     */
+    private RepSsuDatabase() { }
+
+    /**
+     * @return TRUE if the specified file is a compiled representative database
+     *
+     * @param file		file to check
+     *
+     * @throws IOException
+     */
+    public static boolean isCompiled(File file) throws IOException {
+        boolean retVal = false;
+        if (file.length() >= Long.BYTES) {
+            try (InputStream inStream = Files.newInputStream(file.toPath())) {
+                byte[] buffer = inStream.readNBytes(Long.BYTES);
+                retVal = (ByteBuffer.wrap(buffer).getLong() == MAGIC);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Write a representative table to a compiled database file.  The kmers must already be packed.  The kmer
+     * index is built if it does not already exist.
+     *
+     * @param reps		representative table to save
+     * @param file		output file
+     *
+     * @throws IOException
+     */
+    public static void save(RepSsuTable reps, File file) throws IOException {
+        final int k = reps.getPackedK();
+        if (k == 0)
+            throw new IllegalStateException("Representative kmers must be packed before they are saved.");
+        final int n = reps.size();
+        final KmerIndex index = reps.getIndex();
+        final LongBuffer packed = reps.getPacked();
+        final IntBuffer starts = reps.getStarts();
+        final LongBuffer keys = index.getKeys();
+        final IntBuffer indexStarts = index.getStarts();
+        final IntBuffer postings = index.getPostings();
+        log.info("Writing compiled database for {} representatives to {}.", n, file);
+        try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            // Write the header.
+            outStream.writeLong(MAGIC);
+            outStream.writeInt(VERSION);
+            outStream.writeInt(k);
+            outStream.writeInt(n);
+            outStream.writeInt(packed.capacity());
+            outStream.writeInt(keys.capacity());
+            outStream.writeInt(postings.capacity());
+            outStream.writeInt(index.size());
+            // Write the representative strings.
+            for (int i = 0; i < n; i++) {
+                writeString(outStream, reps.getId(i));
+                writeString(outStream, reps.getName(i));
+            }
+            // Pad to a long boundary.
+            while (outStream.size() % Long.BYTES != 0)
+                outStream.writeByte(0);
+            // Write the buffers.
+            for (int i = 0; i < packed.capacity(); i++)
+                outStream.writeLong(packed.get(i));
+            for (int i = 0; i < starts.capacity(); i++)
+                outStream.writeInt(starts.get(i));
+            while (outStream.size() % Long.BYTES != 0)
+                outStream.writeByte(0);
+            for (int i = 0; i < keys.capacity(); i++)
+                outStream.writeLong(keys.get(i));
+            for (int i = 0; i < indexStarts.capacity(); i++)
+                outStream.writeInt(indexStarts.get(i));
+            for (int i = 0; i < postings.capacity(); i++)
+                outStream.writeInt(postings.get(i));
+        }
+        log.info("{} bytes written to {}.", file.length(), file);
+    }
+
+    /**
+     * Write a string as a byte length followed by UTF-8 bytes.
+     *
+     * @param outStream		output stream
+     * @param string		string to write
+     *
+     * @throws IOException
+     */
+    private static void writeString(DataOutputStream outStream, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        outStream.writeInt(bytes.length);
+        outStream.write(bytes);
+    }
+
+    /**
+     * Load a representative table from a compiled database file.  The kmer buffers are memory-mapped, so they are
+     * not copied into the heap.
+     *
+     * @param file		compiled database file
+     *
+     * @return the representative table, with its kmer index attached
+     *
+     * @throws IOException
+     */
+    public static RepSsuTable load(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raFile = new RandomAccessFile(file, "r"); FileChannel channel = raFile.getChannel()) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Compiled database " + file + " is too large to map.");
+            // The mapping remains valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (buffer.capacity() < Long.BYTES || buffer.getLong() != MAGIC)
+            throw new IOException("File " + file + " is not a compiled representative database.");
+        final int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("Compiled database " + file + " has unsupported version " + version + ".");
+        final int k = buffer.getInt();
+        final int n = buffer.getInt();
+        final int kmerCount = buffer.getInt();
+        final int cap = buffer.getInt();
+        final int postCount = buffer.getInt();
+        final int indexCount = buffer.getInt();
+        if (n < 0 || kmerCount < 0 || cap < 0 || postCount < 0 || indexCount < 0
+                || n > buffer.remaining() / (2 * Integer.BYTES))
+            throw new IOException("Compiled database " + file + " has an invalid header.");
+        // Read the representative strings.
+        String[] ids = new String[n];
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = readString(buffer);
+            names[i] = readString(buffer);
+        }
+        // Skip the padding.  The positions are computed in long arithmetic, so that a corrupt count cannot wrap
+        // around and pass the capacity check.
+        long pos = align(buffer.position());
+        // Now slice out the buffers.
+        LongBuffer packed = slice(buffer, pos, kmerCount, Long.BYTES).asLongBuffer();
+        pos += (long) kmerCount * Long.BYTES;
+        IntBuffer starts = slice(buffer, pos, n + 1L, Integer.BYTES).asIntBuffer();
+        pos += (n + 1L) * Integer.BYTES;
+        // Realign for the key buffer.
+        pos = align(pos);
+        LongBuffer keys = slice(buffer, pos, cap, Long.BYTES).asLongBuffer();
+        pos += (long) cap * Long.BYTES;
+        IntBuffer indexStarts = slice(buffer, pos, cap + 1L, Integer.BYTES).asIntBuffer();
+        pos += (cap + 1L) * Integer.BYTES;
+        IntBuffer postings = slice(buffer, pos, postCount, Integer.BYTES).asIntBuffer();
+        KmerIndex index = new KmerIndex(keys, indexStarts, postings, indexCount);
+        log.info("{} representatives with {} packed kmers mapped from {}.", n, kmerCount, file);
+        return new RepSsuTable(ids, names, k, packed, starts, index);
+    }
+
+    /**
+     * @return a position rounded up to an eight-byte boundary
+     *
+     * @param pos	position to align
+     */
+    private static long align(long pos) {
+        return pos + (Long.BYTES - pos % Long.BYTES) % Long.BYTES;
+    }
+
+    /**
+     * @return a string read from a byte buffer as a byte length followed by UTF-8 bytes
+     *
+     * @param buffer	buffer positioned at the string
+     *
+     * @throws IOException
+     */
+    private static String readString(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES)
+            throw new IOException("Compiled database is truncated.");
+        final int len = buffer.getInt();
+        if (len < 0 || len > buffer.remaining())
+            throw new IOException("Compiled database has an invalid string length " + len + ".");
+        byte[] bytes = new byte[len];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a slice of a byte buffer
+     *
+     * @param buffer	source buffer
+     * @param pos		starting position of the slice
+     * @param count		number of values in the slice
+     * @param width		width of each value in bytes
+     *
+     * @throws IOException
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, long pos, long count, int width) throws IOException {
+        final long end = pos + count * width;
+        if (count < 0 || end > buffer.capacity())
+            throw new IOException("Compiled database is truncated.");
+        ByteBuffer dup = buffer.duplicate();
+        dup.position((int) pos);
+        dup.limit((int) end);
+        return dup.slice();
+    }
+
+}
@@ -0,0 +1,255 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.sequence.GenomeDescriptor;
+import org.theseed.sequence.GenomeDescriptorSet;
+import org.theseed.sequence.SequenceKmers;
+
+/**
+ * This object contains the SSU rRNA kmer data for a set of representative genomes.  Each representative is
+ * addressed by an integer ordinal (its position in the original genome descriptor set), so that the classification
+ * engines can use primitive arrays instead of string-keyed maps.
+ *
+ * The packed-kmer engines need the kmers in packed canonical form (see PackedKmerizer).  The packed kmers for all the
+ * representatives are stored in a single sorted-run buffer:  the kmers for representative I are in positions
+ * START[I] up to but not including START[I+1], in ascending order.
+ *
+ * A table can also be loaded from a compiled database (see RepSsuDatabase), in which case the packed kmers and the
+ * kmer index are memory-mapped from the file and the kmer set objects are not available.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RepSsuTable {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(RepSsuTable.class);
+    /** array of representative genome IDs, by ordinal */
+    private String[] ids;
+    /** array of representative genome names, by ordinal */
+    private String[] names;
+    /** array of SSU kmer sets, by ordinal */
+    private SequenceKmers[] kmers;
+    /** kmer size for the packed kmers, or 0 if they have not been computed */
+    private int packedK;
+    /** buffer of packed kmers for all the representatives */
+    private LongBuffer packed;
+    /** start position of each representative's packed kmers, with an extra entry for the end */
+    private IntBuffer starts;
+    /** inverted index of the packed kmers, or NULL if it has not been built */
+    private KmerIndex index;
+
+    /**
+     * Construct an SSU table from a genome descriptor set.  The ordinals are assigned in the descriptor set's
+     * iteration order, which is the order the old scan loop used.
+     *
+     * @param repgens	genome descriptor set for the representative genomes
+     */
+    public RepSsuTable(GenomeDescriptorSet repgens) {
+        final int n = repgens.size();
+        this.ids = new String[n];
+        this.names = new String[n];
+        this.kmers = new SequenceKmers[n];
+        int i = 0;
+        for (GenomeDescriptor desc : repgens) {
+            String repId = desc.getId();
+            this.ids[i] = repId;
+            this.names[i] = repgens.getName(repId);
+            this.kmers[i] = desc.getSsuKmers();
+            i++;
+        }
+    }
+
+    /**
+     * Construct an SSU table from parallel arrays.
+     *
+     * @param ids		array of representative genome IDs
+     * @param names		array of representative genome names
+     * @param kmers		array of SSU kmer sets
+     */
+    public RepSsuTable(String[] ids, String[] names, SequenceKmers[] kmers) {
+        if (ids.length != names.length || ids.length != kmers.length)
+            throw new IllegalArgumentException("Representative ID, name, and kmer arrays must all be the same length.");
+        this.ids = ids;
+        this.names = names;
+        this.kmers = kmers;
+    }
+
+    /**
+     * Construct an SSU table from pre-computed packed kmers.  The resulting table has no kmer set objects, so it
+     * can only be used by the packed engines.
+     *
+     * @param ids		array of representative genome IDs
+     * @param names		array of representative genome names
+     * @param k			kmer size of the packed kmers
+     * @param packed	buffer of packed kmers for all the representatives
+     * @param starts	start position of each representative's packed kmers, with an extra entry for the end
+     * @param index		inverted index of the packed kmers, or NULL if none has been built
+     */
+    public RepSsuTable(String[] ids, String[] names, int k, LongBuffer packed, IntBuffer starts, KmerIndex index) {
+        if (ids.length != names.length || ids.length + 1 != starts.capacity())
+            throw new IllegalArgumentException("Representative ID, name, and start arrays have inconsistent lengths.");
+        this.ids = ids;
+        this.names = names;
+        this.kmers = null;
+        this.packedK = k;
+        this.packed = packed;
+        this.starts = starts;
+        this.index = index;
+    }
+
+    /**
+     * @return the number of representative genomes
+     */
+    public int size() {
+        return this.ids.length;
+    }
+
+    /**
+     * @return the ID of the representative genome with the specified ordinal
+     *
+     * @param idx	ordinal of the desired representative
+     */
+    public String getId(int idx) {
+        return this.ids[idx];
+    }
+
+    /**
+     * @return the name of the representative genome with the specified ordinal
+     *
+     * @param idx	ordinal of the desired representative
+     */
+    public String getName(int idx) {
+        return this.names[idx];
+    }
+
+    /**
+     * @return the SSU kmer set of the representative genome with the specified ordinal
+     *
+     * @param idx	ordinal of the desired representative
+     */
+    public SequenceKmers getKmers(int idx) {
+        if (this.kmers == null)
+            throw new IllegalStateException("Kmer sets are not available for a compiled representative table.");
+        return this.kmers[idx];
+    }
+
+    /**
+     * @return TRUE if this table has kmer set objects, FALSE if it only has packed kmers
+     */
+    public boolean hasKmerSets() {
+        return (this.kmers != null);
+    }
+
+    /**
+     * Compute the packed kmers for the representatives.  This is only done once, no matter how many engines
+     * need them.
+     *
+     * @param k		kmer size
+     */
+    public synchronized void pack(int k) {
+        if (this.packedK != k) {
+            if (this.packedK != 0)
+                throw new IllegalStateException("Representative kmers already packed with kmer size " + this.packedK + ".");
+            if (this.kmers == null)
+                throw new IllegalStateException("Cannot pack a compiled representative table.");
+            log.info("Packing SSU kmers for {} representatives.", this.size());
+            PackedKmerizer encoder = new PackedKmerizer(k);
+            final int n = this.size();
+            int[] startArray = new int[n + 1];
+            long[] buffer = new long[n * 1000];
+            int used = 0;
+            long[] repKmers = new long[1000];
+            for (int i = 0; i < n; i++) {
+                startArray[i] = used;
+                // Encode the kmers for this representative.
+                int count = 0;
+                for (String kmer : this.kmers[i]) {
+                    long code = encoder.encode(kmer);
+                    if (code >= 0) {
+                        if (count >= repKmers.length)
+                            repKmers = Arrays.copyOf(repKmers, repKmers.length * 2);
+                        repKmers[count] = code;
+                        count++;
+                    }
+                }
+                // Sort them and remove duplicates.  The two strands of a kmer have the same canonical form.
+                Arrays.sort(repKmers, 0, count);
+                if (used + count > buffer.length)
+                    buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, used + count));
+                for (int j = 0; j < count; j++) {
+                    if (j == 0 || repKmers[j] != repKmers[j - 1]) {
+                        buffer[used] = repKmers[j];
+                        used++;
+                    }
+                }
+            }
+            startArray[n] = used;
+            this.packed = LongBuffer.wrap(Arrays.copyOf(buffer, used));
+            this.starts = IntBuffer.wrap(startArray);
+            this.packedK = k;
+            log.info("{} packed kmers stored for {} representatives.", used, n);
+        }
+    }
+
+    /**
+     * @return the kmer size of the packed kmers, or 0 if they have not been computed
+     */
+    public int getPackedK() {
+        return this.packedK;
+    }
+
+    /**
+     * @return the buffer containing the packed kmers for all the representatives
+     */
+    public LongBuffer getPacked() {
+        return this.packed;
+    }
+
+    /**
+     * @return the position in the packed kmer buffer of the first kmer for a representative
+     *
+     * @param idx	ordinal of the desired representative
+     */
+    public int packedStart(int idx) {
+        return this.starts.get(idx);
+    }
+
+    /**
+     * @return the position in the packed kmer buffer past the last kmer for a representative
+     *
+     * @param idx	ordinal of the desired representative
+     */
+    public int packedEnd(int idx) {
+        return this.starts.get(idx + 1);
+    }
+
+    /**
+     * @return the buffer of packed-kmer start positions, with an extra entry for the end
+     */
+    public IntBuffer getStarts() {
+        return this.starts;
+    }
+
+    /**
+     * @return the inverted index of the packed kmers, building it if necessary
+     */
+    public synchronized KmerIndex getIndex() {
+        if (this.index == null) {
+            if (this.packedK == 0)
+                throw new IllegalStateException("Representative kmers must be packed before they are indexed.");
+            this.index = new KmerIndex(this);
+        }
+        return this.index;
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+/**
+ * This object accumulates per-representative kmer hit counts for a single read.  Only the representatives that
+ * are actually hit are remembered, so the counts can be scanned and cleared without touching the whole array.
+ * A tally is not thread-safe, so each thread needs its own.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RepTally {
+
+    // FIELDS
+    /** hit counts, indexed by representative ordinal */
+    private final int[] counts;
+    /** ordinals of the representatives with nonzero counts */
+    private final int[] touched;
+    /** number of representatives with nonzero counts */
+    private int size;
+
+    /**
+     * Create a tally for the specified number of representatives.
+     *
+     * @param n		number of representatives
+     */
+    public RepTally(int n) {
+        this.counts = new int[n];
+        this.touched = new int[n];
+        this.size = 0;
+    }
+
+    /**
+     * Count a hit for a representative.
+     *
+     * @param repIdx	ordinal of the representative hit
+     */
+    public void add(int repIdx) {
+        if (this.counts[repIdx] == 0)
+            this.touched[this.size++] = repIdx;
+        this.counts[repIdx]++;
+    }
+
+    /**
+     * @return the number of representatives with nonzero counts
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the ordinal of a representative with a nonzero count
+     *
+     * @param k		position of the representative in the hit list (from 0 to size() - 1)
+     */
+    public int getIdx(int k) {
+        return this.touched[k];
+    }
+
+    /**
+     * @return the count for a representative
+     *
+     * @param repIdx	ordinal of the representative
+     */
+    public int getCount(int repIdx) {
+        return this.counts[repIdx];
+    }
+
+    /**
+     * Find the representative with the highest count, and clear the tally for the next read.
+     *
+     * @return the hit code for the best representative, or NO_HIT if no representative was hit
+     */
+    public long best() {
+        int best = 0;
+        int bestIdx = Integer.MAX_VALUE;
+        for (int k = 0; k < this.size; k++) {
+            final int repIdx = this.touched[k];
+            final int count = this.counts[repIdx];
+            if (SsuClassifier.beats(count, repIdx, best, bestIdx)) {
+                best = count;
+                bestIdx = repIdx;
+            }
+            this.counts[repIdx] = 0;
+        }
+        this.size = 0;
+        long retVal = SsuClassifier.NO_HIT;
+        if (best > 0)
+            retVal = SsuClassifier.packHit(bestIdx, best);
+        return retVal;
+    }
+
+    /**
+     * Clear the tally for the next read.
+     */
+    public void clear() {
+        for (int k = 0; k < this.size; k++)
+            this.counts[this.touched[k]] = 0;
+        this.size = 0;
+    }
+
+}
@@ -0,0 +1,235 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object records the state of a partially-processed sample, so that a restarted run can continue from the
+ * middle of the sample instead of starting over.  The checkpoint contains the number of reads consumed from the
+ * sample's read stream, the read statistics, and the hit counts so far.
+ *
+ * The hit counts are stored by representative genome ID rather than ordinal, and only nonzero counts are stored, so
+ * a checkpoint is small and cheap to write.  A checkpoint is written to a temporary file and then moved into place,
+ * so a crash during the write leaves the previous checkpoint intact.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SampleCheckpoint {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(SampleCheckpoint.class);
+    /** number of reads consumed from the read stream */
+    private long offset;
+    /** number of good reads */
+    private int readCount;
+    /** number of good reads classified */
+    private int examined;
+    /** number of low-quality reads */
+    private int badCount;
+    /** number of short reads */
+    private int shortCount;
+    /** TRUE if classification stopped early */
+    private boolean stopped;
+    /** hit counts, indexed by representative ordinal */
+    private int[] counts;
+    /** file format version */
+    private static final int VERSION = 1;
+
+    /**
+     * Construct a checkpoint.
+     *
+     * @param offset		number of reads consumed from the read stream
+     * @param readCount		number of good reads
+     * @param examined		number of good reads classified
+     * @param badCount		number of low-quality reads
+     * @param shortCount	number of short reads
+     * @param stopped		TRUE if classification stopped early
+     * @param counts		hit counts, indexed by representative ordinal
+     */
+    public SampleCheckpoint(long offset, int readCount, int examined, int badCount, int shortCount, boolean stopped,
+            int[] counts) {
+        this.offset = offset;
+        this.readCount = readCount;
+        this.examined = examined;
+        this.badCount = badCount;
+        this.shortCount = shortCount;
+        this.stopped = stopped;
+        this.counts = counts;
+    }
+
+    /**
+     * Save this checkpoint to a file.
+     *
+     * @param file		checkpoint file
+     * @param reps		table of representative genomes
+     *
+     * @throws IOException
+     */
+    public void save(File file, RepSsuTable reps) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            outStream.writeInt(VERSION);
+            outStream.writeLong(this.offset);
+            outStream.writeInt(this.readCount);
+            outStream.writeInt(this.examined);
+            outStream.writeInt(this.badCount);
+            outStream.writeInt(this.shortCount);
+            outStream.writeBoolean(this.stopped);
+            // Count the nonzero entries and write them.
+            int nonZero = 0;
+            for (int count : this.counts) {
+                if (count > 0) nonZero++;
+            }
+            outStream.writeInt(nonZero);
+            for (int i = 0; i < this.counts.length; i++) {
+                if (this.counts[i] > 0) {
+                    outStream.writeUTF(reps.getId(i));
+                    outStream.writeInt(this.counts[i]);
+                }
+            }
+        }
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Load a checkpoint from a file.
+     *
+     * @param file		checkpoint file
+     * @param reps		table of representative genomes
+     *
+     * @return the checkpoint read, or NULL if the checkpoint has a different version or does not match the
+     * 		   representative table
+     *
+     * @throws IOException
+     */
+    public static SampleCheckpoint load(File file, RepSsuTable reps) throws IOException {
+        SampleCheckpoint retVal = null;
+        try (DataInputStream inStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = inStream.readInt();
+            if (version != VERSION)
+                log.warn("Checkpoint file {} has unsupported version {}.", file, version);
+            else {
+                long offset = inStream.readLong();
+                int readCount = inStream.readInt();
+                int examined = inStream.readInt();
+                int badCount = inStream.readInt();
+                int shortCount = inStream.readInt();
+                boolean stopped = inStream.readBoolean();
+                // Map the representative IDs to ordinals.
+                final int n = reps.size();
+                Map<String, Integer> ordinals = new HashMap<String, Integer>(n * 4 / 3 + 1);
+                for (int i = 0; i < n; i++)
+                    ordinals.put(reps.getId(i), i);
+                int[] counts = new int[n];
+                int nonZero = inStream.readInt();
+                boolean valid = true;
+                for (int i = 0; i < nonZero; i++) {
+                    String repId = inStream.readUTF();
+                    int count = inStream.readInt();
+                    Integer idx = ordinals.get(repId);
+                    if (idx == null) {
+                        log.warn("Checkpoint file {} contains unknown representative {}.", file, repId);
+                        valid = false;
+                    } else
+                        counts[idx] = count;
+                }
+                if (valid)
+                    retVal = new SampleCheckpoint(offset, readCount, examined, badCount, shortCount, stopped, counts);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Skip the reads already processed when this checkpoint was written.
+     *
+     * @param reads			read stream for the sample
+     * @param consumed		number of reads already consumed from the stream
+     *
+     * @return the number of reads consumed after skipping, which is less than the checkpoint offset if the stream
+     * 		   ran out of reads
+     */
+    public long skipReads(Iterator<?> reads, long consumed) {
+        long retVal = consumed;
+        while (retVal < this.offset && reads.hasNext()) {
+            reads.next();
+            retVal++;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of reads consumed from the read stream
+     */
+    public long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * @return the number of good reads
+     */
+    public int getReadCount() {
+        return this.readCount;
+    }
+
+    /**
+     * @return the number of good reads classified
+     */
+    public int getExamined() {
+        return this.examined;
+    }
+
+    /**
+     * @return the number of low-quality reads
+     */
+    public int getBadCount() {
+        return this.badCount;
+    }
+
+    /**
+     * @return the number of short reads
+     */
+    public int getShortCount() {
+        return this.shortCount;
+    }
+
+    /**
+     * @return TRUE if classification stopped early
+     */
+    public boolean isStopped() {
+        return this.stopped;
+    }
+
+    /**
+     * @return the hit counts, indexed by representative ordinal
+     */
+    public int[] getCounts() {
+        return this.counts;
+    }
+
+}
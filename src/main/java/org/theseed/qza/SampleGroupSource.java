@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.theseed.sequence.SequenceKmers;
+import org.theseed.sequence.fastq.FastqSampleGroup;
+import org.theseed.sequence.fastq.ReadStream;
+import org.theseed.sequence.fastq.SeqRead;
+
+/**
+ * This sample source reads samples through a sample group from the sequence library.  It supports all of the library's
+ * sample formats.
+ *
+ * If a filter is specified, reads that fail it are not wrapped.  Instead, a reusable placeholder read with the
+ * correct quality and lengths is returned.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SampleGroupSource implements AmpliconSampleSource {
+
+    // FIELDS
+    /** underlying sample group */
+    private FastqSampleGroup group;
+    /** minimum acceptable mean quality */
+    private double minQual;
+    /** minimum acceptable length for the longer sequence of a read */
+    private int minLen;
+
+    /**
+     * This object wraps a read from the sequence library.
+     */
+    public static class Read implements AmpliconRead {
+
+        /** underlying read */
+        private final SeqRead read;
+
+        /**
+         * Wrap a sequence-library read.
+         *
+         * @param read		read to wrap
+         */
+        public Read(SeqRead read) {
+            this.read = read;
+        }
+
+        @Override
+        public String getLabel() {
+            return this.read.getLabel();
+        }
+
+        @Override
+        public CharSequence getLseq() {
+            return this.read.getLseq();
+        }
+
+        @Override
+        public CharSequence getRseq() {
+            return this.read.getRseq();
+        }
+
+        @Override
+        public double getQual() {
+            return this.read.getQual();
+        }
+
+        @Override
+        public int maxlength() {
+            return this.read.maxlength();
+        }
+
+        @Override
+        public int length() {
+            return this.read.length();
+        }
+
+        @Override
+        public SequenceKmers getKmers() {
+            return this.read.new Kmers();
+        }
+
+    }
+
+    /**
+     * This object wraps a read stream from the sequence library.
+     */
+    private static class Stream implements AmpliconReadStream {
+
+        /** underlying read stream */
+        private final ReadStream stream;
+        /** minimum acceptable mean quality */
+        private final double minQual;
+        /** minimum acceptable length for the longer sequence of a read */
+        private final int minLen;
+        /** placeholder for rejected reads */
+        private final RejectedRead rejected;
+
+        /**
+         * Wrap a sequence-library read stream.
+         *
+         * @param stream	stream to wrap
+         * @param minQual	minimum acceptable mean quality
+         * @param minLen	minimum acceptable length for the longer sequence of a read
+         */
+        protected Stream(ReadStream stream, double minQual, int minLen) {
+            this.stream = stream;
+            this.minQual = minQual;
+            this.minLen = minLen;
+            this.rejected = new RejectedRead();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.stream.hasNext();
+        }
+
+        @Override
+        public AmpliconRead next() {
+            SeqRead read = this.stream.next();
+            AmpliconRead retVal;
+            final double qual = read.getQual();
+            final int maxLen = read.maxlength();
+            if (qual >= this.minQual && maxLen >= this.minLen)
+                retVal = new Read(read);
+            else {
+                this.rejected.setStats(qual, maxLen, read.length());
+                retVal = this.rejected;
+            }
+            return retVal;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.stream.close();
+            } catch (Exception e) {
+                throw rethrow(e);
+            }
+        }
+
+    }
+
+    /**
+     * Create a sample source for a sample group.
+     *
+     * @param group		sample group to read
+     */
+    public SampleGroupSource(FastqSampleGroup group) {
+        this.group = group;
+        this.minQual = 0.0;
+        this.minLen = 0;
+    }
+
+    @Override
+    public Set<String> getSampleIDs() throws IOException {
+        return this.group.getSampleIDs();
+    }
+
+    @Override
+    public AmpliconReadStream open(String sampleId) throws IOException {
+        return new Stream(this.group.sampleIter(sampleId), this.minQual, this.minLen);
+    }
+
+    @Override
+    public void setFilter(double minQual, int minLen) {
+        this.minQual = minQual;
+        this.minLen = minLen;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.group.close();
+        } catch (Exception e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * @return an IO exception to throw for an exception from the sequence library
+     *
+     * @param e		exception caught
+     */
+    private static IOException rethrow(Exception e) {
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        IOException retVal;
+        if (e instanceof IOException)
+            retVal = (IOException) e;
+        else
+            retVal = new IOException(e);
+        return retVal;
+    }
+
+}
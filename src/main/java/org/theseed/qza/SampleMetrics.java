@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This object accumulates the timings for the processing stages of a single sample.  The decode, filter, and queue
+ * stages run in the thread reading the sample, and the classify stage runs in the worker threads, so
+ * the stage times are accumulated in thread-safe adders.  Times are kept in nanoseconds.  The queue depth is
+ * sampled each time a chunk of reads is submitted to the workers.
+ *
+ * The time recorders take the timestamp at the end of the previous stage and return the timestamp at the end of
+ * the current one, so that a sequence of stages can be timed with one clock read per stage.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SampleMetrics {
+
+    // FIELDS
+    /** time spent reading and decoding reads */
+    private final LongAdder decodeNanos;
+    /** time spent filtering reads by quality and length */
+    private final LongAdder filterNanos;
+    /** time spent batching reads and waiting for space in the work queue */
+    private final LongAdder queueNanos;
+    /** time spent finding the best representative, including kmerizing and cache lookups */
+    private final LongAdder classifyNanos;
+    /** time spent merging and filtering the hit counts */
+    private long mergeNanos;
+    /** maximum queue depth observed */
+    private int queueMax;
+    /** total of the queue depths observed */
+    private long queueTotal;
+    /** number of queue depth observations */
+    private int queueSamples;
+    /** header line for a metrics report */
+    public static final String HEADER = "decode_sec\tfilter_sec\tqueue_sec\tclassify_sec\tmerge_sec\tqueue_max\tqueue_mean";
+
+    /**
+     * Construct an empty metrics object.
+     */
+    public SampleMetrics() {
+        this.decodeNanos = new LongAdder();
+        this.filterNanos = new LongAdder();
+        this.queueNanos = new LongAdder();
+        this.classifyNanos = new LongAdder();
+        this.mergeNanos = 0;
+        this.queueMax = 0;
+        this.queueTotal = 0;
+        this.queueSamples = 0;
+    }
+
+    /**
+     * Record decode time.
+     *
+     * @param mark		timestamp at the start of the stage
+     *
+     * @return the timestamp at the end of the stage
+     */
+    public long addDecode(long mark) {
+        return add(this.decodeNanos, mark);
+    }
+
+    /**
+     * Record filter time.
+     *
+     * @param mark		timestamp at the start of the stage
+     *
+     * @return the timestamp at the end of the stage
+     */
+    public long addFilter(long mark) {
+        return add(this.filterNanos, mark);
+    }
+
+    /**
+     * Record queueing time.
+     *
+     * @param mark		timestamp at the start of the stage
+     *
+     * @return the timestamp at the end of the stage
+     */
+    public long addQueue(long mark) {
+        return add(this.queueNanos, mark);
+    }
+
+    /**
+     * Record classification time.
+     *
+     * @param mark		timestamp at the start of the stage
+     *
+     * @return the timestamp at the end of the stage
+     */
+    public long addClassify(long mark) {
+        return add(this.classifyNanos, mark);
+    }
+
+    /**
+     * Record merge time.
+     *
+     * @param mark		timestamp at the start of the stage
+     *
+     * @return the timestamp at the end of the stage
+     */
+    public long addMerge(long mark) {
+        long retVal = System.nanoTime();
+        this.mergeNanos += retVal - mark;
+        return retVal;
+    }
+
+    /**
+     * Add the time since a timestamp to an adder.
+     *
+     * @param adder		adder to update
+     * @param mark		starting timestamp
+     *
+     * @return the current timestamp
+     */
+    private static long add(LongAdder adder, long mark) {
+        long retVal = System.nanoTime();
+        adder.add(retVal - mark);
+        return retVal;
+    }
+
+    /**
+     * Record a queue depth observation.  This is only called by the thread reading the sample.
+     *
+     * @param depth		number of chunks in the work queue
+     */
+    public void recordQueueDepth(int depth) {
+        if (depth > this.queueMax)
+            this.queueMax = depth;
+        this.queueTotal += depth;
+        this.queueSamples++;
+    }
+
+    /**
+     * @return the metrics in tab-delimited form, matching the columns in HEADER
+     */
+    public String toLine() {
+        double mean = (this.queueSamples == 0 ? 0.0 : (double) this.queueTotal / this.queueSamples);
+        return String.format("%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%d\t%.2f", seconds(this.decodeNanos.sum()),
+                seconds(this.filterNanos.sum()), seconds(this.queueNanos.sum()),
+                seconds(this.classifyNanos.sum()), seconds(this.mergeNanos), this.queueMax, mean);
+    }
+
+    /**
+     * @return the number of seconds in a nanosecond interval
+     *
+     * @param nanos		interval in nanoseconds
+     */
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+}
@@ -0,0 +1,37 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import org.theseed.sequence.SequenceKmers;
+
+/**
+ * This is the original classification engine.  It computes the similarity between the read and every
+ * representative genome in ordinal order and keeps the first one with the highest score.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ScanSsuClassifier extends KmerSetSsuClassifier {
+
+    public ScanSsuClassifier(RepSsuTable reps, double minSim) {
+        super(reps, minSim);
+    }
+
+    @Override
+    protected long findBest(SequenceKmers readKmers) {
+        RepSsuTable reps = this.getReps();
+        final int n = reps.size();
+        long retVal = NO_HIT;
+        int best = 0;
+        for (int i = 0; i < n; i++) {
+            int simCount = readKmers.similarity(reps.getKmers(i));
+            if (simCount > best) {
+                best = simCount;
+                retVal = packHit(i, simCount);
+            }
+        }
+        return retVal;
+    }
+
+}
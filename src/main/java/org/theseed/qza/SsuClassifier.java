@@ -0,0 +1,228 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+/**
+ * This is the base class for the engines that assign an amplicon read to its closest representative genome by
+ * SSU rRNA kmer similarity.  Every engine must produce the same answer as the original scan:  the representative
+ * with the highest similarity wins, ties go to the lowest ordinal, and the hit is only kept if the similarity
+ * is at least the minimum fraction of the read length.
+ *
+ * A hit is returned as a packed long containing the representative ordinal in the high word and the similarity
+ * count in the low word.  This allows the engines to report results without allocating an object for each read.
+ *
+ * Some engines work on the string kmer sets produced by the sequence library (see KmerSetSsuClassifier), and
+ * others work on packed kmers (see PackedSsuClassifier).  A packed engine counts shared canonical kmers, which
+ * avoids creating a kmer set object for each read.  Each engine computes the form of the read kmers it needs, so
+ * the client simply passes in the read.  The unpacked engines (SCAN and INDEX) always agree with each other, and
+ * the packed engines always agree with PACKED.  The two groups can differ when a read contains a kmer together
+ * with its reverse complement.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public abstract class SsuClassifier {
+
+    // FIELDS
+    /** table of representative genomes */
+    private RepSsuTable reps;
+    /** minimum similarity fraction for an acceptable hit */
+    private double minSim;
+    /** hit code returned when no representative has any kmers in common with the read */
+    public static final long NO_HIT = -1L;
+
+    /**
+     * This enumeration specifies the different classification engines.
+     */
+    public static enum Type {
+        /** compare the read to every representative in turn */
+        SCAN {
+            @Override
+            public SsuClassifier create(RepSsuTable reps, double minSim) {
+                return new ScanSsuClassifier(reps, minSim);
+            }
+        },
+        /** compare the read's packed kmers to every representative in turn */
+        PACKED {
+            @Override
+            public SsuClassifier create(RepSsuTable reps, double minSim) {
+                return new PackedScanSsuClassifier(reps, minSim);
+            }
+        },
+        /** use an inverted kmer index to accumulate hit counts only for representatives that share kmers */
+        INDEX {
+            @Override
+            public SsuClassifier create(RepSsuTable reps, double minSim) {
+                return new IndexSsuClassifier(reps, minSim);
+            }
+        },
+        /** use an inverted index of packed kmers to accumulate hit counts */
+        PINDEX {
+            @Override
+            public SsuClassifier create(RepSsuTable reps, double minSim) {
+                return new PackedIndexSsuClassifier(reps, minSim);
+            }
+        },
+        /** use a sampled-kmer upper bound to skip representatives that cannot beat the best hit */
+        PRUNE {
+            @Override
+            public SsuClassifier create(RepSsuTable reps, double minSim) {
+                return new PruneSsuClassifier(reps, minSim);
+            }
+        },
+        /** descend a tree of merged representative kmer signatures */
+        TREE {
+            @Override
+            public SsuClassifier create(RepSsuTable reps, double minSim) {
+                return new TreeSsuClassifier(reps, minSim);
+            }
+        };
+
+        /**
+         * Create a classification engine of this type.
+         *
+         * @param reps		table of representative genomes
+         * @param minSim	minimum similarity fraction for an acceptable hit
+         */
+        public abstract SsuClassifier create(RepSsuTable reps, double minSim);
+
+        /**
+         * @return TRUE if this engine uses packed kmers
+         */
+        public boolean isPacked() {
+            return (this != SCAN && this != INDEX);
+        }
+
+    }
+
+    /**
+     * Construct a classification engine.
+     *
+     * @param reps		table of representative genomes
+     * @param minSim	minimum similarity fraction for an acceptable hit
+     */
+    public SsuClassifier(RepSsuTable reps, double minSim) {
+        this.reps = reps;
+        this.minSim = minSim;
+    }
+
+    /**
+     * Find the best representative for a read.  The engine computes whatever form of the read kmers it needs.
+     *
+     * @param read		read to classify
+     *
+     * @return the hit code for the best representative, or NO_HIT if no representative shares any kmers
+     */
+    public abstract long findBest(AmpliconRead read);
+
+    /**
+     * Find the best representative for a read, but only if it is good enough to count.  Engines that can stop
+     * early when no remaining representative can be good enough override this method.
+     *
+     * @param read		read to classify
+     *
+     * @return the hit code for the best representative, or NO_HIT if the best representative is not good enough
+     */
+    public long findGood(AmpliconRead read) {
+        long retVal = this.findBest(read);
+        if (! this.isGood(retVal, read.length()))
+            retVal = NO_HIT;
+        return retVal;
+    }
+
+    /**
+     * Engines that avoid exact comparisons can report how many they made, so the client can measure the savings.
+     * The count is kept separately for each thread.
+     *
+     * @return the number of representatives compared exactly in this thread's last search, or -1 if this engine
+     * 		   does not track comparisons
+     */
+    public int getLastComparisons() {
+        return -1;
+    }
+
+    /**
+     * Classify a read.
+     *
+     * @param read		read to classify
+     *
+     * @return the ordinal of the best representative, or -1 if there is no acceptable hit
+     */
+    public int classify(AmpliconRead read) {
+        long hit = this.findGood(read);
+        int retVal = -1;
+        if (hit != NO_HIT)
+            retVal = hitIdx(hit);
+        return retVal;
+    }
+
+    /**
+     * Determine whether a candidate representative would replace the current best one.  The candidate wins if
+     * its similarity is higher, or if the similarity is the same and its ordinal is lower.  This is the tie-break
+     * rule that keeps all the engines in agreement with the original scan.
+     *
+     * @return TRUE if a representative with the specified similarity would beat the current best
+     *
+     * @param sim		similarity (or similarity bound) of the candidate
+     * @param repIdx	ordinal of the candidate (or lowest ordinal of a group of candidates)
+     * @param best		best similarity so far (0 if none)
+     * @param bestIdx	ordinal of the best representative so far
+     */
+    public static boolean beats(int sim, int repIdx, int best, int bestIdx) {
+        return (sim > best || sim == best && sim > 0 && repIdx < bestIdx);
+    }
+
+    /**
+     * @return TRUE if the specified hit is good enough to count for a read of the specified length
+     *
+     * @param hit		hit code to check
+     * @param readLen	length of the read
+     */
+    public boolean isGood(long hit, double readLen) {
+        return (hit != NO_HIT && hitSim(hit) / readLen >= this.minSim);
+    }
+
+    /**
+     * @return a hit code for the specified representative and similarity count
+     *
+     * @param idx	ordinal of the representative
+     * @param sim	similarity count
+     */
+    public static long packHit(int idx, int sim) {
+        return ((long) idx << 32) | (sim & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the representative ordinal from a hit code
+     *
+     * @param hit	hit code to decode
+     */
+    public static int hitIdx(long hit) {
+        return (int) (hit >>> 32);
+    }
+
+    /**
+     * @return the similarity count from a hit code
+     *
+     * @param hit	hit code to decode
+     */
+    public static int hitSim(long hit) {
+        return (int) hit;
+    }
+
+    /**
+     * @return the table of representative genomes
+     */
+    public RepSsuTable getReps() {
+        return this.reps;
+    }
+
+    /**
+     * @return the minimum similarity fraction for an acceptable hit
+     */
+    public double getMinSim() {
+        return this.minSim;
+    }
+
+}
@@ -0,0 +1,108 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This is an amplicon read parsed directly from FASTQ bytes.  The sequences and label of the read are copied into a
+ * single byte array, and the sequences are presented as views of the array, created once when the read is built.
+ * The label is only converted to a string if it is requested.  The mean quality is computed from the quality totals
+ * accumulated by the record readers during parsing, so the quality strings are never copied.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class StreamedRead implements AmpliconRead {
+
+    // FIELDS
+    /** read data:  left sequence, right sequence, label */
+    private final byte[] data;
+    /** length of the left sequence */
+    private final int lLen;
+    /** length of the right sequence */
+    private final int rLen;
+    /** view of the left sequence */
+    private final ByteSequence lSeq;
+    /** view of the right sequence */
+    private final ByteSequence rSeq;
+    /** length of the label */
+    private final int labelLen;
+    /** mean quality of the read */
+    private final double qual;
+
+    /**
+     * Create a read from the current records of one or two FASTQ readers.
+     *
+     * @param fwd			reader positioned on the forward record
+     * @param rev			reader positioned on the reverse record, or NULL for an unpaired read
+     * @param phredOffset	phred offset for the quality strings
+     */
+    public StreamedRead(FastqRecordReader fwd, FastqRecordReader rev, int phredOffset) {
+        this.lLen = fwd.getSeqLen();
+        this.rLen = (rev == null ? 0 : rev.getSeqLen());
+        this.labelLen = fwd.getLabelLen();
+        this.qual = meanQual(fwd, rev, phredOffset);
+        final int seqLen = this.lLen + this.rLen;
+        this.data = new byte[seqLen + this.labelLen];
+        final byte[] fBuffer = fwd.getBuffer();
+        System.arraycopy(fBuffer, fwd.getSeqStart(), this.data, 0, this.lLen);
+        System.arraycopy(fBuffer, fwd.getLabelStart(), this.data, seqLen, this.labelLen);
+        if (rev != null)
+            System.arraycopy(rev.getBuffer(), rev.getSeqStart(), this.data, this.lLen, this.rLen);
+        this.lSeq = new ByteSequence(this.data, 0, this.lLen);
+        this.rSeq = new ByteSequence(this.data, this.lLen, this.rLen);
+    }
+
+    /**
+     * @return the mean phred score of the current records of one or two FASTQ readers
+     *
+     * @param fwd			reader positioned on the forward record
+     * @param rev			reader positioned on the reverse record, or NULL for an unpaired read
+     * @param phredOffset	phred offset for the quality strings
+     */
+    public static double meanQual(FastqRecordReader fwd, FastqRecordReader rev, int phredOffset) {
+        long total = fwd.getQualSum();
+        int len = fwd.getSeqLen();
+        if (rev != null) {
+            total += rev.getQualSum();
+            len += rev.getSeqLen();
+        }
+        return (len == 0 ? 0.0 : (double) (total - (long) phredOffset * len) / len);
+    }
+
+    @Override
+    public String getLabel() {
+        return new String(this.data, this.lLen + this.rLen, this.labelLen, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public CharSequence getLseq() {
+        return this.lSeq;
+    }
+
+    @Override
+    public CharSequence getRseq() {
+        return this.rSeq;
+    }
+
+    /**
+     * @return the mean phred score of the bases in both sequences
+     */
+    @Override
+    public double getQual() {
+        return this.qual;
+    }
+
+    @Override
+    public int maxlength() {
+        return Math.max(this.lLen, this.rLen);
+    }
+
+    @Override
+    public int length() {
+        return this.lLen + this.rLen;
+    }
+
+}
@@ -0,0 +1,477 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This classification engine organizes the representatives into a tree of merged kmer signatures.  Each leaf holds a
+ * few representatives, and each node's signature is the union of the packed kmers of all the representatives below
+ * it.  The tree is built once at startup by recursively splitting the representatives into two groups of similar
+ * genomes.  A split that leaves too few representatives on one side is replaced by a median split, so the depth of
+ * the tree stays logarithmic even when one genome is very different from all the others.
+ *
+ * Because every representative's kmers are contained in the signature of each node above it, the number of read
+ * kmers found in a node's signature is an upper bound on the similarity of any representative below it.  A read
+ * descends the tree best-first, ordered by decreasing bound and then by increasing lowest ordinal, and the leaf
+ * representatives are scored exactly.  The search stops when no remaining node can beat the best hit (with ties
+ * going to the lowest ordinal) or, when the read length is known, when no remaining node can reach the minimum
+ * similarity.  As a result, the answer is the same as the exhaustive packed scan.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TreeSsuClassifier extends PackedSsuClassifier {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(TreeSsuClassifier.class);
+    /** kmer signature for each node */
+    private long[][] signatures;
+    /** lowest representative ordinal under each node */
+    private int[] minIdx;
+    /** left child of each node, or -1 for a leaf */
+    private int[] left;
+    /** right child of each node, or -1 for a leaf */
+    private int[] right;
+    /** sorted representative ordinals for each leaf, or NULL for an internal node */
+    private int[][] members;
+    /** per-thread search workspace */
+    private ThreadLocal<Workspace> workspaces;
+    /** maximum number of representatives in a leaf */
+    public static final int LEAF_SIZE = 4;
+    /** a signature must be this many times longer than the read before we search it instead of merging */
+    private static final int GALLOP_RATIO = 8;
+    /** minimum fraction of a group that must be on the smaller side of a clustering split */
+    private static final double MIN_BALANCE = 0.25;
+
+    /**
+     * This object contains the search heap for a single thread.  The heap is ordered by a key containing the
+     * complement of the bound in the high word and the lowest ordinal in the low word, so the most promising
+     * node is always on top.
+     */
+    private static class Workspace {
+
+        /** heap keys */
+        private long[] keys;
+        /** heap node numbers */
+        private int[] nodes;
+        /** number of entries in the heap */
+        private int size;
+        /** number of exact comparisons in the last search */
+        private int compared;
+
+        /**
+         * Create a workspace for a tree.
+         *
+         * @param nodeCount		number of nodes in the tree
+         */
+        protected Workspace(int nodeCount) {
+            this.keys = new long[nodeCount];
+            this.nodes = new int[nodeCount];
+            this.size = 0;
+        }
+
+        /**
+         * Add a node to the heap.
+         *
+         * @param bound		similarity bound for the node
+         * @param minIdx	lowest ordinal under the node
+         * @param node		node number
+         */
+        protected void push(int bound, int minIdx, int node) {
+            long key = ((long) (Integer.MAX_VALUE - bound) << 32) | minIdx;
+            int i = this.size;
+            this.size++;
+            // Sift up.
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (this.keys[parent] <= key) break;
+                this.keys[i] = this.keys[parent];
+                this.nodes[i] = this.nodes[parent];
+                i = parent;
+            }
+            this.keys[i] = key;
+            this.nodes[i] = node;
+        }
+
+        /**
+         * Remove the top entry from the heap.  The key and node of the top entry must be read before calling this.
+         */
+        protected void pop() {
+            this.size--;
+            if (this.size > 0) {
+                long key = this.keys[this.size];
+                int node = this.nodes[this.size];
+                // Sift down.
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= this.size) break;
+                    if (child + 1 < this.size && this.keys[child + 1] < this.keys[child])
+                        child++;
+                    if (this.keys[child] >= key) break;
+                    this.keys[i] = this.keys[child];
+                    this.nodes[i] = this.nodes[child];
+                    i = child;
+                }
+                this.keys[i] = key;
+                this.nodes[i] = node;
+            }
+        }
+
+    }
+
+    /**
+     * Construct a tree classification engine.
+     *
+     * @param reps		table of representative genomes
+     * @param minSim	minimum similarity fraction for an acceptable hit
+     */
+    public TreeSsuClassifier(RepSsuTable reps, double minSim) {
+        super(reps, minSim);
+        final int n = reps.size();
+        log.info("Building representative tree for {} genomes.", n);
+        long start = System.currentTimeMillis();
+        // Unpack the representative kmers for the clustering.
+        final LongBuffer packed = reps.getPacked();
+        long[][] repKmers = new long[n][];
+        for (int i = 0; i < n; i++) {
+            final int begin = reps.packedStart(i);
+            repKmers[i] = new long[reps.packedEnd(i) - begin];
+            for (int j = 0; j < repKmers[i].length; j++)
+                repKmers[i][j] = packed.get(begin + j);
+        }
+        // Build the tree.  The node lists are converted to arrays at the end.
+        TreeBuilder builder = new TreeBuilder(repKmers);
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++)
+            all[i] = i;
+        if (n > 0)
+            builder.build(all);
+        this.signatures = builder.signatures.toArray(new long[builder.signatures.size()][]);
+        final int nodeCount = this.signatures.length;
+        this.minIdx = new int[nodeCount];
+        this.left = new int[nodeCount];
+        this.right = new int[nodeCount];
+        this.members = new int[nodeCount][];
+        for (int i = 0; i < nodeCount; i++) {
+            this.minIdx[i] = builder.minIdx.get(i);
+            this.left[i] = builder.left.get(i);
+            this.right[i] = builder.right.get(i);
+            this.members[i] = builder.members.get(i);
+        }
+        long sigKmers = 0;
+        for (long[] sig : this.signatures)
+            sigKmers += sig.length;
+        log.info("Tree built with {} nodes and {} signature kmers in {} seconds.", nodeCount, sigKmers,
+                (System.currentTimeMillis() - start) / 1000.0);
+        this.workspaces = ThreadLocal.withInitial(() -> new Workspace(nodeCount));
+    }
+
+    /**
+     * This object builds the tree.  Node 0 is the root.
+     */
+    private static class TreeBuilder {
+
+        /** packed kmers for each representative */
+        private final long[][] repKmers;
+        /** signature for each node */
+        private final List<long[]> signatures;
+        /** lowest ordinal for each node */
+        private final List<Integer> minIdx;
+        /** left child of each node */
+        private final List<Integer> left;
+        /** right child of each node */
+        private final List<Integer> right;
+        /** members of each leaf */
+        private final List<int[]> members;
+
+        /**
+         * Create a tree builder.
+         *
+         * @param repKmers	packed kmers for each representative
+         */
+        protected TreeBuilder(long[][] repKmers) {
+            this.repKmers = repKmers;
+            this.signatures = new ArrayList<long[]>();
+            this.minIdx = new ArrayList<Integer>();
+            this.left = new ArrayList<Integer>();
+            this.right = new ArrayList<Integer>();
+            this.members = new ArrayList<int[]>();
+        }
+
+        /**
+         * Build a subtree.
+         *
+         * @param group		sorted ordinals of the representatives in the subtree
+         *
+         * @return the node number of the subtree root
+         */
+        protected int build(int[] group) {
+            final int retVal = this.signatures.size();
+            this.signatures.add(null);
+            this.minIdx.add(group[0]);
+            this.left.add(-1);
+            this.right.add(-1);
+            this.members.add(null);
+            if (group.length <= LEAF_SIZE) {
+                // Here we have a leaf.
+                long[] sig = new long[0];
+                for (int repIdx : group)
+                    sig = union(sig, this.repKmers[repIdx]);
+                this.signatures.set(retVal, sig);
+                this.members.set(retVal, group);
+            } else {
+                // Split the group and build the children.
+                int[][] halves = this.split(group);
+                int leftNode = this.build(halves[0]);
+                int rightNode = this.build(halves[1]);
+                this.left.set(retVal, leftNode);
+                this.right.set(retVal, rightNode);
+                this.signatures.set(retVal, union(this.signatures.get(leftNode), this.signatures.get(rightNode)));
+            }
+            return retVal;
+        }
+
+        /**
+         * Split a group of representatives into two clusters.  We pick two far-apart seeds and assign each
+         * representative to the seed it is most similar to.  If one cluster is too small, we instead sort the
+         * representatives by how much closer they are to the first seed than to the second and split at the median.
+         *
+         * @param group		sorted ordinals of the representatives to split
+         *
+         * @return an array of two sorted ordinal arrays
+         */
+        private int[][] split(int[] group) {
+            final int n = group.length;
+            int seedA = this.farthest(group, group[0]);
+            int seedB = this.farthest(group, seedA);
+            int[] inA = new int[n];
+            int[] inB = new int[n];
+            double[] pull = new double[n];
+            int nA = 0;
+            int nB = 0;
+            for (int i = 0; i < n; i++) {
+                final int repIdx = group[i];
+                double simA = this.jaccard(repIdx, seedA);
+                double simB = this.jaccard(repIdx, seedB);
+                pull[i] = simA - simB;
+                if (simA > simB || simA == simB && nA <= nB)
+                    inA[nA++] = repIdx;
+                else
+                    inB[nB++] = repIdx;
+            }
+            int[][] retVal;
+            if (Math.min(nA, nB) < n * MIN_BALANCE) {
+                // The clustering is too lopsided, so we split at the median pull.  The sort is stable, so ties
+                // stay in ordinal order.
+                Integer[] order = new Integer[n];
+                for (int i = 0; i < n; i++)
+                    order[i] = i;
+                Arrays.sort(order, (x, y) -> Double.compare(pull[y], pull[x]));
+                final int mid = n / 2;
+                int[] halfA = new int[mid];
+                int[] halfB = new int[n - mid];
+                for (int k = 0; k < n; k++) {
+                    if (k < mid)
+                        halfA[k] = group[order[k]];
+                    else
+                        halfB[k - mid] = group[order[k]];
+                }
+                Arrays.sort(halfA);
+                Arrays.sort(halfB);
+                retVal = new int[][] { halfA, halfB };
+            } else
+                retVal = new int[][] { Arrays.copyOf(inA, nA), Arrays.copyOf(inB, nB) };
+            return retVal;
+        }
+
+        /**
+         * @return the representative in a group least similar to a specified representative
+         *
+         * @param group		ordinals of the representatives to search
+         * @param target	ordinal of the target representative
+         */
+        private int farthest(int[] group, int target) {
+            int retVal = group[0];
+            double best = Double.MAX_VALUE;
+            for (int repIdx : group) {
+                double sim = this.jaccard(repIdx, target);
+                if (sim < best) {
+                    best = sim;
+                    retVal = repIdx;
+                }
+            }
+            return retVal;
+        }
+
+        /**
+         * @return the Jaccard similarity between two representatives
+         *
+         * @param a		ordinal of the first representative
+         * @param b		ordinal of the second representative
+         */
+        private double jaccard(int a, int b) {
+            final long[] ak = this.repKmers[a];
+            final long[] bk = this.repKmers[b];
+            int shared = PackedKmerizer.similarity(ak, ak.length, LongBuffer.wrap(bk), 0, bk.length);
+            int total = ak.length + bk.length - shared;
+            return (total == 0 ? 1.0 : (double) shared / total);
+        }
+
+    }
+
+    /**
+     * @return the union of two sorted kmer arrays
+     *
+     * @param a		first array
+     * @param b		second array
+     */
+    private static long[] union(long[] a, long[] b) {
+        long[] retVal = new long[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j])
+                retVal[k++] = a[i++];
+            else if (a[i] > b[j])
+                retVal[k++] = b[j++];
+            else {
+                retVal[k++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length)
+            retVal[k++] = a[i++];
+        while (j < b.length)
+            retVal[k++] = b[j++];
+        return (k == retVal.length ? retVal : Arrays.copyOf(retVal, k));
+    }
+
+    /**
+     * @return the number of read kmers found in a node signature
+     *
+     * @param kmers		sorted read kmers
+     * @param n			number of read kmers
+     * @param sig		sorted node signature
+     */
+    private static int shared(long[] kmers, int n, long[] sig) {
+        int retVal = 0;
+        if (sig.length > n * GALLOP_RATIO) {
+            // The signature is much bigger than the read, so we search for each read kmer.
+            int low = 0;
+            for (int i = 0; i < n && low < sig.length; i++) {
+                int pos = Arrays.binarySearch(sig, low, sig.length, kmers[i]);
+                if (pos >= 0) {
+                    retVal++;
+                    low = pos + 1;
+                } else
+                    low = -pos - 1;
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < n && j < sig.length) {
+                if (kmers[i] < sig[j])
+                    i++;
+                else if (kmers[i] > sig[j])
+                    j++;
+                else {
+                    retVal++;
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return retVal;
+    }
+
+    @Override
+    protected long findBest(long[] kmers, int n) {
+        return this.search(kmers, n, 0.0);
+    }
+
+    @Override
+    protected long findGood(long[] kmers, int n, double readLen) {
+        return this.search(kmers, n, readLen);
+    }
+
+    @Override
+    public int getLastComparisons() {
+        return this.workspaces.get().compared;
+    }
+
+    /**
+     * Find the best representative for a read.
+     *
+     * @param kmers		sorted array of distinct packed kmers for the read
+     * @param n			number of kmers in the array
+     * @param readLen	length of the read, or 0 to return the best hit even if it is not good enough
+     *
+     * @return the hit code for the best representative, or NO_HIT if there is none; if a read length is specified,
+     * 		   NO_HIT is also returned if the best representative is not good enough
+     */
+    private long search(long[] kmers, int n, double readLen) {
+        Workspace ws = this.workspaces.get();
+        ws.size = 0;
+        ws.compared = 0;
+        final double minSim = this.getMinSim();
+        final boolean checkLen = (readLen > 0.0);
+        final RepSsuTable reps = this.getReps();
+        final LongBuffer packed = reps.getPacked();
+        int best = 0;
+        int bestIdx = Integer.MAX_VALUE;
+        if (this.signatures.length > 0) {
+            int bound = shared(kmers, n, this.signatures[0]);
+            if (bound > 0)
+                ws.push(bound, this.minIdx[0], 0);
+        }
+        // Process nodes until no remaining node can win.
+        while (ws.size > 0) {
+            final long key = ws.keys[0];
+            final int node = ws.nodes[0];
+            ws.pop();
+            final int bound = Integer.MAX_VALUE - (int) (key >>> 32);
+            if (! beats(bound, this.minIdx[node], best, bestIdx) || checkLen && bound / readLen < minSim)
+                break;
+            final int[] leafReps = this.members[node];
+            if (leafReps != null) {
+                // Here we have a leaf, so we score the representatives exactly.
+                for (int repIdx : leafReps) {
+                    int sim = PackedKmerizer.similarity(kmers, n, packed, reps.packedStart(repIdx), reps.packedEnd(repIdx));
+                    ws.compared++;
+                    if (beats(sim, repIdx, best, bestIdx)) {
+                        best = sim;
+                        bestIdx = repIdx;
+                    }
+                }
+            } else {
+                // Here we have an internal node, so we queue the children that might win.
+                for (int c = 0; c < 2; c++) {
+                    final int child = (c == 0 ? this.left[node] : this.right[node]);
+                    int childBound = shared(kmers, n, this.signatures[child]);
+                    if (beats(childBound, this.minIdx[child], best, bestIdx)
+                            && ! (checkLen && childBound / readLen < minSim))
+                        ws.push(childBound, this.minIdx[child], child);
+                }
+            }
+        }
+        long retVal = NO_HIT;
+        if (best > 0) {
+            retVal = packHit(bestIdx, best);
+            if (checkLen && ! this.isGood(retVal, readLen))
+                retVal = NO_HIT;
+        }
+        return retVal;
+    }
+
+}
@@ -7,17 +7,25 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.BaseProcessor;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.binreports.BinReport;
+import org.theseed.binreports.BinReportCache;
 import org.theseed.io.TabbedLineReader;
 
 /**
@@ -44,6 +52,13 @@ import org.theseed.io.TabbedLineReader;
  * -h	display command-line usage
  * -v	display more frequent log messages
  *
+ * --threads	number of bin report files to parse at the same time (default is the number of processors)
+ * --cache		name of a binary cache file for the imported samples; if the cache matches the current input files, the
+ * 				samples are loaded from it instead of being parsed; otherwise, it is rebuilt after parsing, unless it
+ * 				contains samples from input files that are not specified, in which case it is an error
+ * --append		if specified, the label/file pairs are added to the samples already saved in the cache file, and
+ * 				only the new files are parsed; a new sample ID that is already in the cache is an error
+ *
  * @author Bruce Parrello
  *
  */
@@ -60,9 +75,27 @@ public abstract class BaseBinReportsProcessor extends BaseProcessor {
     private List<String> labels;
     /** list of report files on command line, in order */
     private List<File> inFiles;
+    /** IDs of the samples loaded from the cache before appending, or NULL if we are not appending */
+    private Set<String> oldSampleIds;
+    /** labels of the samples loaded from the cache before appending, or NULL if we are not appending */
+    private Set<String> oldLabels;
+    /** list of samples added by appending, or NULL if we are not appending */
+    private List<BinReport.Sample> newSamples;
 
     // COMMAND-LINE OPTIONS
 
+    /** number of files to parse in parallel */
+    @Option(name = "--threads", metaVar = "4", usage = "number of bin report files to parse at the same time")
+    private int threadCount;
+
+    /** binary cache file for the imported samples */
+    @Option(name = "--cache", metaVar = "binReports.cache", usage = "if specified, a binary file for saving and reloading the imported samples")
+    private File cacheFile;
+
+    /** if specified, the new files are appended to the cached samples */
+    @Option(name = "--append", usage = "if specified, the label/file pairs will be added to the samples in the cache file")
+    private boolean appendFlag;
+
     /** feature ID table */
     @Argument(index = 0, metaVar = "repXX.stats.tbl", usage = "file containing feature IDs", required = true)
     private File featIdFile;
@@ -73,6 +106,9 @@ public abstract class BaseBinReportsProcessor extends BaseProcessor {
 
     @Override
     protected final void setDefaults() {
+        this.threadCount = Runtime.getRuntime().availableProcessors();
+        this.cacheFile = null;
+        this.appendFlag = false;
         this.setBinReportDefaults();
     }
 
@@ -91,6 +127,14 @@ public abstract class BaseBinReportsProcessor extends BaseProcessor {
         final int pairCount = pairParmCount / 2;
         if (pairCount < 1)
             throw new ParseFailureException("At least one label/file pair must be specified (but 2 or more is better).");
+        if (this.threadCount < 1)
+            throw new ParseFailureException("Invalid thread count.  Must be at least 1.");
+        if (this.appendFlag) {
+            if (this.cacheFile == null)
+                throw new ParseFailureException("A cache file is required when appending.");
+            if (! this.cacheFile.canRead())
+                throw new FileNotFoundException("Cache file " + this.cacheFile + " is not found or unreadable.");
+        }
         // Verify the feature ID set.
         if (! this.featIdFile.canRead())
             throw new FileNotFoundException("Feature ID file " + this.featIdFile + " is not found or unreadable.");
@@ -127,18 +171,196 @@ public abstract class BaseBinReportsProcessor extends BaseProcessor {
     protected final void runCommand() throws Exception {
         // Initialize the bin report data object.
         this.data = new BinReport(this.featureMap.keySet());
-        // Import the bin report files.
+        // Give the subclass a chance to stream the files instead of importing them.
+        if (this.runStreamingAnalysis(this.data))
+            return;
+        if (this.appendFlag) {
+            List<String> fingerprint = this.appendFiles();
+            log.info("{} samples imported using {} features.", this.data.size(), this.data.width());
+            // Process the sample data.  The updated cache is only saved once the report succeeds; otherwise, the
+            // new samples would be in the cache, and the append could not be retried.
+            this.runBinReportAnalysis(this.data);
+            BinReportCache.save(this.data, fingerprint, this.cacheFile);
+        } else {
+            // Check for a usable cache.
+            List<String> fingerprint = null;
+            boolean cached = false;
+            if (this.cacheFile != null) {
+                fingerprint = BinReportCache.fingerprint(this.featIdFile, this.labels, this.inFiles);
+                if (this.cacheFile.exists()) {
+                    cached = BinReportCache.load(this.cacheFile, fingerprint, this.data);
+                    if (! cached)
+                        this.checkRebuild(fingerprint);
+                }
+            }
+            if (! cached) {
+                // Import the bin report files.
+                this.importFiles();
+                if (this.cacheFile != null)
+                    BinReportCache.save(this.data, fingerprint, this.cacheFile);
+            }
+            log.info("{} samples imported using {} features.", this.data.size(), this.data.width());
+            // Process the sample data.
+            this.runBinReportAnalysis(this.data);
+        }
+    }
+
+    /**
+     * Insure a stale cache can be rebuilt from the current input files.  If the cache contains samples from files
+     * that are not being imported (usually because files were appended to it), rebuilding it would silently lose
+     * them, so we fail instead.
+     *
+     * @param fingerprint	fingerprint of the current input files
+     *
+     * @throws IOException
+     */
+    private void checkRebuild(List<String> fingerprint) throws IOException {
+        List<String> lost = BinReportCache.findLostInputs(this.cacheFile, fingerprint);
+        if (! lost.isEmpty()) {
+            for (String entry : lost)
+                log.error("Cached input not specified on the command line: {}", entry);
+            throw new IOException("Cache file " + this.cacheFile + " contains samples from " + lost.size()
+                    + " input files that are not being imported.  Use \"--append\" to add files to it, or delete it"
+                    + " to rebuild it.");
+        }
+    }
+
+    /**
+     * Load the samples from the cache file and append the samples from the new bin report files.  The cache itself
+     * is not updated.
+     *
+     * @return the fingerprint for the updated cache
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private List<String> appendFiles() throws IOException, InterruptedException {
+        String featEntry = BinReportCache.fingerprintEntry("", this.featIdFile);
+        List<String> fingerprint = new ArrayList<String>(BinReportCache.loadForAppend(this.cacheFile, featEntry,
+                this.data));
+        // Remember the old samples, so we can detect collisions and find the new samples.
+        this.oldSampleIds = new HashSet<String>(this.data.size() * 4 / 3 + 1);
+        for (BinReport.Sample sample : this.data)
+            this.oldSampleIds.add(sample.getSampleId());
+        this.oldLabels = new HashSet<String>(this.data.getLabels());
+        // Import the new files.
+        this.importFiles();
+        this.newSamples = new ArrayList<BinReport.Sample>(this.data.size() - this.oldSampleIds.size());
+        for (BinReport.Sample sample : this.data) {
+            if (! this.oldSampleIds.contains(sample.getSampleId()))
+                this.newSamples.add(sample);
+        }
+        log.info("{} new samples appended to {} existing samples.", this.newSamples.size(), this.oldSampleIds.size());
+        // Compute the fingerprint for the updated cache.  The new files are added to the old fingerprint.
+        List<String> newPrint = BinReportCache.fingerprint(this.featIdFile, this.labels, this.inFiles);
+        fingerprint.addAll(newPrint.subList(1, newPrint.size()));
+        return fingerprint;
+    }
+
+    /**
+     * Merge a parsed bin report file into the bin report data.  If we are appending, the file's samples must not
+     * already be in the cache.
+     *
+     * @param partial	partial result from parsing the file
+     *
+     * @throws IOException
+     */
+    private void mergePartial(BinReport.Partial partial) throws IOException {
+        if (this.oldSampleIds == null)
+            this.data.merge(partial);
+        else
+            this.data.mergeNew(partial, this.oldSampleIds);
+    }
+
+    /**
+     * Import the bin report files.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void importFiles() throws IOException, InterruptedException {
         final int pairCount = this.labels.size();
-        for (int i = 0; i < pairCount; i++) {
-            String label = this.labels.get(i);
-            File inFile = this.inFiles.get(i);
-            log.info("Importing file {} of {} using label {}: {}", i+1, pairCount, label, inFile);
-            this.data.processFile(label, inFile);
+        final int threads = Math.min(this.threadCount, pairCount);
+        if (threads <= 1) {
+            for (int i = 0; i < pairCount; i++) {
+                String label = this.labels.get(i);
+                File inFile = this.inFiles.get(i);
+                log.info("Importing file {} of {} using label {}: {}", i+1, pairCount, label, inFile);
+                this.mergePartial(this.data.parseFile(label, inFile));
+            }
+        } else
+            this.importParallel(threads);
+    }
+
+    /**
+     * Import the bin report files using multiple threads.  The files are parsed in parallel, but the partial results
+     * are merged in command-line order, so the result does not depend on the thread timing.  A new file is only
+     * submitted when an earlier result has been taken for merging, so no more than one partial result per thread
+     * is held in memory at once.
+     *
+     * @param threads	number of parsing threads to use
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void importParallel(int threads) throws IOException, InterruptedException {
+        log.info("Parsing {} bin report files using {} threads.", this.inFiles.size(), threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // Start the first batch of parsing tasks.
+            final int pairCount = this.labels.size();
+            List<Future<BinReport.Partial>> tasks = new ArrayList<Future<BinReport.Partial>>(pairCount);
+            while (tasks.size() < threads)
+                this.submitParse(executor, tasks);
+            // Merge the results in order.  An error in a file is thrown as if the files were parsed in sequence.
+            for (int i = 0; i < pairCount; i++) {
+                try {
+                    BinReport.Partial partial = tasks.get(i).get();
+                    tasks.set(i, null);
+                    if (tasks.size() < pairCount)
+                        this.submitParse(executor, tasks);
+                    log.info("Importing file {} of {} using label {}: {}", i+1, pairCount, partial.getLabel(),
+                            this.inFiles.get(i));
+                    this.mergePartial(partial);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
         }
-        log.info("{} samples imported using {} features.", this.data.size(), this.data.width());
-        // Process the sample data.
-        this.runBinReportAnalysis(this.data);
+    }
+
+    /**
+     * Submit the parsing task for the next bin report file.
+     *
+     * @param executor	executor for the parsing tasks
+     * @param tasks		list of parsing tasks already submitted, in command-line order; the new task is added
+     */
+    private void submitParse(ExecutorService executor, List<Future<BinReport.Partial>> tasks) {
+        final int i = tasks.size();
+        final String label = this.labels.get(i);
+        final File inFile = this.inFiles.get(i);
+        tasks.add(executor.submit(() -> this.data.parseFile(label, inFile)));
+    }
 
+    /**
+     * Process the bin report files one sample at a time, without importing them.  The cache file is not used
+     * when streaming.  The default is to not stream.
+     *
+     * @param sampleData	bin report object containing the features, but no samples
+     *
+     * @return TRUE if the files were processed, FALSE if they should be imported in the normal way
+     *
+     * @throws Exception
+     */
+    protected boolean runStreamingAnalysis(BinReport sampleData) throws Exception {
+        return false;
     }
 
     /**
@@ -157,6 +379,48 @@ public abstract class BaseBinReportsProcessor extends BaseProcessor {
         return this.featureMap;
     }
 
+    /**
+     * @return the list of input labels, in command-line order
+     */
+    public List<String> getLabels() {
+        return this.labels;
+    }
+
+    /**
+     * @return the list of input files, parallel to the input labels
+     */
+    public List<File> getInFiles() {
+        return this.inFiles;
+    }
+
+    /**
+     * @return the binary cache file for the imported samples, or NULL if there is none
+     */
+    public File getCacheFile() {
+        return this.cacheFile;
+    }
+
+    /**
+     * @return TRUE if the input files are being appended to the samples in the cache file
+     */
+    public boolean isAppending() {
+        return this.appendFlag;
+    }
+
+    /**
+     * @return the samples added by appending, in the order added, or NULL if we are not appending
+     */
+    public List<BinReport.Sample> getNewSamples() {
+        return this.newSamples;
+    }
+
+    /**
+     * @return the labels of the samples that were in the cache before appending, or NULL if we are not appending
+     */
+    public Set<String> getOldLabels() {
+        return this.oldLabels;
+    }
+
     /**
      * @return the first input label specified
      */
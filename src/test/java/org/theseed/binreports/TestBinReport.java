@@ -3,19 +3,30 @@
  */
 package org.theseed.binreports;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.apache.commons.math3.util.ResizableDoubleArray;
 import org.junit.jupiter.api.Test;
 import org.theseed.basic.ParseFailureException;
+import org.theseed.binreports.reports.BinReportReporter;
 import org.theseed.binreports.scores.ScorePackaging;
 import org.theseed.io.TabbedLineReader;
+import org.theseed.utils.BaseBinReportsProcessor;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.OptionalDouble;
 import java.util.Set;
 import java.util.TreeSet;
@@ -27,24 +38,55 @@ import java.util.stream.IntStream;
  */
 class TestBinReport {
 
+    /** control bin report file */
+    private static final File BIN_FILE = new File("data", "binReport.bin.tbl");
+    /** disease bin report file */
+    private static final File BIN2_FILE = new File("data", "binReport.bin2.tbl");
+
+    /**
+     * @return the set of feature IDs in the two test bin reports
+     *
+     * @throws IOException
+     */
+    private static Set<String> readFeatures() throws IOException {
+        Set<String> retVal = new TreeSet<String>(TabbedLineReader.readSet(BIN_FILE, "repgen_id"));
+        retVal.addAll(TabbedLineReader.readSet(BIN2_FILE, "repgen_id"));
+        return retVal;
+    }
+
+    /**
+     * @return a bin report containing the samples from both test bin reports
+     *
+     * @param feats		set of feature IDs to use
+     *
+     * @throws IOException
+     * @throws ParseFailureException
+     */
+    private static BinReport loadReport(Set<String> feats) throws IOException, ParseFailureException {
+        BinReport retVal = new BinReport(feats);
+        retVal.processFile("control", BIN_FILE);
+        retVal.processFile("parkinsons", BIN2_FILE);
+        return retVal;
+    }
+
     @Test
     void testBinReportBuilder() throws IOException, ParseFailureException {
-        File binFile = new File("data", "binReport.bin.tbl");
-        File bin2File = new File("data", "binReport.bin2.tbl");
-        Set<String> feats = new TreeSet<String>(TabbedLineReader.readSet(binFile, "repgen_id"));
-        feats.addAll(TabbedLineReader.readSet(bin2File, "repgen_id"));
+        Set<String> feats = readFeatures();
         int width = feats.size();
         BinReport report = new BinReport(feats);
         assertThat(report.width(), equalTo(width));
-        report.processFile("control", binFile);
+        report.processFile("control", BIN_FILE);
         assertThat(report.size(), equalTo(2));
-        report.processFile("parkinsons", bin2File);
+        report.processFile("parkinsons", BIN2_FILE);
         assertThat(report.size(), equalTo(3));
         for (BinReport.Sample sample : report) {
             int idx;
             String sampleId = sample.getSampleId();
             double[] scores = sample.getScores();
             assertThat(sampleId, scores.length, equalTo(width));
+            double[] sparse = new double[width];
+            sample.forEachNonZero((i, v) -> sparse[i] = v);
+            assertThat(sampleId, sparse, equalTo(scores));
             switch (sampleId) {
             case "ERR1136887" :
                 assertThat(sample.getLabel(), equalTo("control"));
@@ -89,21 +131,386 @@ class TestBinReport {
             sample = report.getSample("ROSample");
             assertThat(parks, containsInAnyOrder(sample));
         }
+        // Verify the score matrices.
+        for (String label : report.getLabels()) {
+            ScoreMatrix matrix = report.getScoreMatrix(label);
+            assertThat(matrix.getLabel(), equalTo(label));
+            assertThat(matrix.width(), equalTo(width));
+            assertThat(matrix.rows(), equalTo(report.getSamplesForLabel(label).size()));
+            int row = 0;
+            double[] buffer = new double[width];
+            for (BinReport.Sample sample : report.getSamplesForLabel(label)) {
+                assertThat(matrix.getSample(row), equalTo(sample));
+                matrix.copyRow(row, buffer);
+                double[] scores = sample.getScores();
+                assertThat(sample.getSampleId(), buffer, equalTo(scores));
+                for (int i = 0; i < width; i++)
+                    assertThat(sample.getSampleId(), matrix.get(row, i), equalTo(scores[i]));
+                row++;
+            }
+        }
     }
 
     @Test
     void testScorePackaging() throws IOException, ParseFailureException {
-        File binFile = new File("data", "binReport.bin.tbl");
-        File bin2File = new File("data", "binReport.bin2.tbl");
-        Set<String> feats = new TreeSet<String>(TabbedLineReader.readSet(binFile, "repgen_id"));
-        feats.addAll(TabbedLineReader.readSet(bin2File, "repgen_id"));
-        BinReport report = new BinReport(feats);
-        report.processFile("control", binFile);
-        report.processFile("parkinsons", bin2File);
+        Set<String> feats = readFeatures();
+        BinReport report = loadReport(feats);
         for (var sample : report)
             testSample(report, sample);
     }
 
+    @Test
+    void testParallelImport() throws Exception {
+        Set<String> feats = readFeatures();
+        String[] featIds = feats.toArray(new String[feats.size()]);
+        // Create two files that repeat features for the same samples.  The scores are chosen so that the order of
+        // the additions changes the sums.
+        File rep1File = new File("data", "binReport.rep1.tbl");
+        File rep2File = new File("data", "binReport.rep2.tbl");
+        File featFile = new File("data", "binReport.feats.tbl");
+        try {
+            try (PrintWriter writer = new PrintWriter(featFile)) {
+                writer.println("repgen_id\trepgen_name");
+                for (String featId : featIds)
+                    writer.println(featId + "\t" + featId);
+            }
+            try (PrintWriter writer = new PrintWriter(rep1File)) {
+                writer.println("sample_id\trepgen_id\trepgen_name\tcount");
+                writer.println("ERR1136887\t" + featIds[0] + "\tfirst\t1.0E16");
+                writer.println("ERR1136887\t" + featIds[1] + "\tsecond\t0.1");
+                writer.println("ERR1136887\t" + featIds[0] + "\tfirst\t1.0");
+                writer.println("ERR1136887\t" + featIds[0] + "\tfirst\t1.0");
+                writer.println("ERR1136887\t" + featIds[1] + "\tsecond\t0.2");
+            }
+            try (PrintWriter writer = new PrintWriter(rep2File)) {
+                writer.println("sample_id\trepgen_id\trepgen_name\tcount");
+                writer.println("ERR1136887\t" + featIds[0] + "\tfirst\t1.0");
+                writer.println("ERR1136887\t" + featIds[1] + "\tsecond\t0.3");
+                writer.println("ERR1136887\t" + featIds[0] + "\tfirst\t1.0");
+                writer.println("ROSample\t" + featIds[2] + "\tthird\t0.7");
+                writer.println("ROSample\t" + featIds[2] + "\tthird\t0.1");
+            }
+            List<String> labels = List.of("control", "control", "parkinsons", "parkinsons");
+            List<File> files = List.of(BIN_FILE, rep1File, BIN2_FILE, rep2File);
+            // Compute the expected scores by adding the lines one at a time.
+            BinReport report = new BinReport(feats);
+            Map<String, double[]> expected = new HashMap<String, double[]>();
+            Map<String, String> expectedLabels = new HashMap<String, String>();
+            for (int i = 0; i < files.size(); i++) {
+                try (TabbedLineReader reader = new TabbedLineReader(files.get(i))) {
+                    for (TabbedLineReader.Line line : reader) {
+                        String sampleId = line.get(0);
+                        double[] scores = expected.computeIfAbsent(sampleId, x -> new double[feats.size()]);
+                        expectedLabels.putIfAbsent(sampleId, labels.get(i));
+                        scores[report.getFeatureIdx(line.get(1))] += line.getDouble(3);
+                    }
+                }
+            }
+            // Import the files through the processor.  With two threads, only some of the files can be parsed
+            // at once; with five, all of them can.
+            List<String> args = new ArrayList<String>();
+            args.add(featFile.getPath());
+            for (int i = 0; i < files.size(); i++) {
+                args.add(labels.get(i));
+                args.add(files.get(i).getPath());
+            }
+            for (String threads : new String[] { "2", "5" }) {
+                List<String> parms = new ArrayList<String>(List.of("--threads", threads));
+                parms.addAll(args);
+                ImportProcessor processor = new ImportProcessor();
+                assertThat(processor.parseCommand(parms.toArray(new String[parms.size()])), equalTo(true));
+                BinReport imported = processor.runImport();
+                assertThat(threads, imported.size(), equalTo(expected.size()));
+                for (BinReport.Sample sample : imported) {
+                    String sampleId = sample.getSampleId();
+                    assertThat(sampleId, sample.getLabel(), equalTo(expectedLabels.get(sampleId)));
+                    assertThat(sampleId, sample.getScores(), equalTo(expected.get(sampleId)));
+                }
+            }
+            // The same files imported one at a time must produce the same scores.
+            BinReport serial = new BinReport(feats);
+            for (int i = 0; i < files.size(); i++)
+                serial.processFile(labels.get(i), files.get(i));
+            for (BinReport.Sample sample : serial)
+                assertThat(sample.getSampleId(), sample.getScores(), equalTo(expected.get(sample.getSampleId())));
+        } finally {
+            FileUtils.forceDelete(rep1File);
+            FileUtils.forceDelete(rep2File);
+            FileUtils.forceDelete(featFile);
+        }
+    }
+
+    @Test
+    void testFeatureIndex() throws ParseFailureException {
+        List<String> ids = List.of("100.1", "200.2", "300.3", "caf\u00e9.4");
+        FeatureIndex index = new FeatureIndex(ids);
+        assertThat(index.size(), equalTo(4));
+        for (int i = 0; i < ids.size(); i++) {
+            String id = ids.get(i);
+            assertThat(id, index.find(id), equalTo(i));
+            byte[] bytes = ("x\t" + id + "\ty").getBytes(StandardCharsets.UTF_8);
+            int len = id.getBytes(StandardCharsets.UTF_8).length;
+            assertThat(id, index.find(bytes, 2, len), equalTo(i));
+            assertThat(index.getId(i), equalTo(id));
+        }
+        assertThat(index.find("400.4"), equalTo(-1));
+        assertThat(index.find("100.1x".getBytes(StandardCharsets.UTF_8), 0, 6), equalTo(-1));
+        assertThat(index.getIds(), equalTo(ids.toArray(new String[4])));
+        boolean failed = false;
+        try {
+            new FeatureIndex(List.of("100.1", "200.2", "100.1"));
+        } catch (ParseFailureException e) {
+            failed = true;
+        }
+        assertThat(failed, equalTo(true));
+    }
+
+    @Test
+    void testCache() throws IOException, ParseFailureException {
+        Set<String> feats = readFeatures();
+        BinReport report = loadReport(feats);
+        List<String> fingerprint = BinReportCache.fingerprint(BIN_FILE, List.of("control", "parkinsons"),
+                List.of(BIN_FILE, BIN2_FILE));
+        File cacheFile = new File("data", "binReport.ser");
+        try {
+            BinReportCache.save(report, fingerprint, cacheFile);
+            BinReport loaded = new BinReport(feats);
+            assertThat(BinReportCache.load(cacheFile, fingerprint, loaded), equalTo(true));
+            assertThat(loaded.size(), equalTo(report.size()));
+            for (BinReport.Sample sample : report) {
+                BinReport.Sample other = loaded.getSample(sample.getSampleId());
+                assertThat(sample.getSampleId(), other.getLabel(), equalTo(sample.getLabel()));
+                assertThat(sample.getSampleId(), other.getScores(), equalTo(sample.getScores()));
+            }
+            // A different input list makes the cache stale.
+            List<String> fingerprint2 = BinReportCache.fingerprint(BIN_FILE, List.of("control"), List.of(BIN_FILE));
+            BinReport stale = new BinReport(feats);
+            assertThat(BinReportCache.load(cacheFile, fingerprint2, stale), equalTo(false));
+            assertThat(stale.size(), equalTo(0));
+            // A truncated cache is also stale, and leaves the bin report empty.
+            final long fullLength = cacheFile.length();
+            for (long len = fullLength - 1; len >= 12; len = len * 2 / 3) {
+                try (RandomAccessFile cacheStream = new RandomAccessFile(cacheFile, "rw")) {
+                    cacheStream.setLength(len);
+                }
+                BinReport truncated = new BinReport(feats);
+                assertThat(Long.toString(len), BinReportCache.load(cacheFile, fingerprint, truncated), equalTo(false));
+                assertThat(Long.toString(len), truncated.size(), equalTo(0));
+            }
+        } finally {
+            FileUtils.forceDelete(cacheFile);
+        }
+    }
+
+    @Test
+    void testAppend() throws IOException, ParseFailureException {
+        Set<String> feats = readFeatures();
+        // Build the full two-file import for comparison.
+        BinReport full = loadReport(feats);
+        // Build a cache from the first file.
+        BinReport first = new BinReport(feats);
+        first.processFile("control", BIN_FILE);
+        List<String> fingerprint = BinReportCache.fingerprint(BIN_FILE, List.of("control"), List.of(BIN_FILE));
+        File cacheFile = new File("data", "binReport.append.ser");
+        try {
+            BinReportCache.save(first, fingerprint, cacheFile);
+            // Append the second file.
+            String featEntry = BinReportCache.fingerprintEntry("", BIN_FILE);
+            BinReport appended = new BinReport(feats);
+            List<String> oldPrint = BinReportCache.loadForAppend(cacheFile, featEntry, appended);
+            assertThat(oldPrint, equalTo(fingerprint));
+            Set<String> oldIds = new TreeSet<String>();
+            for (BinReport.Sample sample : appended)
+                oldIds.add(sample.getSampleId());
+            BinReport.Partial partial = appended.parseFile("parkinsons", BIN2_FILE);
+            appended.mergeNew(partial, oldIds);
+            assertThat(appended.size(), equalTo(full.size()));
+            assertThat(appended.getLabels(), containsInAnyOrder("control", "parkinsons"));
+            for (BinReport.Sample sample : full) {
+                BinReport.Sample other = appended.getSample(sample.getSampleId());
+                assertThat(sample.getSampleId(), other.getLabel(), equalTo(sample.getLabel()));
+                assertThat(sample.getSampleId(), other.getScores(), equalTo(sample.getScores()));
+            }
+            // Save the appended cache.  A run that does not specify both files would lose samples.
+            List<String> fullPrint = BinReportCache.fingerprint(BIN_FILE, List.of("control", "parkinsons"),
+                    List.of(BIN_FILE, BIN2_FILE));
+            BinReportCache.save(appended, fullPrint, cacheFile);
+            assertThat(BinReportCache.findLostInputs(cacheFile, fullPrint).size(), equalTo(0));
+            assertThat(BinReportCache.findLostInputs(cacheFile, fingerprint).size(), equalTo(1));
+            // Appending the second file again is a collision.
+            BinReport again = new BinReport(feats);
+            BinReportCache.loadForAppend(cacheFile, featEntry, again);
+            oldIds.clear();
+            for (BinReport.Sample sample : again)
+                oldIds.add(sample.getSampleId());
+            boolean failed = false;
+            try {
+                again.mergeNew(again.parseFile("parkinsons", BIN2_FILE), oldIds);
+            } catch (IOException e) {
+                failed = true;
+            }
+            assertThat(failed, equalTo(true));
+        } finally {
+            FileUtils.forceDelete(cacheFile);
+        }
+    }
+
+    /**
+     * This is a minimal bin report processor that saves the imported samples for checking.
+     */
+    private static class ImportProcessor extends BaseBinReportsProcessor {
+
+        /** imported samples */
+        private BinReport imported;
+
+        @Override
+        protected void setBinReportDefaults() {
+        }
+
+        @Override
+        protected void validateBinReportParms() throws IOException, ParseFailureException {
+        }
+
+        @Override
+        protected void runBinReportAnalysis(BinReport sampleData) throws Exception {
+            this.imported = sampleData;
+        }
+
+        /**
+         * @return the samples imported by the command
+         *
+         * @throws Exception
+         */
+        public BinReport runImport() throws Exception {
+            this.runCommand();
+            return this.imported;
+        }
+
+    }
+
+    /**
+     * @return a parameter object for creating reports in a specified directory
+     *
+     * @param outDir	output directory for the reports
+     */
+    private static BinReportReporter.IParms reportParms(File outDir) {
+        return new BinReportReporter.IParms() {
+
+            @Override
+            public ScorePackaging.Type getMethodType() {
+                return ScorePackaging.Type.RANK;
+            }
+
+            @Override
+            public double getCommonFrac() {
+                return 0.8;
+            }
+
+            @Override
+            public File getOutDir() {
+                return outDir;
+            }
+
+            @Override
+            public boolean isClearing() {
+                return true;
+            }
+
+            @Override
+            public String getNegativeLabel() {
+                return "parkinsons";
+            }
+
+            @Override
+            public Map<String, String> getFeatureMap() {
+                return null;
+            }
+
+            @Override
+            public String getOutFileName() {
+                return null;
+            }
+
+        };
+    }
+
+    @Test
+    void testStreaming() throws IOException, ParseFailureException {
+        Set<String> feats = readFeatures();
+        // Both files are grouped by sample.
+        ByteKeyMap seenIds = new ByteKeyMap(10);
+        assertThat(BinReport.checkGrouping(BIN_FILE, seenIds), equalTo(true));
+        assertThat(BinReport.checkGrouping(BIN2_FILE, seenIds), equalTo(true));
+        assertThat(seenIds.size(), equalTo(3));
+        // A file whose samples were already seen is not.
+        assertThat(BinReport.checkGrouping(BIN_FILE, seenIds), equalTo(false));
+        File memDir = new File("data", "streamTest.mem");
+        File streamDir = new File("data", "streamTest.stream");
+        try {
+            // The type's streaming capability must match the reporting object's.
+            assertThat(BinReportReporter.Type.COMPARE.isStreamable(), equalTo(false));
+            assertThat(BinReportReporter.Type.COMPARE.create(reportParms(memDir)).isStreamable(), equalTo(false));
+            for (BinReportReporter.Type type : new BinReportReporter.Type[] { BinReportReporter.Type.TESTFILE,
+                    BinReportReporter.Type.XMATRIX }) {
+                // Produce the report from memory.
+                BinReport report = loadReport(feats);
+                type.create(reportParms(memDir)).process(report);
+                // Produce the report by streaming.
+                BinReport empty = new BinReport(feats);
+                BinReportReporter streamer = type.create(reportParms(streamDir));
+                assertThat(type.toString(), streamer.isStreamable(), equalTo(true));
+                assertThat(type.toString(), type.isStreamable(), equalTo(true));
+                streamer.startStream(empty, List.of("control", "parkinsons"));
+                for (String label : streamer.getLabels())
+                    empty.streamFile(label, (label.equals("control") ? BIN_FILE : BIN2_FILE),
+                            x -> streamer.streamSample(x));
+                streamer.finishStream();
+                assertThat(empty.size(), equalTo(0));
+                // Compare the output files.
+                String[] names = memDir.list();
+                Arrays.sort(names);
+                String[] streamNames = streamDir.list();
+                Arrays.sort(streamNames);
+                assertThat(type.toString(), streamNames, equalTo(names));
+                for (String name : names) {
+                    List<String> expected = Files.readAllLines(new File(memDir, name).toPath());
+                    List<String> actual = Files.readAllLines(new File(streamDir, name).toPath());
+                    assertThat(type + " " + name, actual, equalTo(expected));
+                }
+                // Insure the data file has a header and all three samples.
+                String dataName = (type == BinReportReporter.Type.XMATRIX ? "data.tbl" : "testFile.txt");
+                assertThat(type.toString(), Files.readAllLines(new File(streamDir, dataName).toPath()).size(), equalTo(4));
+            }
+        } finally {
+            FileUtils.forceDelete(memDir);
+            FileUtils.forceDelete(streamDir);
+        }
+    }
+
+    @Test
+    void testBatchNormalize() throws IOException, ParseFailureException {
+        Set<String> feats = readFeatures();
+        BinReport report = loadReport(feats);
+        final int width = report.width();
+        for (ScorePackaging.Type type : ScorePackaging.Type.values()) {
+            ScorePackaging normalizer = type.create(report);
+            double[][] output = new double[report.size()][width];
+            BinReport.Sample[] samples = normalizer.normalizeAll(output);
+            assertThat(samples.length, equalTo(report.size()));
+            for (int i = 0; i < samples.length; i++)
+                assertThat(type + " " + samples[i].getSampleId(), output[i], equalTo(normalizer.getScores(samples[i])));
+            for (String label : report.getLabels()) {
+                ScoreMatrix matrix = report.getScoreMatrix(label);
+                double[][] labelOutput = new double[matrix.rows()][width];
+                normalizer.normalize(matrix, labelOutput);
+                for (int i = 0; i < matrix.rows(); i++) {
+                    BinReport.Sample sample = matrix.getSample(i);
+                    assertThat(type + " " + sample.getSampleId(), labelOutput[i], equalTo(normalizer.getScores(sample)));
+                }
+            }
+        }
+    }
+
     void testSample(BinReport report, BinReport.Sample sample) {
         String sampleId = sample.getSampleId();
         double[] raw = sample.getScores();
@@ -0,0 +1,202 @@
+/**
+ *
+ */
+package org.theseed.binreports;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Tests for the raw-byte bin report reader.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class TestBinReportReader {
+
+    /**
+     * Verify that the fast number parser gives exactly the same answer as the standard one.
+     *
+     * @param text		number to parse
+     */
+    private static void checkParse(String text) {
+        byte[] bytes = ("x" + text + "y").getBytes(StandardCharsets.US_ASCII);
+        double actual = BinReportReader.parseDouble(bytes, 1, bytes.length - 1);
+        double expected = Double.parseDouble(text.trim());
+        assertThat(text, Double.doubleToRawLongBits(actual), equalTo(Double.doubleToRawLongBits(expected)));
+    }
+
+    /**
+     * Create a bin report file with the specified content.
+     *
+     * @param content	text to put in the file
+     *
+     * @return the file created
+     *
+     * @throws IOException
+     */
+    private static File writeReport(String content) throws IOException {
+        File retVal = new File("data", "binReportReader.test.tbl");
+        Files.write(retVal.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return retVal;
+    }
+
+    @Test
+    void testParseDouble() {
+        String[] numbers = new String[] { "0", "1", "-1", "+2.5", "-0", "-0.0", "0.0", "1.", "0.1", "0.3",
+                "0.30000000000000004", "123.456", "1e5", "1.5E-3", "-2.25e+10", "6.02214076E23",
+                "9007199254740991", "9007199254740992", "9007199254740993", "123456789012345678901234",
+                "0.1234567890123456789", "1.0000000000000000000000001", "0.0000000000000000000000001",
+                "NaN", "Infinity", "-Infinity", " 12.5", "12.5 " };
+        for (String number : numbers)
+            checkParse(number);
+        // Try a lot of random decimal numbers of different lengths.
+        Random rand = new Random(1142);
+        for (int i = 0; i < 100000; i++) {
+            StringBuilder buffer = new StringBuilder(30);
+            if (rand.nextInt(4) == 0)
+                buffer.append(rand.nextBoolean() ? '-' : '+');
+            final int digits = 1 + rand.nextInt(20);
+            final int point = rand.nextInt(digits + 1);
+            for (int j = 0; j < digits; j++) {
+                if (j == point)
+                    buffer.append('.');
+                buffer.append((char) ('0' + rand.nextInt(10)));
+            }
+            checkParse(buffer.toString());
+        }
+        // Invalid numbers must fail.
+        for (String number : new String[] { "", "-", ".", "1.2.3", "abc" }) {
+            byte[] bytes = number.getBytes(StandardCharsets.US_ASCII);
+            boolean failed = false;
+            try {
+                BinReportReader.parseDouble(bytes, 0, bytes.length);
+            } catch (NumberFormatException e) {
+                failed = true;
+            }
+            assertThat(number, failed, equalTo(true));
+        }
+    }
+
+    @Test
+    void testLines() throws IOException {
+        File testFile = writeReport("sample_id\trep_id\trep_name\tcount\r\n"
+                + "S1\tR1\tfirst\t1.5\r\n"
+                + "\r\n"
+                + "\n"
+                + "S1\tR2\tsecond\t2\n"
+                + "S2\tR1\tfirst\t3.25");
+        try (BinReportReader reader = new BinReportReader(testFile)) {
+            assertThat(reader.next(), equalTo(true));
+            assertThat(reader.getSampleId(), equalTo("S1"));
+            assertThat(reader.getFeatureId(), equalTo("R1"));
+            assertThat(reader.getScore(), equalTo(1.5));
+            assertThat(reader.next(), equalTo(true));
+            assertThat(reader.getSampleId(), equalTo("S1"));
+            assertThat(reader.getFeatureId(), equalTo("R2"));
+            assertThat(reader.getScore(), equalTo(2.0));
+            assertThat(reader.next(), equalTo(true));
+            assertThat(reader.getSampleId(), equalTo("S2"));
+            assertThat(reader.getFeatureId(), equalTo("R1"));
+            assertThat(reader.getScore(), equalTo(3.25));
+            assertThat(reader.next(), equalTo(false));
+            assertThat(reader.getLineCount(), equalTo(3));
+        } finally {
+            FileUtils.forceDelete(testFile);
+        }
+    }
+
+    @Test
+    void testLongLine() throws IOException {
+        // The sample ID is longer than the reader's buffer, so the buffer must grow to hold the line.
+        StringBuilder longId = new StringBuilder(3 << 20);
+        for (int i = 0; longId.length() < (3 << 20); i++)
+            longId.append((char) ('a' + i % 26));
+        File testFile = writeReport("sample_id\trep_id\trep_name\tcount\n"
+                + "S1\tR1\tfirst\t4\n"
+                + longId + "\tR2\tsecond\t5\n"
+                + "S2\tR3\tthird\t6\n");
+        try (BinReportReader reader = new BinReportReader(testFile)) {
+            assertThat(reader.next(), equalTo(true));
+            assertThat(reader.getSampleId(), equalTo("S1"));
+            assertThat(reader.next(), equalTo(true));
+            assertThat(reader.getSampleId(), equalTo(longId.toString()));
+            assertThat(reader.getFeatureId(), equalTo("R2"));
+            assertThat(reader.getScore(), equalTo(5.0));
+            assertThat(reader.next(), equalTo(true));
+            assertThat(reader.getSampleId(), equalTo("S2"));
+            assertThat(reader.getScore(), equalTo(6.0));
+            assertThat(reader.next(), equalTo(false));
+        } finally {
+            FileUtils.forceDelete(testFile);
+        }
+    }
+
+    @Test
+    void testShortLine() throws IOException {
+        File testFile = writeReport("sample_id\trep_id\trep_name\tcount\n"
+                + "S1\tR1\tfirst\t4\n"
+                + "S1\tR2\n");
+        try (BinReportReader reader = new BinReportReader(testFile)) {
+            assertThat(reader.next(), equalTo(true));
+            boolean failed = false;
+            try {
+                reader.next();
+            } catch (IOException e) {
+                failed = true;
+            }
+            assertThat(failed, equalTo(true));
+        } finally {
+            FileUtils.forceDelete(testFile);
+        }
+    }
+
+    @Test
+    void testColumns() throws IOException {
+        // Here we have the alternate column names, in a different order.
+        File testFile = writeReport("score\trepgen_name\trepgen_id\tsample_id\n"
+                + "7.5\tfirst\tR1\tS1\n");
+        try (BinReportReader reader = new BinReportReader(testFile)) {
+            assertThat(reader.next(), equalTo(true));
+            assertThat(reader.getSampleId(), equalTo("S1"));
+            assertThat(reader.getFeatureId(), equalTo("R1"));
+            assertThat(reader.getScore(), equalTo(7.5));
+        } finally {
+            FileUtils.forceDelete(testFile);
+        }
+        // When both names are present, the preferred one is used.
+        testFile = writeReport("sample_id\trepgen_id\trep_id\tscore\tcount\n"
+                + "S1\tG1\tR1\t1.0\t2.0\n");
+        try (BinReportReader reader = new BinReportReader(testFile)) {
+            assertThat(reader.next(), equalTo(true));
+            assertThat(reader.getFeatureId(), equalTo("R1"));
+            assertThat(reader.getScore(), equalTo(2.0));
+        } finally {
+            FileUtils.forceDelete(testFile);
+        }
+        // A missing column is an error.
+        testFile = writeReport("sample_id\trepgen_id\trepgen_name\n"
+                + "S1\tR1\tfirst\n");
+        try {
+            boolean failed = false;
+            try (BinReportReader reader = new BinReportReader(testFile)) {
+                reader.next();
+            } catch (IOException e) {
+                failed = true;
+            }
+            assertThat(failed, equalTo(true));
+        } finally {
+            FileUtils.forceDelete(testFile);
+        }
+    }
+
+}
@@ -0,0 +1,339 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.theseed.sequence.DnaKmers;
+import org.theseed.sequence.SequenceKmers;
+
+/**
+ * Verify the files written and read by the QZA processors.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TestQzaFiles {
+
+    /**
+     * @return a small representative table with the specified IDs
+     *
+     * @param ids	IDs of the representatives
+     */
+    private static RepSsuTable buildReps(String... ids) {
+        String[] names = new String[ids.length];
+        SequenceKmers[] kmers = new SequenceKmers[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            names[i] = "representative " + ids[i];
+            kmers[i] = new DnaKmers("acgtacgtacgtacgtacgtacgt");
+        }
+        return new RepSsuTable(ids, names, kmers);
+    }
+
+    /**
+     * @return the data in a gzip file, which may consist of multiple members
+     *
+     * @param compressed	compressed data
+     *
+     * @throws IOException
+     */
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        try (GZIPInputStream inStream = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return inStream.readAllBytes();
+        }
+    }
+
+    /**
+     * Verify a block-compressed round trip, with a flush in the middle of the data.
+     *
+     * @param bgzf		TRUE to test BGZF mode, FALSE to test plain gzip mode
+     */
+    private static void checkCompression(boolean bgzf) throws IOException {
+        // The test data has compressible text followed by random bytes, so both deflated and stored blocks are used.
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        for (int i = 0; original.size() < 150000; i++)
+            original.write(("line " + i + "\tacgtacgtacgt\n").getBytes(StandardCharsets.US_ASCII));
+        byte[] noise = new byte[100000];
+        new Random(1129).nextBytes(noise);
+        original.write(noise);
+        byte[] data = original.toByteArray();
+        final int mid = 70001;
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            BlockCompressedOutputStream outStream = new BlockCompressedOutputStream(compressed, executor, bgzf);
+            outStream.write(data[0]);
+            outStream.write(data, 1, mid - 1);
+            // After a flush, everything written so far can be decompressed.
+            outStream.flush();
+            assertThat(gunzip(compressed.toByteArray()), equalTo(Arrays.copyOf(data, mid)));
+            outStream.write(data, mid, data.length - mid);
+            outStream.close();
+            byte[] result = compressed.toByteArray();
+            assertThat(gunzip(result), equalTo(data));
+            // Walk the gzip members to check the headers.
+            int pos = 0;
+            int blocks = 0;
+            while (pos < result.length) {
+                assertThat(result[pos] & 0xFF, equalTo(0x1f));
+                assertThat(result[pos + 1] & 0xFF, equalTo(0x8b));
+                assertThat(result[pos + 3] & 0xFF, equalTo(bgzf ? 0x04 : 0));
+                if (! bgzf)
+                    pos = result.length;
+                else {
+                    // The BGZF block size tells us where the next member starts.
+                    assertThat(result[pos + 12], equalTo((byte) 'B'));
+                    assertThat(result[pos + 13], equalTo((byte) 'C'));
+                    final int size = (result[pos + 16] & 0xFF) + ((result[pos + 17] & 0xFF) << 8) + 1;
+                    assertThat(pos + size, lessThanOrEqualTo(result.length));
+                    pos += size;
+                    blocks++;
+                }
+            }
+            assertThat(pos, equalTo(result.length));
+            if (bgzf) {
+                // The file ends with the empty block, and the flush forced a short block.
+                assertThat(blocks, greaterThan(data.length / BlockCompressedOutputStream.BLOCK_SIZE + 1));
+                assertThat(result[result.length - 28 + 16], equalTo((byte) 0x1b));
+                assertThat(gunzip(Arrays.copyOfRange(result, result.length - 28, result.length)).length, equalTo(0));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompression() throws IOException {
+        checkCompression(false);
+        checkCompression(true);
+    }
+
+    /**
+     * This input stream returns its data a few bytes at a time, to force the record reader to refill its buffer in
+     * the middle of records.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+
+        public TrickleInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 7));
+        }
+
+    }
+
+    /**
+     * @return the FASTQ text for a record
+     *
+     * @param label		record label
+     * @param seq		sequence
+     * @param qual		quality string
+     * @param eol		line terminator
+     */
+    private static String fastq(String label, String seq, String qual, String eol) {
+        return "@" + label + " extra comment" + eol + seq + eol + "+" + eol + qual + eol;
+    }
+
+    /**
+     * @return the total of the characters in a quality string
+     *
+     * @param qual	quality string to total
+     */
+    private static long qualSum(String qual) {
+        long retVal = 0;
+        for (int i = 0; i < qual.length(); i++)
+            retVal += qual.charAt(i);
+        return retVal;
+    }
+
+    @Test
+    public void testFastqReader() throws IOException {
+        // Build a long record to force the buffer to grow.
+        StringBuilder longSeq = new StringBuilder(70000);
+        StringBuilder longQual = new StringBuilder(70000);
+        for (int i = 0; i < 70000; i++) {
+            longSeq.append("acgt".charAt(i % 4));
+            longQual.append((char) ('!' + i % 40));
+        }
+        String[][] records = new String[][] { { "r1", "acgtac", "IIIII#" }, { "r2", "ttgca", "@@@AB" },
+                { "r3", longSeq.toString(), longQual.toString() }, { "r4", "", "" }, { "r5", "ggg", "!5I" } };
+        // Mix line terminators, put blank lines between records, and leave the last line unterminated.
+        String text = fastq("r1", "acgtac", "IIIII#", "\r\n") + "\r\n" + fastq("r2", "ttgca", "@@@AB", "\n")
+                + fastq("r3", longSeq.toString(), longQual.toString(), "\r\n") + "\n\n"
+                + fastq("r4", "", "", "\r\n") + "@r5\r\nggg\r\n+\r\n!5I\r";
+        try (FastqRecordReader reader = new FastqRecordReader(new TrickleInputStream(
+                text.getBytes(StandardCharsets.US_ASCII)))) {
+            for (String[] record : records) {
+                assertThat(record[0], reader.next(), equalTo(true));
+                byte[] buffer = reader.getBuffer();
+                assertThat(new String(buffer, reader.getLabelStart(), reader.getLabelLen(), StandardCharsets.US_ASCII),
+                        equalTo(record[0]));
+                assertThat(record[0], new String(buffer, reader.getSeqStart(), reader.getSeqLen(),
+                        StandardCharsets.US_ASCII), equalTo(record[1]));
+                assertThat(record[0], new String(buffer, reader.getQualStart(), reader.getSeqLen(),
+                        StandardCharsets.US_ASCII), equalTo(record[2]));
+                assertThat(record[0], reader.getQualSum(), equalTo(qualSum(record[2])));
+            }
+            assertThat(reader.next(), equalTo(false));
+        }
+        // A truncated record is an error.
+        boolean failed = false;
+        try (FastqRecordReader reader = new FastqRecordReader(new ByteArrayInputStream(
+                "@r1\r\nacgt\r\n".getBytes(StandardCharsets.US_ASCII)))) {
+            reader.next();
+        } catch (IOException e) {
+            failed = true;
+        }
+        assertThat(failed, equalTo(true));
+    }
+
+    /**
+     * Add a gzipped FASTQ entry to a zip archive.
+     *
+     * @param zipStream		output stream for the archive
+     * @param name			name of the entry
+     * @param text			FASTQ text for the entry
+     *
+     * @throws IOException
+     */
+    private static void addFastq(ZipOutputStream zipStream, String name, String text) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzStream = new GZIPOutputStream(buffer)) {
+            gzStream.write(text.getBytes(StandardCharsets.US_ASCII));
+        }
+        zipStream.putNextEntry(new ZipEntry(name));
+        zipStream.write(buffer.toByteArray());
+        zipStream.closeEntry();
+    }
+
+    @Test
+    public void testQzaStream() throws IOException {
+        File qzaFile = new File("data", "qzaTest.qza");
+        try {
+            try (ZipOutputStream zipStream = new ZipOutputStream(new FileOutputStream(qzaFile))) {
+                zipStream.putNextEntry(new ZipEntry("uuid/data/MANIFEST"));
+                zipStream.write(("sample-id,filename,direction\r\nS1,s1_f.fastq.gz,forward\r\n"
+                        + "S1,s1_r.fastq.gz,reverse\r\n").getBytes(StandardCharsets.US_ASCII));
+                zipStream.closeEntry();
+                addFastq(zipStream, "uuid/data/s1_f.fastq.gz", fastq("read1", "acgtacgt", "IIIIIIII", "\r\n")
+                        + fastq("read2", "ggcc", "####", "\r\n") + fastq("read3", "aaccggtt", "5555IIII", "\r\n"));
+                addFastq(zipStream, "uuid/data/s1_r.fastq.gz", fastq("read1", "ttgg", "IIII", "\r\n")
+                        + fastq("read2", "ccaa", "####", "\r\n") + fastq("read3", "tttttt", "555555", "\r\n"));
+            }
+            try (QzaStreamSource source = new QzaStreamSource(qzaFile, 33)) {
+                assertThat(source.getSampleIDs(), contains("S1"));
+                // Reject reads with a mean quality below 10.
+                source.setFilter(10.0, 0);
+                try (AmpliconReadStream reads = source.open("S1")) {
+                    AmpliconRead read = reads.next();
+                    assertThat(read.getLabel(), equalTo("read1"));
+                    assertThat(read.getLseq().toString(), equalTo("acgtacgt"));
+                    assertThat(read.getRseq().toString(), equalTo("ttgg"));
+                    assertThat(read.getQual(), closeTo(40.0, 0.0001));
+                    assertThat(read.length(), equalTo(12));
+                    assertThat(read.maxlength(), equalTo(8));
+                    // The second read fails the filter, so only its statistics are available.
+                    read = reads.next();
+                    assertThat(read.getQual(), closeTo(2.0, 0.0001));
+                    assertThat(read.length(), equalTo(8));
+                    read = reads.next();
+                    assertThat(read.getLabel(), equalTo("read3"));
+                    assertThat(read.getLseq().toString(), equalTo("aaccggtt"));
+                    assertThat(read.getRseq().toString(), equalTo("tttttt"));
+                    assertThat(read.getQual(), closeTo((4 * 20 + 4 * 40 + 6 * 20) / 14.0, 0.0001));
+                    // A streamed read has a kmer set, but no kmer spans the gap between the sequences.
+                    final int oldK = DnaKmers.kmerSize();
+                    try {
+                        DnaKmers.setKmerSize(4);
+                        SequenceKmers kmers = read.getKmers();
+                        assertThat(kmers.similarity(new DnaKmers("ccgg")), greaterThan(0));
+                        assertThat(kmers.similarity(new DnaKmers("tttt")), greaterThan(0));
+                        assertThat(kmers.similarity(new DnaKmers("gttt")), equalTo(0));
+                    } finally {
+                        DnaKmers.setKmerSize(oldK);
+                    }
+                    assertThat(reads.hasNext(), equalTo(false));
+                }
+            }
+        } finally {
+            qzaFile.delete();
+        }
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+        RepSsuTable reps = buildReps("rep0", "rep1", "rep2", "rep3");
+        int[] counts = new int[] { 5, 0, 12, 1 };
+        SampleCheckpoint ckpt = new SampleCheckpoint(6, 40, 35, 3, 2, true, counts);
+        File ckptFile = new File("data", "qzaTest.ckpt");
+        try {
+            ckpt.save(ckptFile, reps);
+            assertThat(new File(ckptFile.getPath() + ".tmp").exists(), equalTo(false));
+            SampleCheckpoint loaded = SampleCheckpoint.load(ckptFile, reps);
+            assertThat(loaded.getOffset(), equalTo(6L));
+            assertThat(loaded.getReadCount(), equalTo(40));
+            assertThat(loaded.getExamined(), equalTo(35));
+            assertThat(loaded.getBadCount(), equalTo(3));
+            assertThat(loaded.getShortCount(), equalTo(2));
+            assertThat(loaded.isStopped(), equalTo(true));
+            assertThat(loaded.getCounts(), equalTo(counts));
+            // The counts are stored by ID, so a table in a different order maps them to the new ordinals.
+            RepSsuTable reordered = buildReps("rep3", "rep2", "rep1", "rep0", "rep4");
+            loaded = SampleCheckpoint.load(ckptFile, reordered);
+            assertThat(loaded.getCounts(), equalTo(new int[] { 1, 12, 0, 5, 0 }));
+            // A table missing one of the counted representatives cannot use the checkpoint.
+            RepSsuTable missing = buildReps("rep0", "rep1", "rep3");
+            assertThat(SampleCheckpoint.load(ckptFile, missing), nullValue());
+            // So can a checkpoint with a different version.
+            try (RandomAccessFile ckptStream = new RandomAccessFile(ckptFile, "rw")) {
+                ckptStream.writeInt(99);
+            }
+            assertThat(SampleCheckpoint.load(ckptFile, reps), nullValue());
+            // Restoring skips the reads consumed before the checkpoint.
+            List<Integer> reads = new ArrayList<Integer>();
+            for (int i = 0; i < 10; i++)
+                reads.add(i);
+            Iterator<Integer> iter = reads.iterator();
+            assertThat(loaded.skipReads(iter, 0), equalTo(6L));
+            assertThat(iter.next(), equalTo(6));
+            // Reads already consumed count toward the offset.
+            iter = reads.iterator();
+            iter.next();
+            iter.next();
+            assertThat(loaded.skipReads(iter, 2), equalTo(6L));
+            assertThat(iter.next(), equalTo(6));
+            // A stream that is too short stops at the end.
+            iter = reads.subList(0, 4).iterator();
+            assertThat(loaded.skipReads(iter, 0), equalTo(4L));
+            assertThat(iter.hasNext(), equalTo(false));
+        } finally {
+            ckptFile.delete();
+        }
+    }
+
+}
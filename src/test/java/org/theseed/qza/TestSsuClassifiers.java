@@ -0,0 +1,267 @@
+/**
+ *
+ */
+package org.theseed.qza;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.theseed.sequence.DnaKmers;
+import org.theseed.sequence.SequenceKmers;
+
+/**
+ * Verify that the fast classification engines produce the same answers as the exhaustive scans.  The
+ * representatives are chunks of the genome in "data/test.fasta", and the reads are mutated pieces of the genome.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TestSsuClassifiers {
+
+    /** kmer size for the tests */
+    private static final int K = 15;
+    /** number of representatives to build from the genome */
+    private static final int REPS = 60;
+    /** length of each representative */
+    private static final int REP_LEN = 1500;
+    /** minimum similarity fraction */
+    private static final double MIN_SIM = 0.5;
+    /** genome sequence */
+    private static String genome;
+    /** representative table */
+    private static RepSsuTable repTable;
+
+    /**
+     * This is a simple paired read for testing the engines.
+     */
+    private static class Read implements AmpliconRead {
+
+        /** left sequence */
+        private String lseq;
+        /** right sequence */
+        private String rseq;
+
+        /**
+         * Create a test read.
+         *
+         * @param lseq		left sequence
+         * @param rseq		right sequence
+         */
+        protected Read(String lseq, String rseq) {
+            this.lseq = lseq;
+            this.rseq = rseq;
+        }
+
+        @Override
+        public String getLabel() {
+            return "test";
+        }
+
+        @Override
+        public String getLseq() {
+            return this.lseq;
+        }
+
+        @Override
+        public String getRseq() {
+            return this.rseq;
+        }
+
+        @Override
+        public double getQual() {
+            return 40.0;
+        }
+
+        @Override
+        public int maxlength() {
+            return Math.max(this.lseq.length(), this.rseq.length());
+        }
+
+        @Override
+        public int length() {
+            return this.lseq.length() + this.rseq.length();
+        }
+
+    }
+
+    @BeforeAll
+    public static void setup() throws IOException {
+        DnaKmers.setKmerSize(K);
+        // Read the genome sequence.
+        StringBuilder buffer = new StringBuilder(2000000);
+        for (String line : Files.readAllLines(new File("data", "test.fasta").toPath())) {
+            if (! line.startsWith(">"))
+                buffer.append(line.trim());
+        }
+        genome = buffer.toString();
+        final int step = genome.length() / REPS;
+        // Build the representatives.  The last two are copies of earlier ones, to test the tie-breaking.
+        String[] ids = new String[REPS + 2];
+        String[] names = new String[REPS + 2];
+        SequenceKmers[] kmers = new SequenceKmers[REPS + 2];
+        for (int i = 0; i < REPS + 2; i++) {
+            int pos = (i < REPS ? i : i - REPS + 3) * step;
+            ids[i] = "rep" + i;
+            names[i] = "representative " + i;
+            kmers[i] = new DnaKmers(genome.substring(pos, pos + REP_LEN));
+        }
+        repTable = new RepSsuTable(ids, names, kmers);
+    }
+
+    /**
+     * Create a set of test reads.  Each read is a pair of sequences from a random place in the genome, with random
+     * mutations.  Some are placed in the representative regions and some are not.
+     *
+     * @param count		number of reads to create
+     *
+     * @return a list of reads
+     */
+    private static List<Read> createReads(int count) {
+        Random rand = new Random(1205);
+        final int step = genome.length() / REPS;
+        List<Read> retVal = new ArrayList<Read>(count);
+        for (int i = 0; i < count; i++) {
+            int pos;
+            if (i % 3 == 0)
+                pos = rand.nextInt(genome.length() - 400);
+            else
+                pos = rand.nextInt(REPS) * step + rand.nextInt(REP_LEN - 300);
+            Read read = new Read(mutate(genome.substring(pos, pos + 140), rand),
+                    mutate(genome.substring(pos + 160, pos + 300), rand));
+            retVal.add(read);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a copy of a sequence with random point mutations
+     *
+     * @param seq		sequence to mutate
+     * @param rand		random number generator
+     */
+    private static String mutate(String seq, Random rand) {
+        char[] chars = seq.toCharArray();
+        final int rate = 10 + rand.nextInt(60);
+        for (int i = 0; i < chars.length; i++) {
+            if (rand.nextInt(rate) == 0)
+                chars[i] = "acgt".charAt(rand.nextInt(4));
+        }
+        return new String(chars);
+    }
+
+    @Test
+    public void testEngineEquivalence() {
+        SsuClassifier reference = SsuClassifier.Type.PACKED.create(repTable, MIN_SIM);
+        SsuClassifier[] engines = new SsuClassifier[] { SsuClassifier.Type.PINDEX.create(repTable, MIN_SIM),
+                SsuClassifier.Type.PRUNE.create(repTable, MIN_SIM), SsuClassifier.Type.TREE.create(repTable, MIN_SIM) };
+        int goodCount = 0;
+        for (Read read : createReads(2000)) {
+            long expected = reference.findBest(read);
+            long expectedGood = reference.findGood(read);
+            if (expectedGood != SsuClassifier.NO_HIT)
+                goodCount++;
+            for (SsuClassifier engine : engines) {
+                String label = engine.getClass().getSimpleName();
+                assertThat(label, engine.findBest(read), equalTo(expected));
+                assertThat(label, engine.findGood(read), equalTo(expectedGood));
+                assertThat(label, engine.classify(read), equalTo(reference.classify(read)));
+            }
+        }
+        // The tree engine should have avoided some of the comparisons on the last read.
+        int compared = engines[2].getLastComparisons();
+        assertThat(compared, lessThan(repTable.size()));
+        // Insure the test exercised both good and bad reads.
+        assertThat(goodCount, greaterThan(100));
+        assertThat(goodCount, lessThan(2000));
+    }
+
+    @Test
+    public void testIndexMatchesScan() {
+        SsuClassifier reference = SsuClassifier.Type.SCAN.create(repTable, MIN_SIM);
+        SsuClassifier engine = SsuClassifier.Type.INDEX.create(repTable, MIN_SIM);
+        int goodCount = 0;
+        for (Read read : createReads(2000)) {
+            long expected = reference.findBest(read);
+            assertThat(engine.findBest(read), equalTo(expected));
+            int expectedIdx = reference.classify(read);
+            assertThat(engine.classify(read), equalTo(expectedIdx));
+            if (expectedIdx >= 0)
+                goodCount++;
+        }
+        // Insure the test exercised both good and bad reads.
+        assertThat(goodCount, greaterThan(100));
+        assertThat(goodCount, lessThan(2000));
+    }
+
+    @Test
+    public void testHitCache() {
+        SsuClassifier engine = SsuClassifier.Type.PACKED.create(repTable, MIN_SIM);
+        // Each read occurs three times, once in upper case, and the cache is small enough to force evictions.
+        List<Read> reads = createReads(500);
+        List<Read> allReads = new ArrayList<Read>(reads.size() * 3);
+        for (Read read : reads) {
+            allReads.add(read);
+            allReads.add(read);
+            allReads.add(new Read(read.getLseq().toUpperCase(), read.getRseq().toUpperCase()));
+        }
+        Collections.shuffle(allReads, new Random(42));
+        ReadHitCache cache = new ReadHitCache(256);
+        for (Read read : allReads) {
+            // The streaming input keys the cache with byte views, so the key must not depend on the sequence type.
+            final String lseq = read.getLseq();
+            final String rseq = read.getRseq();
+            byte[] bytes = (lseq + rseq).getBytes(StandardCharsets.US_ASCII);
+            long key = ReadHitCache.key(lseq, rseq);
+            assertThat(ReadHitCache.key(new ByteSequence(bytes, 0, lseq.length()),
+                    new ByteSequence(bytes, lseq.length(), rseq.length())), equalTo(key));
+            long expected = engine.findBest(read);
+            long hit = cache.get(key);
+            if (hit == ReadHitCache.MISS)
+                cache.put(key, expected);
+            else
+                assertThat(lseq, hit, equalTo(expected));
+        }
+        assertThat(cache.getHits(), greaterThan(0L));
+        assertThat(cache.getMisses(), greaterThanOrEqualTo((long) reads.size()));
+        assertThat(cache.getHits() + cache.getMisses(), equalTo((long) allReads.size()));
+        // Keys separate the two sequences, so moving bases from one to the other changes the key.
+        assertThat(ReadHitCache.key("acgta", "cgt"), not(equalTo(ReadHitCache.key("acgt", "acgt"))));
+    }
+
+    @Test
+    public void testPackedTypes() {
+        for (SsuClassifier.Type type : SsuClassifier.Type.values()) {
+            SsuClassifier engine = type.create(repTable, MIN_SIM);
+            assertThat(type.toString(), engine instanceof PackedSsuClassifier, equalTo(type.isPacked()));
+            assertThat(type.toString(), engine instanceof KmerSetSsuClassifier, equalTo(! type.isPacked()));
+        }
+    }
+
+    @Test
+    public void testTies() {
+        // Representative REPS is a copy of representative 3, so a read from that region must go to 3.
+        final int step = genome.length() / REPS;
+        String seq = genome.substring(3 * step + 200, 3 * step + 500);
+        Read read = new Read(seq, "");
+        int n = new PackedKmerizer(K).kmerize(seq);
+        for (SsuClassifier.Type type : new SsuClassifier.Type[] { SsuClassifier.Type.PACKED,
+                SsuClassifier.Type.PINDEX, SsuClassifier.Type.PRUNE, SsuClassifier.Type.TREE }) {
+            SsuClassifier engine = type.create(repTable, MIN_SIM);
+            long hit = engine.findBest(read);
+            assertThat(type.toString(), SsuClassifier.hitIdx(hit), equalTo(3));
+            assertThat(type.toString(), SsuClassifier.hitSim(hit), equalTo(n));
+        }
+    }
+
+}